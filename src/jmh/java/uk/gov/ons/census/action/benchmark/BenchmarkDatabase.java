@@ -0,0 +1,111 @@
+package uk.gov.ons.census.action.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import org.flywaydb.core.Flyway;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.Classifier;
+
+/*
+ Connection to the Postgres that the JDBC backed benchmarks run against, migrated to the same
+ schema as the application. Defaults to the integration test database from docker-compose.yml,
+ override with -Dbenchmark.db.url, -Dbenchmark.db.username and -Dbenchmark.db.password.
+*/
+public class BenchmarkDatabase {
+  public static final String URL =
+      System.getProperty("benchmark.db.url", "jdbc:postgresql://localhost:15667/postgres");
+  public static final String USERNAME = System.getProperty("benchmark.db.username", "postgres");
+  public static final String PASSWORD = System.getProperty("benchmark.db.password", "postgres");
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final JdbcTemplate jdbcTemplate;
+
+  public BenchmarkDatabase() {
+    DriverManagerDataSource dataSource = new DriverManagerDataSource(URL, USERNAME, PASSWORD);
+
+    Flyway.configure()
+        .dataSource(dataSource)
+        .schemas("actionv2")
+        .baselineOnMigrate(true)
+        .baselineVersion("1")
+        .load()
+        .migrate();
+
+    jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  public JdbcTemplate getJdbcTemplate() {
+    return jdbcTemplate;
+  }
+
+  // Removes everything the benchmarks write, so every trial starts from an empty schema
+  public void clear() {
+    jdbcTemplate.execute(
+        "TRUNCATE actionv2.case_to_process, actionv2.action_batch, actionv2.fulfilment_to_process, "
+            + "actionv2.fulfilment_batch, actionv2.fulfilment_pending, "
+            + "actionv2.action_rule_checkpoint, actionv2.action_rule, actionv2.action_plan, "
+            + "actionv2.uac_qid_link, actionv2.cases CASCADE");
+  }
+
+  public UUID insertActionPlan() {
+    UUID actionPlanId = UUID.randomUUID();
+    jdbcTemplate.update(
+        "INSERT INTO actionv2.action_plan (id, name) VALUES (?, 'benchmark')", actionPlanId);
+    return actionPlanId;
+  }
+
+  /*
+   Cases are spread evenly over the treatment codes, in case_ref order, and are all eligible for
+   the base predicates so that the classifiers alone decide which rule a case goes to.
+  */
+  public void insertCases(UUID actionPlanId, int caseCount, String... treatmentCodes) {
+    jdbcTemplate.update(
+        "INSERT INTO actionv2.cases (case_ref, case_id, action_plan_id, ce_actual_responses, "
+            + "ce_expected_capacity, treatment_code, address_type, region) "
+            + "SELECT g, md5(g::text)::uuid, ?, 0, 1, "
+            + "(CAST(? AS text[]))[1 + (g % ?)::int], 'HH', 'E' FROM generate_series(1, ?) g",
+        actionPlanId,
+        treatmentCodes,
+        treatmentCodes.length,
+        caseCount);
+    jdbcTemplate.execute("ANALYZE actionv2.cases, actionv2.case_classification");
+  }
+
+  public UUID insertActionRule(
+      UUID actionPlanId,
+      ActionType actionType,
+      Classifier classifiers,
+      OffsetDateTime triggerDateTime) {
+    UUID actionRuleId = UUID.randomUUID();
+    try {
+      jdbcTemplate.update(
+          "INSERT INTO actionv2.action_rule (id, action_plan_id, action_type, trigger_date_time, "
+              + "has_triggered, classifiers) VALUES (?, ?, ?, ?, false, CAST(? AS jsonb))",
+          actionRuleId,
+          actionPlanId,
+          actionType.name(),
+          triggerDateTime,
+          objectMapper.writeValueAsString(classifiers));
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Could not serialise classifiers", e);
+    }
+    return actionRuleId;
+  }
+
+  // Fulfilments cycle through the codes, so every code gets a batch of about the same size
+  public void insertFulfilments(int fulfilmentCount, String... fulfilmentCodes) {
+    jdbcTemplate.update(
+        "INSERT INTO actionv2.fulfilment_to_process (fulfilment_code, fulfilment_type, "
+            + "address_line1, postcode, quantity) "
+            + "SELECT (CAST(? AS text[]))[1 + (g % ?)::int], 'P_OR', 'Benchmark House', "
+            + "'AB1 2CD', 1 FROM generate_series(1, ?) g",
+        fulfilmentCodes,
+        fulfilmentCodes.length,
+        fulfilmentCount);
+  }
+}
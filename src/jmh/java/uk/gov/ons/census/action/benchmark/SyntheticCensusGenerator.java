@@ -0,0 +1,282 @@
+package uk.gov.ons.census.action.benchmark;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import javax.sql.DataSource;
+import org.jeasy.random.EasyRandom;
+import org.jeasy.random.EasyRandomParameters;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.jdbc.core.JdbcTemplate;
+import uk.gov.ons.census.action.model.entity.RefusalType;
+
+/*
+ Bulk loads a census sized set of cases, with a UAC/QID link for every case and a sample of
+ fulfilment requests, through COPY. The distributions are rough national ones: treatment codes
+ decide the case type and the nation, the region and LSOA follow from the nation, and a fraction
+ of cases are receipted, refused, invalid or skeleton. The free text address fields are drawn from
+ a pool made by easy-random. Everything comes from one seed, so a given seed always loads the same
+ data.
+*/
+public class SyntheticCensusGenerator {
+  private static final int COPY_BUFFER_SIZE = 1 << 16;
+  private static final int ADDRESS_POOL_SIZE = 10000;
+
+  private static final WeightedChoice<String> TREATMENT_CODES =
+      new WeightedChoice<String>()
+          .add("HH_LF2R1E", 20)
+          .add("HH_LF2R2E", 15)
+          .add("HH_LF2R3AE", 10)
+          .add("HH_LF2R3BE", 8)
+          .add("HH_LF3R1E", 10)
+          .add("HH_LF3R2E", 8)
+          .add("HH_LFNR1E", 6)
+          .add("HH_QF2R1E", 5)
+          .add("HH_LF2R1W", 4)
+          .add("HH_LF3R1W", 2)
+          .add("HH_LF2R1N", 3)
+          .add("CE_LDIEE", 1.5)
+          .add("CE_QDIEE", 1)
+          .add("CE_LDIUW", 0.5)
+          .add("SPG_LPHUE", 3)
+          .add("SPG_VDNEE", 2);
+
+  // English regions by share of households
+  private static final WeightedChoice<String> ENGLISH_REGIONS =
+      new WeightedChoice<String>()
+          .add("E12000001", 5)
+          .add("E12000002", 13)
+          .add("E12000003", 10)
+          .add("E12000004", 9)
+          .add("E12000005", 11)
+          .add("E12000006", 11)
+          .add("E12000007", 16)
+          .add("E12000008", 16)
+          .add("E12000009", 10);
+
+  private static final WeightedChoice<String> FULFILMENT_CODES =
+      new WeightedChoice<String>()
+          .add("P_OR_H1", 40)
+          .add("P_UAC_UACHHP1", 30)
+          .add("P_OR_HC1", 10)
+          .add("P_LP_HL1", 5)
+          .add("P_TB_TBPOL1", 5)
+          .add("P_OR_H2W", 5)
+          .add("P_OR_HC2W", 5);
+
+  private static final double RECEIPT_RATE = 0.25;
+  private static final double HARD_REFUSAL_RATE = 0.015;
+  private static final double EXTRAORDINARY_REFUSAL_RATE = 0.0005;
+  private static final double ADDRESS_INVALID_RATE = 0.005;
+  private static final double SKELETON_RATE = 0.001;
+
+  private final DataSource dataSource;
+  private final JdbcTemplate jdbcTemplate;
+  private final long seed;
+  private final List<String> streets;
+  private final List<String> towns;
+
+  public SyntheticCensusGenerator(JdbcTemplate jdbcTemplate, long seed) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.dataSource = jdbcTemplate.getDataSource();
+    this.seed = seed;
+
+    EasyRandom easyRandom =
+        new EasyRandom(new EasyRandomParameters().seed(seed).stringLengthRange(5, 20));
+    streets = easyRandom.objects(String.class, ADDRESS_POOL_SIZE).collect(toList());
+    towns = easyRandom.objects(String.class, ADDRESS_POOL_SIZE / 10).collect(toList());
+  }
+
+  /*
+   Cases are numbered from 1 to caseCount, and their UAC/QID links are copied on a second
+   connection in the same pass. Both tables are analysed afterwards so the planner sees the new
+   distributions straight away.
+  */
+  public void generateCases(UUID actionPlanId, int caseCount) {
+    Random random = new Random(seed);
+
+    try (Connection casesConnection = dataSource.getConnection();
+        Connection uacQidConnection = dataSource.getConnection();
+        Writer cases =
+            copyIn(
+                casesConnection,
+                "COPY actionv2.cases (case_ref, case_id, action_plan_id, case_type, "
+                    + "address_type, address_level, treatment_code, region, lsoa, "
+                    + "ce_expected_capacity, ce_actual_responses, receipt_received, "
+                    + "refusal_received, address_invalid, skeleton, survey_launched, "
+                    + "address_line1, town_name, postcode) FROM STDIN WITH (FORMAT csv)");
+        Writer uacQidLinks =
+            copyIn(
+                uacQidConnection,
+                "COPY actionv2.uac_qid_link (id, active, case_id, qid, uac) "
+                    + "FROM STDIN WITH (FORMAT csv)")) {
+
+      for (int caseRef = 1; caseRef <= caseCount; caseRef++) {
+        UUID caseId = new UUID(random.nextLong(), random.nextLong());
+        String treatmentCode = TREATMENT_CODES.choose(random);
+        String caseType = treatmentCode.substring(0, treatmentCode.indexOf('_'));
+        char nation = treatmentCode.charAt(treatmentCode.length() - 1);
+        String region = region(nation, random);
+
+        writeRow(
+            cases,
+            caseRef,
+            caseId,
+            actionPlanId,
+            caseType,
+            caseType,
+            caseType.equals("CE") ? "E" : "U",
+            treatmentCode,
+            region,
+            lsoa(region.charAt(0), random),
+            caseType.equals("CE") ? expectedCapacity(random) : null,
+            0,
+            random.nextDouble() < RECEIPT_RATE,
+            refusal(random),
+            random.nextDouble() < ADDRESS_INVALID_RATE,
+            random.nextDouble() < SKELETON_RATE,
+            false,
+            (1 + random.nextInt(200)) + " " + streets.get(random.nextInt(streets.size())),
+            towns.get(random.nextInt(towns.size())),
+            postcode(random));
+
+        writeRow(
+            uacQidLinks,
+            new UUID(random.nextLong(), random.nextLong()),
+            true,
+            caseId,
+            String.format("%s%014d", caseType.equals("CE") ? "21" : "01", caseRef),
+            uac(random));
+      }
+    } catch (IOException | SQLException e) {
+      throw new IllegalStateException("Could not load synthetic cases", e);
+    }
+
+    jdbcTemplate.execute("ANALYZE actionv2.cases, actionv2.case_classification");
+    jdbcTemplate.execute("ANALYZE actionv2.uac_qid_link");
+  }
+
+  // Loaded after the cases have committed, because every fulfilment references one
+  public void generateFulfilments(int caseCount, int fulfilmentCount) {
+    Random random = new Random(seed + 1);
+
+    try (Connection connection = dataSource.getConnection();
+        Writer fulfilments =
+            copyIn(
+                connection,
+                "COPY actionv2.fulfilment_to_process (caze_case_ref, fulfilment_code, "
+                    + "fulfilment_type, address_line1, town_name, postcode, quantity) "
+                    + "FROM STDIN WITH (FORMAT csv)")) {
+
+      for (int i = 0; i < fulfilmentCount; i++) {
+        writeRow(
+            fulfilments,
+            1 + random.nextInt(caseCount),
+            FULFILMENT_CODES.choose(random),
+            "P_OR",
+            (1 + random.nextInt(200)) + " " + streets.get(random.nextInt(streets.size())),
+            towns.get(random.nextInt(towns.size())),
+            postcode(random),
+            1);
+      }
+    } catch (IOException | SQLException e) {
+      throw new IllegalStateException("Could not load synthetic fulfilments", e);
+    }
+
+    jdbcTemplate.execute("ANALYZE actionv2.fulfilment_to_process");
+  }
+
+  private static Writer copyIn(Connection connection, String sql) throws SQLException {
+    return new BufferedWriter(
+        new OutputStreamWriter(
+            new PGCopyOutputStream(connection.unwrap(PGConnection.class), sql, COPY_BUFFER_SIZE),
+            StandardCharsets.UTF_8),
+        COPY_BUFFER_SIZE);
+  }
+
+  // Nulls are empty and unquoted, strings are always quoted, as COPY csv expects
+  private static void writeRow(Writer writer, Object... values) throws IOException {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+
+      Object value = values[i];
+      if (value instanceof String) {
+        writer.write('"');
+        writer.write(((String) value).replace("\"", "\"\""));
+        writer.write('"');
+      } else if (value != null) {
+        writer.write(value.toString());
+      }
+    }
+    writer.write('\n');
+  }
+
+  private static String region(char nation, Random random) {
+    switch (nation) {
+      case 'W':
+        return "W92000004";
+      case 'N':
+        return "N92000002";
+      default:
+        return ENGLISH_REGIONS.choose(random);
+    }
+  }
+
+  private static String lsoa(char nation, Random random) {
+    switch (nation) {
+      case 'W':
+        return String.format("W01%06d", 1 + random.nextInt(1909));
+      case 'N':
+        return String.format("N01%06d", 1 + random.nextInt(890));
+      default:
+        return String.format("E01%06d", 1 + random.nextInt(32844));
+    }
+  }
+
+  // Most communal establishments are small, a few are very large
+  private static int expectedCapacity(Random random) {
+    return (int) Math.min(2000, Math.ceil(-Math.log(1 - random.nextDouble()) * 40));
+  }
+
+  private static String refusal(Random random) {
+    double draw = random.nextDouble();
+    if (draw < EXTRAORDINARY_REFUSAL_RATE) {
+      return RefusalType.EXTRAORDINARY_REFUSAL.name();
+    }
+    if (draw < EXTRAORDINARY_REFUSAL_RATE + HARD_REFUSAL_RATE) {
+      return RefusalType.HARD_REFUSAL.name();
+    }
+    return null;
+  }
+
+  private static String postcode(Random random) {
+    return String.format(
+        "%c%c%d %d%c%c",
+        (char) ('A' + random.nextInt(26)),
+        (char) ('A' + random.nextInt(26)),
+        1 + random.nextInt(99),
+        random.nextInt(10),
+        (char) ('A' + random.nextInt(26)),
+        (char) ('A' + random.nextInt(26)));
+  }
+
+  private static String uac(Random random) {
+    StringBuilder uac = new StringBuilder(16);
+    for (int i = 0; i < 16; i++) {
+      uac.append(Character.forDigit(random.nextInt(36), 36));
+    }
+    return uac.toString();
+  }
+}
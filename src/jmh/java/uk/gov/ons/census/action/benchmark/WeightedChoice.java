@@ -0,0 +1,29 @@
+package uk.gov.ons.census.action.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Picks values in proportion to their weights, which needn't add up to anything in particular
+class WeightedChoice<T> {
+  private final List<T> values = new ArrayList<>();
+  private final List<Double> cumulativeWeights = new ArrayList<>();
+  private double totalWeight;
+
+  WeightedChoice<T> add(T value, double weight) {
+    totalWeight += weight;
+    values.add(value);
+    cumulativeWeights.add(totalWeight);
+    return this;
+  }
+
+  T choose(Random random) {
+    double draw = random.nextDouble() * totalWeight;
+    for (int i = 0; i < values.size(); i++) {
+      if (draw < cumulativeWeights.get(i)) {
+        return values.get(i);
+      }
+    }
+    return values.get(values.size() - 1);
+  }
+}
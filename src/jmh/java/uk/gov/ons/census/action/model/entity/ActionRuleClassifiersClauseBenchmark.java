@@ -0,0 +1,59 @@
+package uk.gov.ons.census.action.model.entity;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ The raw classifiers clause is stored as bytes and converted to and from a String on every get and
+ set, which happens each time a legacy rule's SQL is built.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActionRuleClassifiersClauseBenchmark {
+
+  // A typical clause, and one with a long IN list of LSOAs
+  @Param({"1", "200"})
+  private int lsoas;
+
+  private String classifiersClause;
+  private ActionRule actionRule;
+
+  @Setup
+  public void setUp() {
+    StringBuilder clause = new StringBuilder("treatment_code IN ('HH_LF2R1E','HH_LF2R2E')");
+    clause.append(" AND lsoa IN (");
+    for (int i = 0; i < lsoas; i++) {
+      clause.append(i == 0 ? "'" : ",'").append(String.format("E%08d", i)).append("'");
+    }
+    clause.append(")");
+
+    classifiersClause = clause.toString();
+    actionRule = new ActionRule();
+    actionRule.setClassifiersClause(classifiersClause);
+  }
+
+  @Benchmark
+  public String getClassifiersClause() {
+    return actionRule.getClassifiersClause();
+  }
+
+  @Benchmark
+  public ActionRule setClassifiersClause() {
+    actionRule.setClassifiersClause(classifiersClause);
+    return actionRule;
+  }
+}
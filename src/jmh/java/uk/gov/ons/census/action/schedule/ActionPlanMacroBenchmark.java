@@ -0,0 +1,302 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.Data;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import uk.gov.ons.census.action.Application;
+import uk.gov.ons.census.action.benchmark.BenchmarkDatabase;
+import uk.gov.ons.census.action.benchmark.SyntheticCensusGenerator;
+import uk.gov.ons.census.action.config.AppConfig;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.FulfilmentBatch;
+
+/*
+ Runs a whole action plan against a census sized database and reports how it went. The rules are
+ claimed, grouped and processed by the real application beans, the way ActionRuleTriggerer does
+ it, and then the pending fulfilments are batched. Reports rows per second, the latency of every
+ rule and the database I/O the run caused, from pg_stat_database and the WAL position.
+
+   mvn -P benchmark test-compile exec:java -Dbenchmark.cases=30000000
+
+ Set -Dbenchmark.generate=false to rerun the plan against the data from a previous run. The plan
+ is read from -Dbenchmark.plan, or macro-plan.json if that isn't set.
+*/
+public class ActionPlanMacroBenchmark {
+  private static final int CASES = Integer.getInteger("benchmark.cases", 30_000_000);
+  private static final int FULFILMENTS = Integer.getInteger("benchmark.fulfilments", 300_000);
+  private static final long SEED = Long.getLong("benchmark.seed", 1);
+  private static final int CONCURRENCY = Integer.getInteger("benchmark.concurrency", 4);
+  private static final int PARTITIONS = Integer.getInteger("benchmark.partitions", 1);
+  private static final int GROUP_SIZE = Integer.getInteger("benchmark.groupsize", 16);
+  private static final int SCHEDULING_POOL_SIZE = 10;
+  private static final int WEB_CONNECTIONS = 2;
+
+  public static void main(String[] args) throws Exception {
+    BenchmarkDatabase database = new BenchmarkDatabase();
+    JdbcTemplate jdbcTemplate = database.getJdbcTemplate();
+
+    UUID actionPlanId;
+    if (Boolean.parseBoolean(System.getProperty("benchmark.generate", "true"))) {
+      database.clear();
+      actionPlanId = database.insertActionPlan();
+
+      long start = System.currentTimeMillis();
+      SyntheticCensusGenerator generator = new SyntheticCensusGenerator(jdbcTemplate, SEED);
+      generator.generateCases(actionPlanId, CASES);
+      generator.generateFulfilments(CASES, FULFILMENTS);
+      System.out.printf(
+          "Loaded %d cases and %d fulfilments in %d s%n",
+          CASES, FULFILMENTS, (System.currentTimeMillis() - start) / 1000);
+    } else {
+      actionPlanId =
+          jdbcTemplate.queryForObject(
+              "SELECT action_plan_id FROM actionv2.cases LIMIT 1", UUID.class);
+      jdbcTemplate.execute(
+          "TRUNCATE actionv2.case_to_process, actionv2.action_batch, "
+              + "actionv2.action_rule_checkpoint");
+      jdbcTemplate.update(
+          "DELETE FROM actionv2.action_rule WHERE action_plan_id = ?", actionPlanId);
+    }
+
+    // Not due yet, so the application's own schedulers leave them alone while it starts
+    List<UUID> actionRuleIds = new ArrayList<>();
+    for (PlannedActionRule plannedActionRule : readPlan()) {
+      actionRuleIds.add(
+          database.insertActionRule(
+              actionPlanId,
+              plannedActionRule.getActionType(),
+              plannedActionRule.getClassifiers(),
+              OffsetDateTime.now().plusYears(1)));
+    }
+
+    try (ConfigurableApplicationContext context = startApplication()) {
+      jdbcTemplate.update(
+          "UPDATE actionv2.action_rule SET trigger_date_time = now() WHERE action_plan_id = ?",
+          actionPlanId);
+
+      IoSnapshot before = IoSnapshot.take(jdbcTemplate);
+      long start = System.currentTimeMillis();
+      List<GroupResult> groupResults = processActionRules(context);
+      long actionRulesMillis = System.currentTimeMillis() - start;
+
+      start = System.currentTimeMillis();
+      List<FulfilmentBatch> fulfilmentBatches =
+          context.getBean(FulfilmentProcessor.class).addFulfilmentBatchIdAndQuantity();
+      long fulfilmentsMillis = System.currentTimeMillis() - start;
+      IoSnapshot after = IoSnapshot.take(jdbcTemplate);
+
+      report(jdbcTemplate, actionRuleIds, groupResults, actionRulesMillis);
+      int batchedFulfilments =
+          fulfilmentBatches.stream().mapToInt(FulfilmentBatch::getQuantity).sum();
+      System.out.printf(
+          "%nFulfilments: %d in %d batches, %d ms, %.0f rows/s%n",
+          batchedFulfilments,
+          fulfilmentBatches.size(),
+          fulfilmentsMillis,
+          batchedFulfilments * 1000.0 / Math.max(fulfilmentsMillis, 1));
+      after.reportSince(before, jdbcTemplate);
+    }
+  }
+
+  private static List<PlannedActionRule> readPlan() throws IOException {
+    ObjectMapper objectMapper = new ObjectMapper();
+    TypeReference<List<PlannedActionRule>> planType = new TypeReference<>() {};
+
+    String planFile = System.getProperty("benchmark.plan");
+    if (planFile != null) {
+      return objectMapper.readValue(new File(planFile), planType);
+    }
+
+    try (InputStream plan =
+        ActionPlanMacroBenchmark.class.getResourceAsStream("/macro-plan.json")) {
+      return objectMapper.readValue(plan, planType);
+    }
+  }
+
+  // The scheduled jobs are pushed far enough out that only this runner triggers anything
+  private static ConfigurableApplicationContext startApplication() {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("spring.datasource.url", BenchmarkDatabase.URL);
+    properties.put("spring.datasource.username", BenchmarkDatabase.USERNAME);
+    properties.put("spring.datasource.password", BenchmarkDatabase.PASSWORD);
+    properties.put(
+        "spring.datasource.hikari.maximumPoolSize",
+        AppConfig.requiredConnections(
+            CONCURRENCY,
+            PARTITIONS,
+            AppConfig.reservedConnections(SCHEDULING_POOL_SIZE, WEB_CONNECTIONS)));
+    properties.put("spring.task.scheduling.pool.size", SCHEDULING_POOL_SIZE);
+    properties.put("scheduler.webconnections", WEB_CONNECTIONS);
+    properties.put("scheduler.calendar.enabled", false);
+    properties.put("scheduler.frequency", Integer.MAX_VALUE);
+    properties.put("scheduler.droppartitions", Integer.MAX_VALUE);
+    properties.put("scheduler.concurrency", CONCURRENCY);
+    properties.put("scheduler.partitions", PARTITIONS);
+    properties.put("scheduler.groupsize", GROUP_SIZE);
+    properties.put("fulfilment.batch.scheduled.time", "-");
+    properties.put("fulfilment.batch.microbatch.enabled", false);
+
+    return new SpringApplicationBuilder(Application.class)
+        .web(WebApplicationType.NONE)
+        .properties(properties)
+        .run();
+  }
+
+  private static List<GroupResult> processActionRules(ConfigurableApplicationContext context)
+      throws Exception {
+    ActionRuleClaimer actionRuleClaimer = context.getBean(ActionRuleClaimer.class);
+    ActionRuleProcessor actionRuleProcessor = context.getBean(ActionRuleProcessor.class);
+    ActionRuleTriggerer actionRuleTriggerer = context.getBean(ActionRuleTriggerer.class);
+    ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+
+    try {
+      List<Future<GroupResult>> futures = new ArrayList<>();
+      List<ActionRule> claimed;
+      while (!(claimed = actionRuleClaimer.claimDueActionRules(Integer.MAX_VALUE)).isEmpty()) {
+        for (List<ActionRule> group : actionRuleTriggerer.groupActionRules(claimed)) {
+          futures.add(
+              executor.submit(() -> processGroup(actionRuleClaimer, actionRuleProcessor, group)));
+        }
+      }
+
+      List<GroupResult> groupResults = new ArrayList<>();
+      for (Future<GroupResult> future : futures) {
+        groupResults.add(future.get());
+      }
+      return groupResults;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static GroupResult processGroup(
+      ActionRuleClaimer actionRuleClaimer,
+      ActionRuleProcessor actionRuleProcessor,
+      List<ActionRule> group) {
+    long start = System.currentTimeMillis();
+    try {
+      if (group.size() == 1) {
+        actionRuleProcessor.createScheduledActions(group.get(0));
+      } else {
+        actionRuleProcessor.createScheduledActions(group);
+      }
+    } finally {
+      group.forEach(actionRuleClaimer::releaseLease);
+    }
+    return new GroupResult(group, System.currentTimeMillis() - start);
+  }
+
+  private static void report(
+      JdbcTemplate jdbcTemplate,
+      List<UUID> actionRuleIds,
+      List<GroupResult> groupResults,
+      long elapsedMillis) {
+    Map<UUID, Long> enqueued = new HashMap<>();
+    jdbcTemplate.query(
+        "SELECT action_rule_id, COUNT(*) FROM actionv2.case_to_process "
+            + "WHERE action_rule_id = ANY(CAST(? AS uuid[])) GROUP BY action_rule_id",
+        resultSet -> {
+          enqueued.put(resultSet.getObject(1, UUID.class), resultSet.getLong(2));
+        },
+        (Object) actionRuleIds.stream().map(UUID::toString).toArray(String[]::new));
+
+    System.out.printf("%n%-36s  %-10s  %10s  %10s  %10s%n", "rule", "type", "cases", "ms", "group");
+    long totalEnqueued = 0;
+    for (GroupResult groupResult : groupResults) {
+      for (ActionRule actionRule : groupResult.getGroup()) {
+        long cases = enqueued.getOrDefault(actionRule.getId(), 0L);
+        totalEnqueued += cases;
+        System.out.printf(
+            "%-36s  %-10s  %10d  %10d  %10d%n",
+            actionRule.getId(),
+            actionRule.getActionType(),
+            cases,
+            groupResult.getElapsedMillis(),
+            groupResult.getGroup().size());
+      }
+    }
+
+    System.out.printf(
+        "%nAction rules: %d cases enqueued in %d ms, %.0f rows/s%n",
+        totalEnqueued, elapsedMillis, totalEnqueued * 1000.0 / Math.max(elapsedMillis, 1));
+  }
+
+  @Data
+  static class PlannedActionRule {
+    private ActionType actionType;
+    private Classifier classifiers;
+  }
+
+  @Data
+  private static class GroupResult {
+    private final List<ActionRule> group;
+    private final long elapsedMillis;
+  }
+
+  @Data
+  private static class IoSnapshot {
+    private final long blocksRead;
+    private final long blocksHit;
+    private final long tuplesInserted;
+    private final long tuplesUpdated;
+    private final long tempBytes;
+    private final String walPosition;
+
+    /*
+     The statistics collector only publishes a backend's counters every half second or so, so
+     wait for the last of the run to land and drop any cached stats snapshot before reading.
+    */
+    static IoSnapshot take(JdbcTemplate jdbcTemplate) throws InterruptedException {
+      Thread.sleep(1000);
+      jdbcTemplate.execute("SELECT pg_stat_clear_snapshot()");
+      return jdbcTemplate.queryForObject(
+          "SELECT blks_read, blks_hit, tup_inserted, tup_updated, temp_bytes, "
+              + "pg_current_wal_lsn()::text FROM pg_stat_database "
+              + "WHERE datname = current_database()",
+          (resultSet, rowNum) ->
+              new IoSnapshot(
+                  resultSet.getLong(1),
+                  resultSet.getLong(2),
+                  resultSet.getLong(3),
+                  resultSet.getLong(4),
+                  resultSet.getLong(5),
+                  resultSet.getString(6)));
+    }
+
+    void reportSince(IoSnapshot before, JdbcTemplate jdbcTemplate) {
+      Long walBytes =
+          jdbcTemplate.queryForObject(
+              "SELECT pg_wal_lsn_diff(CAST(? AS pg_lsn), CAST(? AS pg_lsn))::bigint",
+              Long.class,
+              walPosition,
+              before.walPosition);
+      System.out.printf(
+          "%nDatabase I/O: %d blocks read, %d blocks hit, %d tuples inserted, %d updated, "
+              + "%d temp bytes, %d WAL bytes%n",
+          blocksRead - before.blocksRead,
+          blocksHit - before.blocksHit,
+          tuplesInserted - before.tuplesInserted,
+          tuplesUpdated - before.tuplesUpdated,
+          tempBytes - before.tempBytes,
+          walBytes);
+    }
+  }
+}
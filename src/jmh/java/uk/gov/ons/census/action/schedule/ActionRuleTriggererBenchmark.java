@@ -0,0 +1,126 @@
+package uk.gov.ons.census.action.schedule;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.task.SyncTaskExecutor;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.dto.ActionRuleEstimate;
+import uk.gov.ons.census.action.model.dto.EstimateMethod;
+import uk.gov.ons.census.action.model.entity.ActionPlan;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionType;
+
+/*
+ The dispatch loop of the triggerer on its own: claiming, grouping, handing out permits and
+ releasing leases. The claimer and processor do no work, and the rules run on the calling thread.
+ The claim is never full, so one call dispatches every rule exactly once.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActionRuleTriggererBenchmark {
+  private static final int CONCURRENCY = 4;
+  private static final int GROUP_SIZE = 16;
+
+  @Param({"1", "12", "48"})
+  private int dueActionRules;
+
+  // How many plans the due rules are spread over
+  @Param({"1", "4"})
+  private int actionPlans;
+
+  private ActionRuleTriggerer actionRuleTriggerer;
+
+  @Setup
+  public void setUp() {
+    List<ActionPlan> plans = new ArrayList<>();
+    for (int i = 0; i < actionPlans; i++) {
+      ActionPlan actionPlan = new ActionPlan();
+      actionPlan.setId(UUID.randomUUID());
+      plans.add(actionPlan);
+    }
+
+    List<ActionRule> actionRules = new ArrayList<>();
+    for (int i = 0; i < dueActionRules; i++) {
+      ActionRule actionRule = new ActionRule();
+      actionRule.setId(UUID.randomUUID());
+      actionRule.setActionPlan(plans.get(i % actionPlans));
+      actionRule.setActionType(ActionType.ICL1E);
+      actionRules.add(actionRule);
+    }
+
+    actionRuleTriggerer =
+        new ActionRuleTriggerer(
+            new StubActionRuleClaimer(actionRules),
+            new NoOpActionRuleProcessor(),
+            new SyncTaskExecutor(),
+            new SimpleMeterRegistry(),
+            new SchedulerWatchdog(null, 0, 0, 0, 0),
+            new NoEstimateActionRuleEstimator(),
+            CONCURRENCY,
+            GROUP_SIZE,
+            Long.MAX_VALUE);
+  }
+
+  @Benchmark
+  public int triggerActionRules() {
+    return actionRuleTriggerer.triggerActionRules();
+  }
+
+  private static class StubActionRuleClaimer extends ActionRuleClaimer {
+    private final List<ActionRule> dueActionRules;
+
+    StubActionRuleClaimer(List<ActionRule> dueActionRules) {
+      super(null, null, null);
+      this.dueActionRules = dueActionRules;
+    }
+
+    @Override
+    public List<ActionRule> claimDueActionRules(int limit) {
+      return dueActionRules.subList(0, Math.min(limit - 1, dueActionRules.size()));
+    }
+
+    @Override
+    public void releaseLease(ActionRule actionRule) {}
+  }
+
+  private static class NoEstimateActionRuleEstimator extends ActionRuleEstimator {
+    NoEstimateActionRuleEstimator() {
+      super(null, null, null, null);
+    }
+
+    @Override
+    public ActionRuleEstimate estimate(ActionRule actionRule, EstimateMethod method) {
+      return new ActionRuleEstimate();
+    }
+  }
+
+  private static class NoOpActionRuleProcessor extends ActionRuleProcessor {
+    NoOpActionRuleProcessor() {
+      super(null, null, null, null);
+    }
+
+    @Override
+    public void createScheduledActions(ActionRule triggeredActionRule) {}
+
+    @Override
+    public void createScheduledActions(List<ActionRule> triggeredActionRules) {}
+  }
+}
@@ -0,0 +1,136 @@
+package uk.gov.ons.census.action.schedule;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import uk.gov.ons.census.action.benchmark.BenchmarkDatabase;
+import uk.gov.ons.census.action.classifier.ClassifierCompiler;
+import uk.gov.ons.census.action.config.GovernorProperties;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.entity.ActionPlan;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionRuleCheckpoint;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.ClassifierField;
+import uk.gov.ons.census.action.model.entity.ClassifierOperator;
+
+/*
+ Enqueueing a letter wave split by treatment code into case_to_process on a real database, one
+ rule at a time and in one pass. Every iteration enqueues the whole wave once, and the queue is
+ emptied between iterations.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CaseClassifierJdbcBenchmark {
+
+  @Param({"100000"})
+  private int caseCount;
+
+  @Param({"4", "12"})
+  private int treatmentCodes;
+
+  private BenchmarkDatabase database;
+  private CaseClassifier caseClassifier;
+  private List<ActionRule> actionRules;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    database = new BenchmarkDatabase();
+    database.clear();
+    JdbcTemplate jdbcTemplate = database.getJdbcTemplate();
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(database.insertActionPlan());
+
+    String[] codes = new String[treatmentCodes];
+    for (int i = 0; i < treatmentCodes; i++) {
+      codes[i] = String.format("HH_BENCH%02d", i);
+    }
+    database.insertCases(actionPlan.getId(), caseCount, codes);
+
+    CaseToProcessPartitioner partitioner = new CaseToProcessPartitioner(jdbcTemplate);
+    actionRules = new ArrayList<>();
+    for (String code : codes) {
+      Classifier classifiers = new Classifier();
+      classifiers.setOperator(ClassifierOperator.IN);
+      classifiers.setField(ClassifierField.TREATMENT_CODE);
+      classifiers.setValues(List.of(code));
+
+      ActionRule actionRule = new ActionRule();
+      actionRule.setId(
+          database.insertActionRule(
+              actionPlan.getId(), ActionType.ICL1E, classifiers, OffsetDateTime.now()));
+      actionRule.setActionPlan(actionPlan);
+      actionRule.setActionType(ActionType.ICL1E);
+      actionRule.setClassifiers(classifiers);
+      actionRules.add(actionRule);
+      partitioner.createPartition(actionRule.getId());
+    }
+
+    // Checkpoints only come into it when chunking, which is off here
+    ActionRuleGovernor serverDefaults =
+        new ActionRuleGovernor(jdbcTemplate, new GovernorProperties());
+    CaseChunkEnqueuer noCheckpoints =
+        new CaseChunkEnqueuer(jdbcTemplate, null, serverDefaults) {
+          @Override
+          public Optional<ActionRuleCheckpoint> findCheckpoint(UUID actionRuleId) {
+            return Optional.empty();
+          }
+        };
+    caseClassifier =
+        new CaseClassifier(
+            jdbcTemplate,
+            noCheckpoints,
+            new ClassifierCompiler(),
+            new SimpleMeterRegistry(),
+            serverDefaults,
+            new SchedulerWatchdog(null, 0, 0, 0, 0),
+            new SimpleAsyncTaskExecutor());
+  }
+
+  @TearDown(Level.Iteration)
+  public void emptyQueue() {
+    database.getJdbcTemplate().execute("TRUNCATE actionv2.case_to_process");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.clear();
+  }
+
+  @Benchmark
+  public void enqueueOneByOne() {
+    for (ActionRule actionRule : actionRules) {
+      caseClassifier.enqueueCasesForActionRule(actionRule);
+    }
+  }
+
+  @Benchmark
+  public void enqueueInOnePass() {
+    caseClassifier.enqueueCasesForActionRules(actionRules);
+  }
+}
@@ -0,0 +1,163 @@
+package uk.gov.ons.census.action.schedule;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import uk.gov.ons.census.action.classifier.CaseSelection;
+import uk.gov.ons.census.action.classifier.ClassifierCompiler;
+import uk.gov.ons.census.action.config.GovernorProperties;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.entity.ActionPlan;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionRuleCheckpoint;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.ClassifierField;
+import uk.gov.ons.census.action.model.entity.ClassifierOperator;
+
+/*
+ Building the case selection SQL for a rule, without a database. The enqueue benchmarks run
+ against a JdbcTemplate that throws the statement away, so they measure everything CaseClassifier
+ does up to the point the statement would be sent.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaseClassifierSqlBenchmark {
+  private static final String[] TREATMENT_CODES = {
+    "HH_LF2R1E", "HH_LF2R2E", "HH_LF2R3AE", "HH_LF2R3BE", "HH_LF3R1E", "HH_LF3R2E", "HH_LF3R3AE",
+    "HH_LF3R3BE", "HH_LFNR1E", "HH_LFNR2E", "HH_LFNR3AE", "HH_LFNR3BE"
+  };
+
+  private CaseClassifier caseClassifier;
+  private ActionRule rawClauseActionRule;
+  private ActionRule structuredActionRule;
+  private List<ActionRule> coDueActionRules;
+
+  @Setup
+  public void setUp() {
+    JdbcTemplate discardingJdbcTemplate =
+        new JdbcTemplate() {
+          @Override
+          public int update(String sql, Object... args) {
+            return 0;
+          }
+
+          @Override
+          public void query(String sql, RowCallbackHandler rch, Object... args) {}
+        };
+    ActionRuleGovernor serverDefaults =
+        new ActionRuleGovernor(discardingJdbcTemplate, new GovernorProperties());
+    CaseChunkEnqueuer noCheckpoints =
+        new CaseChunkEnqueuer(discardingJdbcTemplate, null, serverDefaults) {
+          @Override
+          public Optional<ActionRuleCheckpoint> findCheckpoint(UUID actionRuleId) {
+            return Optional.empty();
+          }
+        };
+    caseClassifier =
+        new CaseClassifier(
+            discardingJdbcTemplate,
+            noCheckpoints,
+            new ClassifierCompiler(),
+            new SimpleMeterRegistry(),
+            serverDefaults,
+            new SchedulerWatchdog(null, 0, 0, 0, 0),
+            new SimpleAsyncTaskExecutor());
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+
+    rawClauseActionRule = setUpActionRule(actionPlan);
+    rawClauseActionRule.setClassifiersClause(
+        "treatment_code IN ('HH_LF2R1E','HH_LF2R2E') AND region LIKE 'E%'");
+
+    structuredActionRule = setUpActionRule(actionPlan);
+    structuredActionRule.setClassifiers(
+        and(in(ClassifierField.TREATMENT_CODE, "HH_LF2R1E", "HH_LF2R2E"), isNotNull()));
+
+    // The treatment code split of one letter wave, as in the one pass enqueue
+    coDueActionRules = new ArrayList<>();
+    for (String treatmentCode : TREATMENT_CODES) {
+      ActionRule actionRule = setUpActionRule(actionPlan);
+      actionRule.setClassifiers(in(ClassifierField.TREATMENT_CODE, treatmentCode));
+      coDueActionRules.add(actionRule);
+    }
+  }
+
+  @Benchmark
+  public CaseSelection selectCasesRawClause() {
+    return caseClassifier.selectCases(rawClauseActionRule);
+  }
+
+  @Benchmark
+  public CaseSelection selectCasesStructured() {
+    return caseClassifier.selectCases(structuredActionRule);
+  }
+
+  @Benchmark
+  public void enqueueCasesForActionRule() {
+    caseClassifier.enqueueCasesForActionRule(structuredActionRule);
+  }
+
+  @Benchmark
+  public void enqueueCasesForCoDueActionRulesOneByOne() {
+    for (ActionRule actionRule : coDueActionRules) {
+      caseClassifier.enqueueCasesForActionRule(actionRule);
+    }
+  }
+
+  @Benchmark
+  public void enqueueCasesForCoDueActionRulesInOnePass() {
+    caseClassifier.enqueueCasesForActionRules(coDueActionRules);
+  }
+
+  private static ActionRule setUpActionRule(ActionPlan actionPlan) {
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionPlan(actionPlan);
+    actionRule.setActionType(ActionType.ICL1E);
+    return actionRule;
+  }
+
+  private static Classifier in(ClassifierField field, String... values) {
+    Classifier classifier = new Classifier();
+    classifier.setOperator(ClassifierOperator.IN);
+    classifier.setField(field);
+    classifier.setValues(List.of(values));
+    return classifier;
+  }
+
+  private static Classifier isNotNull() {
+    Classifier classifier = new Classifier();
+    classifier.setOperator(ClassifierOperator.IS_NOT_NULL);
+    classifier.setField(ClassifierField.REGION);
+    return classifier;
+  }
+
+  private static Classifier and(Classifier... classifiers) {
+    Classifier classifier = new Classifier();
+    classifier.setOperator(ClassifierOperator.AND);
+    classifier.setClassifiers(List.of(classifiers));
+    return classifier;
+  }
+}
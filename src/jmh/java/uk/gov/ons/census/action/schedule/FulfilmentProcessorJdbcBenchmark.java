@@ -0,0 +1,75 @@
+package uk.gov.ons.census.action.schedule;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.ons.census.action.benchmark.BenchmarkDatabase;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.entity.FulfilmentBatch;
+
+/*
+ Cutting the daily fulfilment batches on a real database. Every iteration loads a fresh set of
+ unbatched fulfilments and batches all of them in one call.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FulfilmentProcessorJdbcBenchmark {
+
+  @Param({"10000", "100000"})
+  private int fulfilmentCount;
+
+  @Param({"1", "20"})
+  private int fulfilmentCodes;
+
+  private BenchmarkDatabase database;
+  private FulfilmentProcessor fulfilmentProcessor;
+  private String[] codes;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    database = new BenchmarkDatabase();
+    database.clear();
+    fulfilmentProcessor =
+        new FulfilmentProcessor(
+            database.getJdbcTemplate(),
+            new SimpleMeterRegistry(),
+            new SchedulerWatchdog(null, 0, 0, 0, 0));
+
+    codes = new String[fulfilmentCodes];
+    for (int i = 0; i < fulfilmentCodes; i++) {
+      codes[i] = String.format("P_BENCH%02d", i);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void loadFulfilments() {
+    database.insertFulfilments(fulfilmentCount, codes);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.clear();
+  }
+
+  @Benchmark
+  public List<FulfilmentBatch> addFulfilmentBatchIdAndQuantity() {
+    return fulfilmentProcessor.addFulfilmentBatchIdAndQuantity();
+  }
+}
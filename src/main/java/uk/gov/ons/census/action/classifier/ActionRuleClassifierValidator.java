@@ -0,0 +1,110 @@
+package uk.gov.ons.census.action.classifier;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.rest.core.RepositoryConstraintViolationException;
+import org.springframework.data.rest.core.annotation.HandleBeforeCreate;
+import org.springframework.data.rest.core.annotation.HandleBeforeSave;
+import org.springframework.data.rest.core.annotation.RepositoryEventHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.validation.BeanPropertyBindingResult;
+import org.springframework.validation.Errors;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.ClassifierField;
+
+/*
+ Checks the classifiers of action rules as they are created or updated through the REST API or
+ loaded in bulk, so a broken classifier is rejected up front rather than failing when the rule
+ triggers, and a slow one is reported while there is still time to add an index or rewrite it.
+*/
+@Component
+@RepositoryEventHandler
+public class ActionRuleClassifierValidator {
+  private static final Logger log = LoggerFactory.getLogger(ActionRuleClassifierValidator.class);
+
+  private final ClassifierIndexLint classifierIndexLint;
+
+  @Value("${classifier.lint.strict}")
+  private boolean strict;
+
+  public ActionRuleClassifierValidator(ClassifierIndexLint classifierIndexLint) {
+    this.classifierIndexLint = classifierIndexLint;
+  }
+
+  @HandleBeforeCreate
+  @HandleBeforeSave
+  public void validate(ActionRule actionRule) {
+    validate(actionRule, classifierIndexLint::findUnindexedFields);
+  }
+
+  /*
+   For a bulk load, which would otherwise look the indexes up again for every rule. Every rule is
+   checked, and the errors of each one that is rejected are returned by its id.
+  */
+  public Map<UUID, Errors> validate(List<ActionRule> actionRules) {
+    Set<String> indexedColumns = classifierIndexLint.findIndexedColumns();
+    Map<UUID, Errors> rejections = new LinkedHashMap<>();
+    for (ActionRule actionRule : actionRules) {
+      try {
+        validate(
+            actionRule,
+            classifiers -> classifierIndexLint.findUnindexedFields(classifiers, indexedColumns));
+      } catch (RepositoryConstraintViolationException e) {
+        rejections.put(actionRule.getId(), e.getErrors());
+      }
+    }
+    return rejections;
+  }
+
+  private void validate(
+      ActionRule actionRule, Function<Classifier, List<ClassifierField>> findUnindexedFields) {
+    Errors errors = new BeanPropertyBindingResult(actionRule, "actionRule");
+
+    if (actionRule.getClassifiers() == null) {
+      if (actionRule.getClassifiersClause() == null) {
+        errors.rejectValue("classifiers", "required", "Action rule must have classifiers");
+        throw new RepositoryConstraintViolationException(errors);
+      }
+
+      log.with("action_rule_id", actionRule.getId())
+          .warn("Action rule uses a raw classifiers clause, which can't be checked for indexes");
+      return;
+    }
+
+    if (actionRule.getClassifiersClause() != null) {
+      errors.rejectValue(
+          "classifiersClause", "conflict", "Action rule can't have classifiers and a clause");
+      throw new RepositoryConstraintViolationException(errors);
+    }
+
+    try {
+      ClassifierCompiler.validate(actionRule.getClassifiers());
+    } catch (IllegalArgumentException e) {
+      errors.rejectValue("classifiers", "invalid", e.getMessage());
+      throw new RepositoryConstraintViolationException(errors);
+    }
+
+    List<ClassifierField> unindexedFields = findUnindexedFields.apply(actionRule.getClassifiers());
+    if (unindexedFields.isEmpty()) {
+      return;
+    }
+
+    log.with("action_rule_id", actionRule.getId())
+        .with("unindexed_fields", unindexedFields)
+        .warn("Action rule classifies on fields that no index on cases can serve");
+
+    if (strict) {
+      errors.rejectValue(
+          "classifiers", "unindexed", "Classifiers use unindexed fields " + unindexedFields);
+      throw new RepositoryConstraintViolationException(errors);
+    }
+  }
+}
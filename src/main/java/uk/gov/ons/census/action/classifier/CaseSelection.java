@@ -0,0 +1,35 @@
+package uk.gov.ons.census.action.classifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ A fragment of SQL selecting cases, with the values to bind to its parameters in order.
+*/
+public class CaseSelection {
+  private final String sql;
+  private final List<Object> params;
+
+  public CaseSelection(String sql, List<Object> params) {
+    this.sql = sql;
+    this.params = Collections.unmodifiableList(params);
+  }
+
+  public String getSql() {
+    return sql;
+  }
+
+  public List<Object> getParams() {
+    return params;
+  }
+
+  // The parameters of a statement that binds some of its own either side of this selection
+  public Object[] bindBetween(Object[] leadingParams, Object... trailingParams) {
+    List<Object> allParams = new ArrayList<>(Arrays.asList(leadingParams));
+    allParams.addAll(params);
+    allParams.addAll(Arrays.asList(trailingParams));
+    return allParams.toArray();
+  }
+}
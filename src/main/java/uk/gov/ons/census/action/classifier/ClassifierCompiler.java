@@ -0,0 +1,135 @@
+package uk.gov.ons.census.action.classifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.ClassifierField;
+import uk.gov.ons.census.action.model.entity.ClassifierOperator;
+
+/*
+ Compiles a structured classifier into SQL with a bind parameter for every value. Lists of values
+ are bound as a single array, so the SQL depends only on the shape of the classifier - its
+ operators and fields - and never on the values or how many there are. Rules with the same shape
+ therefore share the same statement text, which the driver and Postgres can reuse as a prepared
+ statement, and the compiled SQL is cached by shape.
+*/
+@Component
+public class ClassifierCompiler {
+  private final Map<String, String> sqlByShape = new ConcurrentHashMap<>();
+
+  public CaseSelection compile(Classifier classifier) {
+    validate(classifier);
+
+    StringBuilder shape = new StringBuilder();
+    List<Object> params = new ArrayList<>();
+    describe(classifier, shape, params);
+
+    String sql = sqlByShape.computeIfAbsent(shape.toString(), key -> render(classifier));
+    return new CaseSelection(sql, params);
+  }
+
+  int cachedShapes() {
+    return sqlByShape.size();
+  }
+
+  public static void validate(Classifier classifier) {
+    if (classifier == null || classifier.getOperator() == null) {
+      throw new IllegalArgumentException("Classifier must have an operator");
+    }
+
+    ClassifierOperator operator = classifier.getOperator();
+    if (operator.isLogical()) {
+      List<Classifier> children = classifier.getClassifiers();
+      if (children == null || children.isEmpty()) {
+        throw new IllegalArgumentException(operator + " classifier must have classifiers");
+      }
+      if (operator == ClassifierOperator.NOT && children.size() != 1) {
+        throw new IllegalArgumentException("NOT classifier must have exactly one classifier");
+      }
+      children.forEach(ClassifierCompiler::validate);
+      return;
+    }
+
+    if (classifier.getField() == null) {
+      throw new IllegalArgumentException(operator + " classifier must have a field");
+    }
+
+    int valueCount = classifier.getValues() == null ? 0 : classifier.getValues().size();
+    switch (operator) {
+      case IN:
+      case NOT_IN:
+        if (valueCount == 0) {
+          throw new IllegalArgumentException(operator + " classifier must have values");
+        }
+        break;
+      case GREATER_THAN:
+      case LESS_THAN:
+        if (valueCount != 1) {
+          throw new IllegalArgumentException(operator + " classifier must have exactly one value");
+        }
+        break;
+      default:
+        if (valueCount != 0) {
+          throw new IllegalArgumentException(operator + " classifier must not have values");
+        }
+    }
+  }
+
+  private void describe(Classifier classifier, StringBuilder shape, List<Object> params) {
+    shape.append(classifier.getOperator()).append('(');
+
+    if (classifier.getOperator().isLogical()) {
+      for (Classifier child : classifier.getClassifiers()) {
+        describe(child, shape, params);
+      }
+    } else {
+      shape.append(classifier.getField());
+      switch (classifier.getOperator()) {
+        case IN:
+        case NOT_IN:
+          params.add(classifier.getValues().toArray(new String[0]));
+          break;
+        case GREATER_THAN:
+        case LESS_THAN:
+          params.add(classifier.getValues().get(0));
+          break;
+        default:
+      }
+    }
+
+    shape.append(')');
+  }
+
+  private String render(Classifier classifier) {
+    ClassifierOperator operator = classifier.getOperator();
+    List<Classifier> children = classifier.getClassifiers();
+    ClassifierField field = classifier.getField();
+
+    switch (operator) {
+      case AND:
+      case OR:
+        List<String> renderedChildren = new ArrayList<>(children.size());
+        children.forEach(child -> renderedChildren.add(render(child)));
+        return "(" + String.join(" " + operator + " ", renderedChildren) + ")";
+      case NOT:
+        return "NOT " + render(children.get(0));
+      case IN:
+        return "(" + field.getColumn() + " = ANY(CAST(? AS " + field.getSqlType() + "[])))";
+      case NOT_IN:
+        return "NOT (" + field.getColumn() + " = ANY(CAST(? AS " + field.getSqlType() + "[])))";
+      case GREATER_THAN:
+        return "(" + field.getColumn() + " > CAST(? AS " + field.getSqlType() + "))";
+      case LESS_THAN:
+        return "(" + field.getColumn() + " < CAST(? AS " + field.getSqlType() + "))";
+      case IS_NULL:
+        return "(" + field.getColumn() + " IS NULL)";
+      case IS_NOT_NULL:
+        return "(" + field.getColumn() + " IS NOT NULL)";
+      default:
+        throw new IllegalArgumentException("Unsupported classifier operator " + operator);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package uk.gov.ons.census.action.classifier;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.ClassifierField;
+
+/*
+ Finds the fields of a classifier that are not in any index on the table its rule scans, either
+ as a key or as an included column. That is the case_classification projection when it is on, as
+ structured classifiers are run against it, otherwise cases. The planner can only check those
+ predicates by fetching every case of the action plan from the heap, which for a large plan is
+ as slow as a sequential scan.
+*/
+@Component
+public class ClassifierIndexLint {
+  private static final String INDEXED_COLUMNS_SQL =
+      "SELECT DISTINCT a.attname FROM pg_index i "
+          + "JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = ANY(i.indkey) "
+          + "WHERE i.indrelid = CAST(? AS regclass)";
+
+  private final JdbcTemplate jdbcTemplate;
+
+  @Value("${classifier.projection:false}")
+  private boolean projection;
+
+  public ClassifierIndexLint(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  public List<ClassifierField> findUnindexedFields(Classifier classifier) {
+    return findUnindexedFields(classifier, findIndexedColumns());
+  }
+
+  // Lets a caller checking many classifiers look the indexes up once for all of them
+  public Set<String> findIndexedColumns() {
+    return new HashSet<>(
+        jdbcTemplate.queryForList(
+            INDEXED_COLUMNS_SQL,
+            String.class,
+            projection ? "actionv2.case_classification" : "actionv2.cases"));
+  }
+
+  public List<ClassifierField> findUnindexedFields(
+      Classifier classifier, Set<String> indexedColumns) {
+    Set<ClassifierField> unindexedFields = new LinkedHashSet<>();
+    collectUnindexedFields(classifier, indexedColumns, unindexedFields);
+    return new ArrayList<>(unindexedFields);
+  }
+
+  private void collectUnindexedFields(
+      Classifier classifier, Set<String> indexedColumns, Set<ClassifierField> unindexedFields) {
+    if (classifier.getOperator().isLogical()) {
+      for (Classifier child : classifier.getClassifiers()) {
+        collectUnindexedFields(child, indexedColumns, unindexedFields);
+      }
+    } else if (!indexedColumns.contains(classifier.getField().getColumn())) {
+      unindexedFields.add(classifier.getField());
+    }
+  }
+}
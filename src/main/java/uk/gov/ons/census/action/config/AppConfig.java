@@ -2,16 +2,93 @@ package uk.gov.ons.census.action.config;
 
 import java.util.TimeZone;
 import javax.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 @Configuration
 @EnableScheduling
 @EnableTransactionManagement
 public class AppConfig {
+  // The action rule listener reloads the calendar and the calendar dispatches due rules
+  private static final int CALENDAR_THREADS = 2;
+
+  @Value("${scheduler.concurrency}")
+  private int concurrency;
+
+  @Value("${scheduler.partitions:1}")
+  private int partitions;
+
+  @Value("${spring.datasource.hikari.maximumPoolSize:10}")
+  private int maximumPoolSize;
+
+  @Value("${spring.task.scheduling.pool.size:1}")
+  private int schedulingPoolSize;
+
+  @Value("${scheduler.webconnections}")
+  private int webConnections;
+
   @PostConstruct
   public void init() {
     TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
   }
+
+  @Bean
+  public ThreadPoolTaskExecutor actionRuleExecutor() {
+    int reservedConnections = reservedConnections(schedulingPoolSize, webConnections);
+    int requiredConnections = requiredConnections(concurrency, partitions, reservedConnections);
+    if (requiredConnections > maximumPoolSize) {
+      throw new IllegalStateException(
+          String.format(
+              "scheduler.concurrency of %d needs %d database connections, %d of them reserved "
+                  + "for scheduled jobs, the calendar and web requests, but Hikari "
+                  + "maximumPoolSize is only %d",
+              concurrency, requiredConnections, reservedConnections, maximumPoolSize));
+    }
+
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(concurrency);
+    executor.setMaxPoolSize(concurrency);
+    executor.setThreadNamePrefix("action-rule-");
+    return executor;
+  }
+
+  // Enough for every running rule to insert all of its partitions at once, which is also the most
+  // connections the partitions can take from the pool
+  @Bean
+  public ThreadPoolTaskExecutor partitionExecutor() {
+    int threads = concurrency * Math.max(partitions, 1);
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setThreadNamePrefix("partition-");
+    return executor;
+  }
+
+  /*
+   Every rule holds the connection of its own transaction. Chunks commit on a second connection,
+   and a partitioned rule needs a coordinator plus one connection per partition. Resumed rules
+   always run in chunks, so that is the least we allow for.
+  */
+  static int connectionsPerActionRule(int partitions) {
+    return 1 + Math.max(partitions > 1 ? partitions + 1 : 0, 1);
+  }
+
+  /*
+   Everything else shares the pool with the rule workers. Each scheduled job holds at most one
+   connection at a time, whether it's polling for and claiming rules, renewing leases, relaying or
+   exporting batches, cutting fulfilment batches, dropping partitions or checking pg_stat_activity,
+   so together they hold no more than the scheduling pool has threads. The calendar's two threads
+   take one each, and the forecast and bulk load endpoints are allowed scheduler.webconnections.
+  */
+  public static int reservedConnections(int schedulingPoolSize, int webConnections) {
+    return schedulingPoolSize + CALENDAR_THREADS + webConnections;
+  }
+
+  public static int requiredConnections(int concurrency, int partitions, int reservedConnections) {
+    return concurrency * connectionsPerActionRule(partitions) + reservedConnections;
+  }
 }
@@ -0,0 +1,18 @@
+package uk.gov.ons.census.action.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.ExecutionProfile;
+
+// A map keyed by action type doesn't fit @Value, so the governor's profiles are bound as a whole
+@Data
+@Component
+@ConfigurationProperties(prefix = "governor")
+public class GovernorProperties {
+  private ExecutionProfile defaults = new ExecutionProfile();
+  private Map<ActionType, ExecutionProfile> actionTypes = new HashMap<>();
+}
@@ -0,0 +1,83 @@
+package uk.gov.ons.census.action.endpoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import uk.gov.ons.census.action.classifier.ActionRuleClassifierValidator;
+import uk.gov.ons.census.action.model.entity.ActionPlan;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.schedule.ActionPlanLoader;
+
+/*
+ Loads a whole action plan with its rules in one request, for plans with too many rules to create
+ one at a time through the repository REST API. Every rule is validated before any is written, and
+ if any is invalid nothing is written and every problem found is returned.
+*/
+@RestController
+@RequestMapping("/bulk")
+public class ActionPlanEndpoint {
+  private final ActionRuleClassifierValidator actionRuleClassifierValidator;
+  private final ActionPlanLoader actionPlanLoader;
+
+  public ActionPlanEndpoint(
+      ActionRuleClassifierValidator actionRuleClassifierValidator,
+      ActionPlanLoader actionPlanLoader) {
+    this.actionRuleClassifierValidator = actionRuleClassifierValidator;
+    this.actionPlanLoader = actionPlanLoader;
+  }
+
+  @PutMapping("/actionPlans/{actionPlanId}")
+  public ResponseEntity<?> loadActionPlan(
+      @PathVariable UUID actionPlanId, @RequestBody ActionPlan actionPlan) {
+    actionPlan.setId(actionPlanId);
+    if (actionPlan.getActionRules() == null) {
+      actionPlan.setActionRules(Collections.emptyList());
+    }
+
+    List<String> problems = validate(actionPlan.getActionRules());
+    if (!problems.isEmpty()) {
+      return ResponseEntity.badRequest().body(problems);
+    }
+
+    return ResponseEntity.ok(actionPlanLoader.load(actionPlan));
+  }
+
+  private List<String> validate(List<ActionRule> actionRules) {
+    List<String> problems = new ArrayList<>();
+    Set<UUID> actionRuleIds = new HashSet<>();
+    for (ActionRule actionRule : actionRules) {
+      if (actionRule.getId() == null) {
+        problems.add("Action rule must have an id");
+      } else if (!actionRuleIds.add(actionRule.getId())) {
+        problems.add("Action rule " + actionRule.getId() + " is in the plan more than once");
+      }
+      if (actionRule.getActionType() == null) {
+        problems.add("Action rule " + actionRule.getId() + " must have an action type");
+      }
+      if (actionRule.getTriggerDateTime() == null) {
+        problems.add("Action rule " + actionRule.getId() + " must have a trigger date time");
+      }
+    }
+
+    actionRuleClassifierValidator
+        .validate(actionRules)
+        .forEach(
+            (actionRuleId, errors) ->
+                errors
+                    .getFieldErrors()
+                    .forEach(
+                        error ->
+                            problems.add(
+                                "Action rule " + actionRuleId + ": " + error.getDefaultMessage())));
+    return problems;
+  }
+}
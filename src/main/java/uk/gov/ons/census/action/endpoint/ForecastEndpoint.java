@@ -0,0 +1,62 @@
+package uk.gov.ons.census.action.endpoint;
+
+import java.util.List;
+import java.util.UUID;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import uk.gov.ons.census.action.model.dto.ActionPlanForecast;
+import uk.gov.ons.census.action.model.dto.ActionRuleEstimate;
+import uk.gov.ons.census.action.model.dto.EstimateMethod;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.repository.ActionPlanRepository;
+import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
+import uk.gov.ons.census.action.schedule.ActionRuleEstimator;
+
+/*
+ Estimates how many cases action rules would enqueue, against the cases as they are now. Later
+ rules in a plan are estimated as if the earlier ones had not run, so receipts and refusals that
+ come in between will make the real volumes lower.
+*/
+@RestController
+@RequestMapping("/forecast")
+public class ForecastEndpoint {
+  private final ActionRuleRepository actionRuleRepository;
+  private final ActionPlanRepository actionPlanRepository;
+  private final ActionRuleEstimator actionRuleEstimator;
+
+  public ForecastEndpoint(
+      ActionRuleRepository actionRuleRepository,
+      ActionPlanRepository actionPlanRepository,
+      ActionRuleEstimator actionRuleEstimator) {
+    this.actionRuleRepository = actionRuleRepository;
+    this.actionPlanRepository = actionPlanRepository;
+    this.actionRuleEstimator = actionRuleEstimator;
+  }
+
+  @GetMapping("/actionRules/{actionRuleId}")
+  public ResponseEntity<ActionRuleEstimate> estimateActionRule(
+      @PathVariable UUID actionRuleId,
+      @RequestParam(defaultValue = "PLANNER") EstimateMethod method) {
+    return actionRuleRepository
+        .findById(actionRuleId)
+        .map(actionRule -> ResponseEntity.ok(actionRuleEstimator.estimate(actionRule, method)))
+        .orElse(ResponseEntity.notFound().build());
+  }
+
+  @GetMapping("/actionPlans/{actionPlanId}")
+  public ResponseEntity<ActionPlanForecast> forecastActionPlan(
+      @PathVariable UUID actionPlanId,
+      @RequestParam(defaultValue = "PLANNER") EstimateMethod method) {
+    if (!actionPlanRepository.existsById(actionPlanId)) {
+      return ResponseEntity.notFound().build();
+    }
+
+    List<ActionRule> actionRules =
+        actionRuleRepository.findByActionPlanIdOrderByTriggerDateTime(actionPlanId);
+    return ResponseEntity.ok(actionRuleEstimator.forecast(actionPlanId, actionRules, method));
+  }
+}
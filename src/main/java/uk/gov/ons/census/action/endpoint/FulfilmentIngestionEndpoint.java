@@ -0,0 +1,41 @@
+package uk.gov.ons.census.action.endpoint;
+
+import java.io.InputStream;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import uk.gov.ons.census.action.model.dto.FulfilmentIngestion;
+import uk.gov.ons.census.action.schedule.FulfilmentIngester;
+
+/*
+ Takes fulfilments in bulk as a stream of NDJSON records or of CSV rows under a header, for
+ loading at a rate that one insert per fulfilment can't reach. The request body is read as it
+ arrives, never held in memory whole. Either all of a request's fulfilments are ingested, bar
+ those whose case isn't found, or none are.
+*/
+@RestController
+@RequestMapping("/bulk")
+public class FulfilmentIngestionEndpoint {
+  private final FulfilmentIngester fulfilmentIngester;
+
+  public FulfilmentIngestionEndpoint(FulfilmentIngester fulfilmentIngester) {
+    this.fulfilmentIngester = fulfilmentIngester;
+  }
+
+  @PostMapping(value = "/fulfilments", consumes = "application/x-ndjson")
+  public FulfilmentIngestion ingestNdjson(InputStream body) {
+    return fulfilmentIngester.ingestNdjson(body);
+  }
+
+  @PostMapping(value = "/fulfilments", consumes = "text/csv")
+  public FulfilmentIngestion ingestCsv(InputStream body) {
+    return fulfilmentIngester.ingestCsv(body);
+  }
+
+  @ExceptionHandler(IllegalArgumentException.class)
+  public ResponseEntity<String> rejectFulfilments(IllegalArgumentException e) {
+    return ResponseEntity.badRequest().body(e.getMessage());
+  }
+}
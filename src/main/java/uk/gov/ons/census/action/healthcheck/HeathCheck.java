@@ -12,11 +12,22 @@ import org.springframework.stereotype.Component;
 
 @Component
 public class HeathCheck {
+  private final SchedulerWatchdog schedulerWatchdog;
+
   @Value("${healthcheck.filename}")
   private String fileName;
 
+  public HeathCheck(SchedulerWatchdog schedulerWatchdog) {
+    this.schedulerWatchdog = schedulerWatchdog;
+  }
+
+  // A stuck scheduler stops touching the file, so the liveness probe fails and it is restarted
   @Scheduled(fixedDelayString = "${healthcheck.frequency}")
   public void updateFileWithCurrentTimestamp() {
+    if (schedulerWatchdog.isStuck()) {
+      return;
+    }
+
     Path path = Paths.get(fileName);
     LocalDateTime now = LocalDateTime.now();
 
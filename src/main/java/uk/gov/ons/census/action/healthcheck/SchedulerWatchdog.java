@@ -0,0 +1,198 @@
+package uk.gov.ons.census.action.healthcheck;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/*
+ Watches that the scheduler is making progress, not just that the process is up. Every action rule
+ and fulfilment batch is tracked while it runs, the action rule poll beats on every pass, and the
+ statements this node has running on the database are checked for age. Anything running longer
+ than the degraded threshold reports DEGRADED. A run that has gone longer than the stuck threshold
+ without progress reports DOWN, which also stops HeathCheck touching the liveness file so the node
+ gets restarted. Runs that work through a chunk or a page at a time report progress after each
+ one, so a large rule that is still moving is never taken for a stuck one. A run of one statement
+ only progresses by finishing.
+*/
+@Component
+public class SchedulerWatchdog implements HealthIndicator {
+  private static final Logger log = LoggerFactory.getLogger(SchedulerWatchdog.class);
+  static final Status DEGRADED = new Status("DEGRADED");
+  private static final List<Status> SEVERITY = List.of(Status.DOWN, DEGRADED, Status.UP);
+  private static final int QUERY_TEXT_LENGTH = 200;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final Duration pollInterval;
+  private final Duration degradedAfter;
+  private final Duration stuckAfter;
+  private final Duration statementCeiling;
+  private final Map<String, InFlightRun> inFlightRuns = new ConcurrentHashMap<>();
+  private volatile Instant lastHeartbeat = Instant.now();
+  private volatile List<RunningStatement> runningStatements = List.of();
+
+  public SchedulerWatchdog(
+      JdbcTemplate jdbcTemplate,
+      @Value("${scheduler.frequency}") long pollIntervalMillis,
+      @Value("${healthcheck.watchdog.degraded}") long degradedMillis,
+      @Value("${healthcheck.watchdog.stuck}") long stuckMillis,
+      @Value("${healthcheck.watchdog.statementceiling}") long statementCeilingMillis) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.pollInterval = Duration.ofMillis(pollIntervalMillis);
+    this.degradedAfter = Duration.ofMillis(degradedMillis);
+    this.stuckAfter = Duration.ofMillis(stuckMillis);
+    this.statementCeiling = Duration.ofMillis(statementCeilingMillis);
+  }
+
+  public void heartbeat() {
+    lastHeartbeat = Instant.now();
+  }
+
+  public void startRun(String run) {
+    inFlightRuns.put(run, new InFlightRun(Instant.now()));
+  }
+
+  public void progress(String run) {
+    InFlightRun inFlightRun = inFlightRuns.get(run);
+    if (inFlightRun != null) {
+      inFlightRun.setLastProgress(Instant.now());
+    }
+  }
+
+  public void finishRun(String run) {
+    inFlightRuns.remove(run);
+  }
+
+  public static String actionRuleRun(UUID actionRuleId) {
+    return "actionRule " + actionRuleId;
+  }
+
+  /*
+   Only statements on connections with this node's application_name are looked at, so other
+   nodes and other services sharing the database are left alone. A statement past the ceiling is
+   cancelled, which fails the transaction it belongs to.
+  */
+  @Scheduled(fixedDelayString = "${healthcheck.watchdog.frequency}")
+  public void checkRunningStatements() {
+    List<RunningStatement> statements =
+        jdbcTemplate.query(
+            "SELECT pid, (EXTRACT(EPOCH FROM now() - query_start) * 1000)::bigint, left(query, ?) "
+                + "FROM pg_stat_activity WHERE state = 'active' AND pid <> pg_backend_pid() "
+                + "AND application_name = current_setting('application_name')",
+            (resultSet, rowNum) ->
+                new RunningStatement(
+                    resultSet.getInt(1),
+                    Duration.ofMillis(resultSet.getLong(2)),
+                    resultSet.getString(3)),
+            QUERY_TEXT_LENGTH);
+
+    if (!statementCeiling.isZero()) {
+      for (RunningStatement statement : statements) {
+        if (statement.getAge().compareTo(statementCeiling) > 0) {
+          log.with("pid", statement.getPid())
+              .with("age_seconds", statement.getAge().toSeconds())
+              .with("query", statement.getQuery())
+              .warn("Cancelling statement running past the ceiling");
+          jdbcTemplate.queryForObject(
+              "SELECT pg_cancel_backend(?)", Boolean.class, statement.getPid());
+        }
+      }
+    }
+
+    runningStatements = statements;
+  }
+
+  @Override
+  public Health health() {
+    Instant now = Instant.now();
+
+    // The poll is only late once it has missed its own interval as well
+    Duration sinceHeartbeat = Duration.between(lastHeartbeat, now);
+    Status status = statusFor(sinceHeartbeat.minus(pollInterval));
+
+    Map<String, Map<String, Long>> runs = new LinkedHashMap<>();
+    for (Map.Entry<String, InFlightRun> inFlightRun : inFlightRuns.entrySet()) {
+      Duration age = Duration.between(inFlightRun.getValue().getStarted(), now);
+      Duration sinceProgress = Duration.between(inFlightRun.getValue().getLastProgress(), now);
+      status = worst(status, worst(degradedFor(age), statusFor(sinceProgress)));
+      runs.put(
+          inFlightRun.getKey(),
+          Map.of("ageSeconds", age.toSeconds(), "secondsSinceProgress", sinceProgress.toSeconds()));
+    }
+
+    // A long statement is only a sign of trouble, its run goes DOWN if it stops progressing
+    List<RunningStatement> statements = runningStatements;
+    for (RunningStatement statement : statements) {
+      status = worst(status, degradedFor(statement.getAge()));
+    }
+
+    return Health.status(status)
+        .withDetail("secondsSinceHeartbeat", sinceHeartbeat.toSeconds())
+        .withDetail("inFlightRuns", runs)
+        .withDetail(
+            "runningStatements",
+            statements.stream()
+                .map(
+                    statement ->
+                        Map.of(
+                            "pid", statement.getPid(),
+                            "ageSeconds", statement.getAge().toSeconds(),
+                            "query", statement.getQuery()))
+                .collect(Collectors.toList()))
+        .build();
+  }
+
+  public boolean isStuck() {
+    return Status.DOWN.equals(health().getStatus());
+  }
+
+  private Status statusFor(Duration age) {
+    if (age.compareTo(stuckAfter) >= 0) {
+      return Status.DOWN;
+    }
+    if (age.compareTo(degradedAfter) >= 0) {
+      return DEGRADED;
+    }
+    return Status.UP;
+  }
+
+  private Status degradedFor(Duration age) {
+    return age.compareTo(degradedAfter) >= 0 ? DEGRADED : Status.UP;
+  }
+
+  private static Status worst(Status first, Status second) {
+    return SEVERITY.indexOf(first) <= SEVERITY.indexOf(second) ? first : second;
+  }
+
+  @Data
+  private static class InFlightRun {
+    private final Instant started;
+    private volatile Instant lastProgress;
+
+    private InFlightRun(Instant started) {
+      this.started = started;
+      this.lastProgress = started;
+    }
+  }
+
+  @Data
+  private static class RunningStatement {
+    private final int pid;
+    private final Duration age;
+    private final String query;
+  }
+}
@@ -0,0 +1,15 @@
+package uk.gov.ons.census.action.model.dto;
+
+import java.util.List;
+import java.util.UUID;
+import lombok.Data;
+
+@Data
+public class ActionPlanForecast {
+  private UUID actionPlanId;
+  private EstimateMethod method;
+  private long totalCases;
+  private long totalVolume;
+  private List<ActionRuleEstimate> timeline;
+  private List<ForecastVolume> volumes;
+}
@@ -0,0 +1,13 @@
+package uk.gov.ons.census.action.model.dto;
+
+import java.util.List;
+import java.util.UUID;
+import lombok.Data;
+
+@Data
+public class ActionPlanLoad {
+  private UUID actionPlanId;
+  private int actionRules;
+  private List<UUID> unchangedActionRuleIds;
+  private long elapsedMillis;
+}
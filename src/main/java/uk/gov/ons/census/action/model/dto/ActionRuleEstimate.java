@@ -0,0 +1,19 @@
+package uk.gov.ons.census.action.model.dto;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import lombok.Data;
+import uk.gov.ons.census.action.model.entity.ActionType;
+
+@Data
+public class ActionRuleEstimate {
+  private UUID actionRuleId;
+  private ActionType actionType;
+  private String packCode;
+  private OffsetDateTime triggerDateTime;
+  private Boolean hasTriggered;
+  private EstimateMethod method;
+  private long cases;
+  private long volume;
+  private long elapsedMillis;
+}
@@ -0,0 +1,16 @@
+package uk.gov.ons.census.action.model.dto;
+
+import java.util.List;
+import java.util.UUID;
+import lombok.Data;
+import uk.gov.ons.census.action.model.entity.ActionType;
+
+@Data
+public class CaseBatchMessage {
+  private UUID batchId;
+  private UUID actionRuleId;
+  private ActionType actionType;
+  private String packCode;
+  private int batchQuantity;
+  private List<EnqueuedCase> cases;
+}
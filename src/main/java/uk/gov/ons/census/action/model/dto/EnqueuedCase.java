@@ -0,0 +1,11 @@
+package uk.gov.ons.census.action.model.dto;
+
+import java.util.UUID;
+import lombok.Data;
+
+@Data
+public class EnqueuedCase {
+  private UUID caseId;
+  private long caseRef;
+  private Integer ceExpectedCapacity;
+}
@@ -0,0 +1,10 @@
+package uk.gov.ons.census.action.model.dto;
+
+public enum EstimateMethod {
+  // The row estimate from the query plan, which only reads planner statistics
+  PLANNER,
+  // A count over a sample of the pages of the cases table, scaled up
+  SAMPLE,
+  // Runs the classifier query, as slow as triggering the rule but exact
+  EXACT
+}
@@ -0,0 +1,15 @@
+package uk.gov.ons.census.action.model.dto;
+
+import java.time.LocalDate;
+import lombok.Data;
+import uk.gov.ons.census.action.model.entity.ActionType;
+
+@Data
+public class ForecastVolume {
+  private LocalDate triggerDate;
+  private ActionType actionType;
+  private String packCode;
+  private int actionRules;
+  private long cases;
+  private long volume;
+}
@@ -0,0 +1,11 @@
+package uk.gov.ons.census.action.model.dto;
+
+import lombok.Data;
+
+@Data
+public class FulfilmentIngestion {
+  private long received;
+  private long ingested;
+  private long unmatched;
+  private long elapsedMillis;
+}
@@ -0,0 +1,25 @@
+package uk.gov.ons.census.action.model.dto;
+
+import java.util.UUID;
+import lombok.Data;
+import uk.gov.ons.census.action.model.entity.FulfilmentType;
+
+// A fulfilment as it is ingested, naming its case by case id rather than case ref
+@Data
+public class FulfilmentRecord {
+  private UUID caseId;
+  private String fulfilmentCode;
+  private FulfilmentType fulfilmentType;
+  private String addressLine1;
+  private String addressLine2;
+  private String addressLine3;
+  private String townName;
+  private String postcode;
+  private String title;
+  private String forename;
+  private String surname;
+  private String fieldCoordinatorId;
+  private String fieldOfficerId;
+  private String organisationName;
+  private Integer quantity;
+}
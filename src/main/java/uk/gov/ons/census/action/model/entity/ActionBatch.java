@@ -0,0 +1,41 @@
+package uk.gov.ons.census.action.model.entity;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import lombok.Data;
+
+@Data
+@Entity
+public class ActionBatch {
+
+  @Id private UUID batchId;
+
+  @ManyToOne
+  @JoinColumn(nullable = false)
+  private ActionRule actionRule;
+
+  @Column(nullable = false)
+  private int quantity;
+
+  @Column(nullable = false, columnDefinition = "timestamp with time zone")
+  private OffsetDateTime createdDateTime;
+
+  @Column(nullable = false)
+  private long lastPublishedId;
+
+  @Column(columnDefinition = "timestamp with time zone")
+  private OffsetDateTime publishedDateTime;
+
+  @Column(columnDefinition = "timestamp with time zone")
+  private OffsetDateTime exportedDateTime;
+
+  @Column private String leaseOwner;
+
+  @Column(columnDefinition = "timestamp with time zone")
+  private OffsetDateTime leaseExpiry;
+}
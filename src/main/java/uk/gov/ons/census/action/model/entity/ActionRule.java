@@ -1,5 +1,6 @@
 package uk.gov.ons.census.action.model.entity;
 
+import com.vladmihalcea.hibernate.type.json.JsonBinaryType;
 import java.time.OffsetDateTime;
 import java.util.UUID;
 import javax.persistence.Column;
@@ -11,9 +12,12 @@ import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
 import lombok.Data;
 import org.hibernate.annotations.Type;
+import org.hibernate.annotations.TypeDef;
+import org.hibernate.annotations.TypeDefs;
 
 @Entity
 @Data
+@TypeDefs({@TypeDef(name = "jsonb", typeClass = JsonBinaryType.class)})
 public class ActionRule {
 
   @Id private UUID id;
@@ -29,16 +33,33 @@ public class ActionRule {
 
   @Column private Boolean hasTriggered;
 
+  @Column(columnDefinition = "timestamp with time zone")
+  private OffsetDateTime slaDeadline;
+
+  @Column private String leaseOwner;
+
+  @Column(columnDefinition = "timestamp with time zone")
+  private OffsetDateTime leaseExpiry;
+
+  @Type(type = "jsonb")
+  @Column(columnDefinition = "jsonb")
+  private Classifier classifiers;
+
+  @Type(type = "jsonb")
+  @Column(columnDefinition = "jsonb")
+  private ExecutionProfile executionProfile;
+
+  // Raw SQL classifiers from before the classifiers column, only used when classifiers is null
   @Lob
   @Type(type = "org.hibernate.type.BinaryType")
-  @Column(nullable = false)
+  @Column
   private byte[] classifiersClause;
 
   public void setClassifiersClause(String classifierClauseStr) {
-    classifiersClause = classifierClauseStr.getBytes();
+    classifiersClause = classifierClauseStr == null ? null : classifierClauseStr.getBytes();
   }
 
   public String getClassifiersClause() {
-    return new String(classifiersClause);
+    return classifiersClause == null ? null : new String(classifiersClause);
   }
 }
@@ -0,0 +1,24 @@
+package uk.gov.ons.census.action.model.entity;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import lombok.Data;
+
+@Data
+@Entity
+public class ActionRuleCheckpoint {
+
+  @Id private UUID actionRuleId;
+
+  @Column(nullable = false)
+  private UUID batchId;
+
+  @Column(nullable = false)
+  private long lastCaseRef;
+
+  @Column(columnDefinition = "timestamp with time zone")
+  private OffsetDateTime lastUpdated;
+}
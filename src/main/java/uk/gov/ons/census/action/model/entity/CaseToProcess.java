@@ -6,6 +6,7 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import lombok.Data;
 
@@ -20,12 +21,14 @@ public class CaseToProcess {
 
   @ManyToOne private Case caze;
 
-  @ManyToOne private ActionRule actionRule;
+  @ManyToOne
+  @JoinColumn(nullable = false) // The table is partitioned by action rule
+  private ActionRule actionRule;
 
   @Column private UUID batchId;
 
-  @Column(nullable = false)
-  private int batchQuantity;
+  // Only set on rows enqueued before action_batch, the quantity is on the batch header now
+  @Column private Integer batchQuantity;
 
   @Column private Integer ceExpectedCapacity;
 }
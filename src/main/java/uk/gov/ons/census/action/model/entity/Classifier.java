@@ -0,0 +1,17 @@
+package uk.gov.ons.census.action.model.entity;
+
+import java.util.List;
+import lombok.Data;
+
+@Data
+public class Classifier {
+
+  private ClassifierOperator operator;
+
+  // For comparisons
+  private ClassifierField field;
+  private List<String> values;
+
+  // For AND, OR and NOT
+  private List<Classifier> classifiers;
+}
@@ -0,0 +1,48 @@
+package uk.gov.ons.census.action.model.entity;
+
+public enum ClassifierField {
+  CASE_TYPE("case_type"),
+  ADDRESS_TYPE("address_type"),
+  ADDRESS_LEVEL("address_level"),
+  ESTAB_TYPE("estab_type"),
+  ABP_CODE("abp_code"),
+  TREATMENT_CODE("treatment_code"),
+  REGION("region"),
+  LAD("lad"),
+  MSOA("msoa"),
+  LSOA("lsoa"),
+  OA("oa"),
+  HTC_WILLINGNESS("htc_willingness"),
+  HTC_DIGITAL("htc_digital"),
+  PRINT_BATCH("print_batch"),
+  FIELD_COORDINATOR_ID("field_coordinator_id"),
+  FIELD_OFFICER_ID("field_officer_id"),
+  CE_EXPECTED_CAPACITY("ce_expected_capacity", "integer"),
+  CE_ACTUAL_RESPONSES("ce_actual_responses", "integer"),
+  HAND_DELIVERY("hand_delivery", "boolean"),
+  SURVEY_LAUNCHED("survey_launched", "boolean"),
+  // Metadata keys, extracted into generated columns by the V11 migration so they can be indexed
+  METADATA_SECURE_ESTABLISHMENT("metadata_secure_establishment", "boolean"),
+  METADATA_CHANNEL("metadata_channel"),
+  METADATA_NON_COMPLIANCE("metadata_non_compliance");
+
+  private final String column;
+  private final String sqlType;
+
+  ClassifierField(String column) {
+    this(column, "text");
+  }
+
+  ClassifierField(String column, String sqlType) {
+    this.column = column;
+    this.sqlType = sqlType;
+  }
+
+  public String getColumn() {
+    return column;
+  }
+
+  public String getSqlType() {
+    return sqlType;
+  }
+}
@@ -0,0 +1,23 @@
+package uk.gov.ons.census.action.model.entity;
+
+public enum ClassifierOperator {
+  AND(true),
+  OR(true),
+  NOT(true),
+  IN(false),
+  NOT_IN(false),
+  GREATER_THAN(false),
+  LESS_THAN(false),
+  IS_NULL(false),
+  IS_NOT_NULL(false);
+
+  private final boolean logical;
+
+  ClassifierOperator(boolean logical) {
+    this.logical = logical;
+  }
+
+  public boolean isLogical() {
+    return logical;
+  }
+}
@@ -0,0 +1,18 @@
+package uk.gov.ons.census.action.model.entity;
+
+import lombok.Data;
+
+/*
+ Session settings a rule's enqueue runs under. Anything left null is inherited, from the profile
+ for the rule's action type and then from the defaults.
+*/
+@Data
+public class ExecutionProfile {
+
+  // 0 for no limit
+  private Integer statementTimeoutMillis;
+  private Integer lockTimeoutMillis;
+
+  private Integer workMemKb;
+  private Integer maxParallelWorkersPerGather;
+}
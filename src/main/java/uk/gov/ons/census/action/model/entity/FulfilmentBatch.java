@@ -0,0 +1,24 @@
+package uk.gov.ons.census.action.model.entity;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import lombok.Data;
+
+@Data
+@Entity
+public class FulfilmentBatch {
+
+  @Id private UUID batchId;
+
+  @Column(nullable = false)
+  private String fulfilmentCode;
+
+  @Column(nullable = false)
+  private int quantity;
+
+  @Column(columnDefinition = "timestamp with time zone")
+  private OffsetDateTime createdDateTime;
+}
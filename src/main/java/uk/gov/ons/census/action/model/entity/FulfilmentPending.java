@@ -0,0 +1,20 @@
+package uk.gov.ons.census.action.model.entity;
+
+import java.time.OffsetDateTime;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import lombok.Data;
+
+@Data
+@Entity
+public class FulfilmentPending {
+
+  @Id private String fulfilmentCode;
+
+  @Column(nullable = false)
+  private long pendingCount;
+
+  @Column(columnDefinition = "timestamp with time zone")
+  private OffsetDateTime oldestPending;
+}
@@ -1,12 +1,12 @@
 package uk.gov.ons.census.action.model.repository;
 
-import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.UUID;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.rest.core.annotation.RestResource;
 import uk.gov.ons.census.action.model.entity.ActionRule;
 
 public interface ActionRuleRepository extends JpaRepository<ActionRule, UUID> {
-  List<ActionRule> findByTriggerDateTimeBeforeAndHasTriggeredIsFalse(
-      OffsetDateTime triggerDateTime);
+  @RestResource(exported = false)
+  List<ActionRule> findByActionPlanIdOrderByTriggerDateTime(UUID actionPlanId);
 }
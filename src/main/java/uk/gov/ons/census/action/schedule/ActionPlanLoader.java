@@ -0,0 +1,130 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import uk.gov.ons.census.action.model.dto.ActionPlanLoad;
+import uk.gov.ons.census.action.model.entity.ActionPlan;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+
+/*
+ Inserts or updates an action plan and all of its rules in one transaction, sending the rules to
+ the database batchsize at a time rather than saving them one by one. A rule that has already
+ triggered, belongs to another plan, is leased to a node that may be enqueueing it or is part way
+ through a chunked enqueue is left as it is and reported as unchanged, so a running rule's
+ classifiers never change under it. Rules of the plan that aren't in the load are left alone too.
+ Every rule written notifies the calendars through the action_rule_changed trigger when the load
+ commits, so they need telling nothing.
+*/
+@Component
+public class ActionPlanLoader {
+  private static final Logger log = LoggerFactory.getLogger(ActionPlanLoader.class);
+
+  static final String UPSERT_ACTION_PLAN_SQL =
+      "INSERT INTO actionv2.action_plan (id, name, description) VALUES (?, ?, ?) "
+          + "ON CONFLICT (id) DO UPDATE SET name = EXCLUDED.name, "
+          + "description = EXCLUDED.description";
+  static final String UPSERT_ACTION_RULE_SQL =
+      "INSERT INTO actionv2.action_rule (id, action_plan_id, action_type, trigger_date_time, "
+          + "sla_deadline, classifiers, classifiers_clause, execution_profile, has_triggered) "
+          + "VALUES (?, ?, ?, ?, ?, CAST(? AS jsonb), ?, CAST(? AS jsonb), false) "
+          + "ON CONFLICT (id) DO UPDATE SET action_type = EXCLUDED.action_type, "
+          + "trigger_date_time = EXCLUDED.trigger_date_time, "
+          + "sla_deadline = EXCLUDED.sla_deadline, classifiers = EXCLUDED.classifiers, "
+          + "classifiers_clause = EXCLUDED.classifiers_clause, "
+          + "execution_profile = EXCLUDED.execution_profile, cancelled_count = 0, "
+          + "retry_after = NULL "
+          + "WHERE action_rule.has_triggered = false "
+          + "AND action_rule.action_plan_id = EXCLUDED.action_plan_id "
+          + "AND action_rule.lease_owner IS NULL "
+          + "AND NOT EXISTS (SELECT 1 FROM actionv2.action_rule_checkpoint k "
+          + "WHERE k.action_rule_id = action_rule.id)";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ObjectMapper objectMapper;
+  private final int batchSize;
+
+  public ActionPlanLoader(
+      JdbcTemplate jdbcTemplate,
+      ObjectMapper objectMapper,
+      @Value("${bulkload.batchsize}") int batchSize) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.objectMapper = objectMapper;
+    this.batchSize = batchSize;
+  }
+
+  @Transactional
+  public ActionPlanLoad load(ActionPlan actionPlan) {
+    long start = System.currentTimeMillis();
+    UUID actionPlanId = actionPlan.getId();
+    List<ActionRule> actionRules = actionPlan.getActionRules();
+
+    jdbcTemplate.update(
+        UPSERT_ACTION_PLAN_SQL, actionPlanId, actionPlan.getName(), actionPlan.getDescription());
+
+    int[][] updateCounts =
+        jdbcTemplate.batchUpdate(
+            UPSERT_ACTION_RULE_SQL,
+            actionRules,
+            batchSize,
+            (statement, actionRule) -> {
+              statement.setObject(1, actionRule.getId());
+              statement.setObject(2, actionPlanId);
+              statement.setString(3, actionRule.getActionType().name());
+              statement.setObject(4, actionRule.getTriggerDateTime());
+              statement.setObject(5, actionRule.getSlaDeadline());
+              statement.setString(6, toJson(actionRule.getClassifiers()));
+              statement.setBytes(
+                  7,
+                  actionRule.getClassifiersClause() == null
+                      ? null
+                      : actionRule.getClassifiersClause().getBytes());
+              statement.setString(8, toJson(actionRule.getExecutionProfile()));
+            });
+
+    // The counts come back batch by batch, in the order the rules were sent
+    List<UUID> unchangedActionRuleIds = new ArrayList<>();
+    int rule = 0;
+    for (int[] batch : updateCounts) {
+      for (int updateCount : batch) {
+        if (updateCount == 0) {
+          unchangedActionRuleIds.add(actionRules.get(rule).getId());
+        }
+        rule++;
+      }
+    }
+
+    ActionPlanLoad load = new ActionPlanLoad();
+    load.setActionPlanId(actionPlanId);
+    load.setActionRules(actionRules.size() - unchangedActionRuleIds.size());
+    load.setUnchangedActionRuleIds(unchangedActionRuleIds);
+    load.setElapsedMillis(System.currentTimeMillis() - start);
+
+    log.with("action_plan_id", actionPlanId)
+        .with("action_rules", load.getActionRules())
+        .with("unchanged_action_rules", unchangedActionRuleIds.size())
+        .with("elapsed_millis", load.getElapsedMillis())
+        .info("Action plan loaded");
+    return load;
+  }
+
+  private String toJson(Object value) {
+    if (value == null) {
+      return null;
+    }
+
+    try {
+      return objectMapper.writeValueAsString(value);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Could not write action rule as JSON", e);
+    }
+  }
+}
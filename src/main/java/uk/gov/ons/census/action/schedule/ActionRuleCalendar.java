@@ -0,0 +1,153 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/*
+ In memory calendar of the action rules that have not yet triggered. A single thread sleeps until
+ the next rule is due and then asks the triggerer to claim it, so there is no database traffic
+ while nothing is due. The calendar is kept up to date by ActionRuleChangeListener and reconciled
+ against the action_rule table by the safety poll in ActionRuleScheduler.
+*/
+@Component
+@ConditionalOnProperty(name = "scheduler.calendar.enabled", havingValue = "true")
+public class ActionRuleCalendar {
+  private static final Logger log = LoggerFactory.getLogger(ActionRuleCalendar.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ActionRuleTriggerer actionRuleTriggerer;
+  private final DelayQueue<UpcomingActionRule> upcomingActionRules = new DelayQueue<>();
+  private final Map<UUID, Instant> triggerTimes = new ConcurrentHashMap<>();
+
+  private volatile boolean running;
+  private Thread dispatcher;
+
+  public ActionRuleCalendar(JdbcTemplate jdbcTemplate, ActionRuleTriggerer actionRuleTriggerer) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.actionRuleTriggerer = actionRuleTriggerer;
+  }
+
+  @PostConstruct
+  public void start() {
+    running = true;
+    dispatcher = new Thread(this::dispatch, "action-rule-calendar");
+    dispatcher.start();
+  }
+
+  @PreDestroy
+  public void stop() {
+    running = false;
+    if (dispatcher != null) {
+      dispatcher.interrupt();
+    }
+  }
+
+  public void schedule(UUID actionRuleId, Instant triggerTime) {
+    Instant previousTriggerTime = triggerTimes.put(actionRuleId, triggerTime);
+
+    // Entries for a superseded trigger time are left in the queue and skipped when they come due
+    if (!triggerTime.equals(previousTriggerTime)) {
+      upcomingActionRules.add(new UpcomingActionRule(actionRuleId, triggerTime));
+    }
+  }
+
+  public void unschedule(UUID actionRuleId) {
+    triggerTimes.remove(actionRuleId);
+  }
+
+  // A rule held back after being cancelled is due again at its retry_after, if it is ever retried
+  public void reload() {
+    Map<UUID, Instant> untriggeredActionRules = new HashMap<>();
+    jdbcTemplate.query(
+        "SELECT id, GREATEST(trigger_date_time, retry_after) FROM actionv2.action_rule "
+            + "WHERE has_triggered = false AND (retry_after IS NULL OR retry_after < 'infinity')",
+        resultSet -> {
+          OffsetDateTime triggerDateTime = resultSet.getObject(2, OffsetDateTime.class);
+          if (triggerDateTime != null) {
+            untriggeredActionRules.put(
+                resultSet.getObject(1, UUID.class), ceilToMillis(triggerDateTime.toInstant()));
+          }
+        });
+
+    triggerTimes.keySet().retainAll(untriggeredActionRules.keySet());
+    untriggeredActionRules.forEach(this::schedule);
+  }
+
+  int size() {
+    return triggerTimes.size();
+  }
+
+  // Never wake before the rule is due, or the claim would miss it until the next safety poll
+  static Instant ceilToMillis(Instant instant) {
+    Instant truncated = instant.truncatedTo(ChronoUnit.MILLIS);
+    return truncated.equals(instant) ? truncated : truncated.plusMillis(1);
+  }
+
+  private void dispatch() {
+    while (running) {
+      try {
+        UpcomingActionRule dueActionRule = upcomingActionRules.take();
+        if (!triggerTimes.remove(dueActionRule.getActionRuleId(), dueActionRule.getTriggerTime())) {
+          continue;
+        }
+
+        // Anything else due by now will be picked up by the same claim
+        UpcomingActionRule alsoDue;
+        while ((alsoDue = upcomingActionRules.poll()) != null) {
+          triggerTimes.remove(alsoDue.getActionRuleId(), alsoDue.getTriggerTime());
+        }
+
+        actionRuleTriggerer.triggerActionRules();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        log.error("Unexpected exception while triggering action rules from calendar", e);
+      }
+    }
+  }
+
+  private static class UpcomingActionRule implements Delayed {
+    private final UUID actionRuleId;
+    private final Instant triggerTime;
+
+    UpcomingActionRule(UUID actionRuleId, Instant triggerTime) {
+      this.actionRuleId = actionRuleId;
+      this.triggerTime = triggerTime;
+    }
+
+    UUID getActionRuleId() {
+      return actionRuleId;
+    }
+
+    Instant getTriggerTime() {
+      return triggerTime;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(
+          triggerTime.toEpochMilli() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return triggerTime.compareTo(((UpcomingActionRule) other).triggerTime);
+    }
+  }
+}
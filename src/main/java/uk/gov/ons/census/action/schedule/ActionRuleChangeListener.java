@@ -0,0 +1,112 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.UUID;
+import javax.annotation.PreDestroy;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/*
+ Keeps the ActionRuleCalendar current by listening for the notifications sent by the
+ action_rule_changed trigger, which is created by the V2 migration. The listening connection is
+ opened outside the Hikari pool because it is held for the lifetime of the application.
+*/
+@Component
+@ConditionalOnProperty(name = "scheduler.calendar.enabled", havingValue = "true")
+public class ActionRuleChangeListener {
+  private static final Logger log = LoggerFactory.getLogger(ActionRuleChangeListener.class);
+  private static final String CHANNEL = "action_rule_changed"; // Must match the V2 migration
+  private static final int NOTIFICATION_WAIT_MILLIS = 1000;
+
+  private final DataSourceProperties dataSourceProperties;
+  private final ActionRuleCalendar actionRuleCalendar;
+
+  @Value("${scheduler.calendar.reconnect}")
+  private long reconnectMillis;
+
+  private volatile boolean running;
+  private Thread listener;
+
+  public ActionRuleChangeListener(
+      DataSourceProperties dataSourceProperties, ActionRuleCalendar actionRuleCalendar) {
+    this.dataSourceProperties = dataSourceProperties;
+    this.actionRuleCalendar = actionRuleCalendar;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    running = true;
+    listener = new Thread(this::listen, "action-rule-listener");
+    listener.start();
+  }
+
+  @PreDestroy
+  public void stop() {
+    running = false;
+    if (listener != null) {
+      listener.interrupt();
+    }
+  }
+
+  private void listen() {
+    while (running) {
+      try (Connection connection =
+          DriverManager.getConnection(
+              dataSourceProperties.determineUrl(),
+              dataSourceProperties.determineUsername(),
+              dataSourceProperties.determinePassword())) {
+        try (Statement statement = connection.createStatement()) {
+          statement.execute("LISTEN " + CHANNEL);
+        }
+
+        // Pick up anything that changed while we weren't listening
+        actionRuleCalendar.reload();
+        log.with("action_rules", actionRuleCalendar.size()).info("Action rule calendar loaded");
+
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        while (running) {
+          PGNotification[] notifications = pgConnection.getNotifications(NOTIFICATION_WAIT_MILLIS);
+          if (notifications != null) {
+            for (PGNotification notification : notifications) {
+              handleNotification(notification.getParameter());
+            }
+          }
+        }
+      } catch (Exception e) {
+        if (!running) {
+          return;
+        }
+
+        log.error("Lost action rule notification connection, reconnecting", e);
+        try {
+          Thread.sleep(reconnectMillis);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  void handleNotification(String payload) {
+    String[] fields = payload.split(",", -1);
+    UUID actionRuleId = UUID.fromString(fields[0]);
+
+    if (fields[1].isEmpty() || Boolean.parseBoolean(fields[2])) {
+      actionRuleCalendar.unschedule(actionRuleId);
+    } else {
+      actionRuleCalendar.schedule(actionRuleId, Instant.ofEpochMilli(Long.parseLong(fields[1])));
+    }
+  }
+}
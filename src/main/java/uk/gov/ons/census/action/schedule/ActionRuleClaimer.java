@@ -0,0 +1,195 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
+
+/*
+ Hands out due action rules to this node under a time limited lease, so that several replicas can
+ share the rules without two of them ever running the same one. Leases are renewed while a rule
+ is being processed; a rule whose lease has expired (because its node died) is claimed again.
+*/
+@Component
+public class ActionRuleClaimer {
+  private static final Logger log = LoggerFactory.getLogger(ActionRuleClaimer.class);
+  private static final String CLAIM_SQL =
+      "UPDATE actionv2.action_rule SET lease_owner = ?, lease_expiry = ? WHERE id IN "
+          + "(SELECT id FROM actionv2.action_rule WHERE trigger_date_time <= ? "
+          + "AND has_triggered = false AND (lease_expiry IS NULL OR lease_expiry < ?) "
+          + "AND (retry_after IS NULL OR retry_after <= ?) "
+          + "ORDER BY trigger_date_time LIMIT ? FOR UPDATE SKIP LOCKED) RETURNING id";
+  private static final String CLAIM_PRIORITISED_SQL =
+      "UPDATE actionv2.action_rule SET lease_owner = ?, lease_expiry = ? WHERE id IN "
+          + "(SELECT id FROM actionv2.action_rule WHERE id = ANY(CAST(? AS uuid[])) "
+          + "AND trigger_date_time <= ? AND has_triggered = false "
+          + "AND (lease_expiry IS NULL OR lease_expiry < ?) "
+          + "AND (retry_after IS NULL OR retry_after <= ?) FOR UPDATE SKIP LOCKED) RETURNING id";
+
+  // The backoff doubles with every cancellation, the count in the CASE being the one before this
+  private static final String RECORD_CANCELLED_SQL =
+      "UPDATE actionv2.action_rule SET cancelled_count = cancelled_count + 1, retry_after = "
+          + "CASE WHEN cancelled_count + 1 >= ? THEN CAST('infinity' AS timestamp with time zone) "
+          + "ELSE now() + ? * power(2, cancelled_count) * interval '1 millisecond' END "
+          + "WHERE id = ? RETURNING cancelled_count";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ActionRuleRepository actionRuleRepo;
+  private final CatchUpPlanner catchUpPlanner;
+  private final String leaseOwner = UUID.randomUUID().toString();
+  private final Set<UUID> heldLeases = ConcurrentHashMap.newKeySet();
+
+  @Value("${scheduler.lease.duration}")
+  private long leaseDurationMillis;
+
+  @Value("${scheduler.lease.claimsize}")
+  private int claimSize;
+
+  @Value("${scheduler.cancelled.backoff}")
+  private long cancelledBackoffMillis;
+
+  @Value("${scheduler.cancelled.maxattempts}")
+  private int cancelledMaxAttempts;
+
+  public ActionRuleClaimer(
+      JdbcTemplate jdbcTemplate,
+      ActionRuleRepository actionRuleRepo,
+      CatchUpPlanner catchUpPlanner) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.actionRuleRepo = actionRuleRepo;
+    this.catchUpPlanner = catchUpPlanner;
+  }
+
+  /*
+   Claims the oldest due rules, unless there is a backlog, when CatchUpPlanner picks which rules
+   to claim. The rules come back in the order they should run.
+  */
+  @Transactional(propagation = Propagation.REQUIRES_NEW) // Leases must be visible straight away
+  public List<ActionRule> claimDueActionRules(int limit) {
+    OffsetDateTime now = OffsetDateTime.now();
+    OffsetDateTime leaseExpiry = now.plus(Duration.ofMillis(leaseDurationMillis));
+    int claimLimit = Math.min(limit, claimSize);
+    List<UUID> prioritisedIds = catchUpPlanner.prioritise(claimLimit, now);
+
+    List<UUID> claimedIds = Collections.emptyList();
+    try {
+      if (prioritisedIds == null) {
+        claimedIds =
+            jdbcTemplate.queryForList(
+                CLAIM_SQL, UUID.class, leaseOwner, leaseExpiry, now, now, now, claimLimit);
+      } else {
+        claimedIds =
+            jdbcTemplate.queryForList(
+                CLAIM_PRIORITISED_SQL,
+                UUID.class,
+                leaseOwner,
+                leaseExpiry,
+                prioritisedIds.stream().map(UUID::toString).toArray(String[]::new),
+                now,
+                now,
+                now);
+      }
+    } finally {
+      if (prioritisedIds != null) {
+        catchUpPlanner.claimed(prioritisedIds, claimedIds);
+      }
+    }
+
+    if (claimedIds.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    heldLeases.addAll(claimedIds);
+
+    List<UUID> order = prioritisedIds == null ? claimedIds : prioritisedIds;
+    List<ActionRule> claimedActionRules = new ArrayList<>(actionRuleRepo.findAllById(claimedIds));
+    claimedActionRules.sort(
+        Comparator.comparingInt(actionRule -> order.indexOf(actionRule.getId())));
+    return claimedActionRules;
+  }
+
+  /*
+   Called in the transaction that marks the rule as triggered. The row lock stops another node
+   claiming the rule between this check and our commit.
+  */
+  public void assertLeaseHeld(ActionRule actionRule) {
+    String currentOwner =
+        jdbcTemplate.queryForObject(
+            "SELECT lease_owner FROM actionv2.action_rule WHERE id = ? FOR UPDATE",
+            String.class,
+            actionRule.getId());
+
+    if (!leaseOwner.equals(currentOwner)) {
+      throw new IllegalStateException(
+          "Lease on action rule " + actionRule.getId() + " has been lost to another node");
+    }
+  }
+
+  /*
+   Holds a rule the database cancelled back from being claimed, for longer each time, and for good
+   once it has been cancelled maxattempts times. Called before its lease is released, so no other
+   node claims it in between.
+  */
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public void recordCancelled(ActionRule actionRule) {
+    Integer cancelledCount =
+        jdbcTemplate.queryForObject(
+            RECORD_CANCELLED_SQL,
+            Integer.class,
+            cancelledMaxAttempts,
+            cancelledBackoffMillis,
+            actionRule.getId());
+
+    log.with("action_rule_id", actionRule.getId())
+        .with("cancelled_count", cancelledCount)
+        .with("max_attempts", cancelledMaxAttempts)
+        .warn("Action rule held back after being cancelled");
+  }
+
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public void releaseLease(ActionRule actionRule) {
+    heldLeases.remove(actionRule.getId());
+    catchUpPlanner.released(actionRule.getId());
+    jdbcTemplate.update(
+        "UPDATE actionv2.action_rule SET lease_owner = NULL, lease_expiry = NULL "
+            + "WHERE id = ? AND lease_owner = ?",
+        actionRule.getId(),
+        leaseOwner);
+  }
+
+  @Scheduled(fixedDelayString = "${scheduler.lease.renewal}")
+  public void renewLeases() {
+    if (heldLeases.isEmpty()) {
+      return;
+    }
+
+    int renewed =
+        jdbcTemplate.update(
+            "UPDATE actionv2.action_rule SET lease_expiry = ? "
+                + "WHERE lease_owner = ? AND has_triggered = false",
+            OffsetDateTime.now().plus(Duration.ofMillis(leaseDurationMillis)),
+            leaseOwner);
+
+    if (renewed < heldLeases.size()) {
+      log.with("lease_owner", leaseOwner)
+          .with("held", heldLeases.size())
+          .with("renewed", renewed)
+          .warn("Some action rule leases could not be renewed");
+    }
+  }
+}
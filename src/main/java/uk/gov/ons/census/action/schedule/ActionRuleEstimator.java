@@ -0,0 +1,210 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.classifier.CaseSelection;
+import uk.gov.ons.census.action.model.dto.ActionPlanForecast;
+import uk.gov.ons.census.action.model.dto.ActionRuleEstimate;
+import uk.gov.ons.census.action.model.dto.EstimateMethod;
+import uk.gov.ons.census.action.model.dto.ForecastVolume;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionType;
+
+/*
+ Estimates how many cases an action rule would enqueue if it triggered now, using exactly the
+ selection and table that CaseClassifier would use. The planner and sample estimates take
+ milliseconds whatever the size of the plan. The volume is what the rule's batch quantity would
+ be: the cases, or for CE individual rules the sum of their expected capacity.
+*/
+@Component
+public class ActionRuleEstimator {
+  private final JdbcTemplate jdbcTemplate;
+  private final CaseClassifier caseClassifier;
+  private final ActionRuleGovernor actionRuleGovernor;
+  private final ObjectMapper objectMapper;
+
+  @Value("${forecast.samplepercent}")
+  private double samplePercent;
+
+  public ActionRuleEstimator(
+      JdbcTemplate jdbcTemplate,
+      CaseClassifier caseClassifier,
+      ActionRuleGovernor actionRuleGovernor,
+      ObjectMapper objectMapper) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.caseClassifier = caseClassifier;
+    this.actionRuleGovernor = actionRuleGovernor;
+    this.objectMapper = objectMapper;
+  }
+
+  public ActionRuleEstimate estimate(ActionRule actionRule, EstimateMethod method) {
+    String casesTable = caseClassifier.casesTable(actionRule);
+    CaseSelection caseSelection = caseClassifier.selectCases(actionRule);
+    boolean ceIndividual = CaseClassifier.isCeIndividualActionType(actionRule.getActionType());
+
+    long start = System.currentTimeMillis();
+    CaseCount caseCount;
+    switch (method) {
+      case PLANNER:
+        long cases = estimateFromPlan(casesTable, caseSelection);
+        // The planner can't estimate a sum, so the capacity of CE individual cases is sampled
+        caseCount =
+            new CaseCount(
+                cases,
+                ceIndividual ? estimateFromSample(casesTable, caseSelection).capacity : cases);
+        break;
+      case SAMPLE:
+        caseCount = estimateFromSample(casesTable, caseSelection);
+        break;
+      default:
+        caseCount = count(actionRule, casesTable, caseSelection);
+    }
+
+    ActionRuleEstimate estimate = new ActionRuleEstimate();
+    estimate.setActionRuleId(actionRule.getId());
+    estimate.setActionType(actionRule.getActionType());
+    estimate.setPackCode(actionRule.getActionType().getPackCode());
+    estimate.setTriggerDateTime(actionRule.getTriggerDateTime());
+    estimate.setHasTriggered(actionRule.getHasTriggered());
+    estimate.setMethod(method);
+    estimate.setCases(caseCount.cases);
+    estimate.setVolume(ceIndividual ? caseCount.capacity : caseCount.cases);
+    estimate.setElapsedMillis(System.currentTimeMillis() - start);
+    return estimate;
+  }
+
+  /*
+   Estimates every rule of a plan, and adds up the volumes each action type will go out in on each
+   trigger date, for sizing print runs. Trigger dates are UTC.
+  */
+  public ActionPlanForecast forecast(
+      UUID actionPlanId, List<ActionRule> actionRules, EstimateMethod method) {
+    List<ActionRuleEstimate> timeline =
+        actionRules.stream()
+            .map(actionRule -> estimate(actionRule, method))
+            .collect(Collectors.toList());
+
+    Map<LocalDate, Map<ActionType, ForecastVolume>> volumesByDate = new TreeMap<>();
+    for (ActionRuleEstimate estimate : timeline) {
+      LocalDate triggerDate =
+          estimate.getTriggerDateTime().atZoneSameInstant(ZoneOffset.UTC).toLocalDate();
+      ForecastVolume volume =
+          volumesByDate
+              .computeIfAbsent(triggerDate, date -> new EnumMap<>(ActionType.class))
+              .computeIfAbsent(
+                  estimate.getActionType(),
+                  actionType -> {
+                    ForecastVolume forecastVolume = new ForecastVolume();
+                    forecastVolume.setTriggerDate(triggerDate);
+                    forecastVolume.setActionType(actionType);
+                    forecastVolume.setPackCode(actionType.getPackCode());
+                    return forecastVolume;
+                  });
+      volume.setActionRules(volume.getActionRules() + 1);
+      volume.setCases(volume.getCases() + estimate.getCases());
+      volume.setVolume(volume.getVolume() + estimate.getVolume());
+    }
+
+    ActionPlanForecast forecast = new ActionPlanForecast();
+    forecast.setActionPlanId(actionPlanId);
+    forecast.setMethod(method);
+    forecast.setTimeline(timeline);
+    forecast.setVolumes(
+        volumesByDate.values().stream()
+            .flatMap(volumes -> volumes.values().stream())
+            .collect(Collectors.toList()));
+    forecast.setTotalCases(timeline.stream().mapToLong(ActionRuleEstimate::getCases).sum());
+    forecast.setTotalVolume(timeline.stream().mapToLong(ActionRuleEstimate::getVolume).sum());
+    return forecast;
+  }
+
+  private long estimateFromPlan(String casesTable, CaseSelection caseSelection) {
+    String plan =
+        jdbcTemplate.queryForObject(
+            "EXPLAIN (FORMAT JSON) SELECT case_ref FROM "
+                + casesTable
+                + " "
+                + caseSelection.getSql(),
+            String.class,
+            caseSelection.getParams().toArray());
+
+    try {
+      return objectMapper.readTree(plan).get(0).get("Plan").get("Plan Rows").asLong();
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Could not read query plan", e);
+    }
+  }
+
+  // Sampling whole pages means the estimate is only as good as cases are spread across pages
+  private CaseCount estimateFromSample(String casesTable, CaseSelection caseSelection) {
+    return jdbcTemplate.queryForObject(
+        "SELECT COUNT(*), SUM(ce_expected_capacity) FROM "
+            + casesTable
+            + " TABLESAMPLE SYSTEM (CAST(? AS real)) "
+            + caseSelection.getSql(),
+        (resultSet, rowNum) ->
+            new CaseCount(
+                Math.round(resultSet.getLong(1) * 100 / samplePercent),
+                Math.round(resultSet.getLong(2) * 100 / samplePercent)),
+        caseSelection.bindBetween(new Object[] {samplePercent}));
+  }
+
+  /*
+   An exact count can take as long as enqueueing the rule, so it runs under the rule's execution
+   profile, parallel workers included, in a read-only transaction of its own.
+  */
+  private CaseCount count(ActionRule actionRule, String casesTable, CaseSelection caseSelection) {
+    String sql =
+        "SELECT COUNT(*), SUM(ce_expected_capacity) FROM "
+            + casesTable
+            + " "
+            + caseSelection.getSql();
+    try (Connection connection = jdbcTemplate.getDataSource().getConnection()) {
+      connection.setAutoCommit(false);
+      connection.setReadOnly(true);
+      try {
+        actionRuleGovernor.applyToReads(connection, actionRuleGovernor.profileFor(actionRule));
+        try (PreparedStatement count = connection.prepareStatement(sql)) {
+          List<Object> params = caseSelection.getParams();
+          for (int i = 0; i < params.size(); i++) {
+            count.setObject(i + 1, params.get(i));
+          }
+          try (ResultSet resultSet = count.executeQuery()) {
+            resultSet.next();
+            return new CaseCount(resultSet.getLong(1), resultSet.getLong(2));
+          }
+        }
+      } finally {
+        connection.rollback();
+      }
+    } catch (SQLException e) {
+      throw jdbcTemplate.getExceptionTranslator().translate("Exact estimate", sql, e);
+    }
+  }
+
+  // How many cases, and their total CE expected capacity, which is 0 where it's null
+  private static class CaseCount {
+    private final long cases;
+    private final long capacity;
+
+    private CaseCount(long cases, long capacity) {
+      this.cases = cases;
+      this.capacity = capacity;
+    }
+  }
+}
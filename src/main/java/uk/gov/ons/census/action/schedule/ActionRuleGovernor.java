@@ -0,0 +1,186 @@
+package uk.gov.ons.census.action.schedule;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.config.GovernorProperties;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ExecutionProfile;
+
+/*
+ Bounds what enqueueing a rule can cost the database. Every rule runs under an execution profile
+ made up field by field from its own execution_profile, then the profile for its action type, then
+ governor.defaults. The settings are made with set_config local to the transaction, so they end
+ with it and never leak to whoever uses the pooled connection next. A rule that runs past its
+ statement_timeout or waits past its lock_timeout is cancelled by Postgres and rolled back.
+
+ Postgres never plans an INSERT ... SELECT in parallel, so max_parallel_workers_per_gather is only
+ applied to the read-only statements run for a rule: the count a partitioned rule starts with and
+ an exact forecast of the rule.
+*/
+@Component
+public class ActionRuleGovernor {
+  private static final String QUERY_CANCELED = "57014";
+  private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final GovernorProperties governorProperties;
+
+  public ActionRuleGovernor(JdbcTemplate jdbcTemplate, GovernorProperties governorProperties) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.governorProperties = governorProperties;
+  }
+
+  public ExecutionProfile profileFor(ActionRule actionRule) {
+    ExecutionProfile actionTypeProfile =
+        governorProperties.getActionTypes().get(actionRule.getActionType());
+    return overlay(
+        overlay(governorProperties.getDefaults(), actionTypeProfile),
+        actionRule.getExecutionProfile());
+  }
+
+  /*
+   Rules enqueued in one pass share a transaction, so they share the widest of their profiles:
+   no rule in the group is held to less than it would have had on its own.
+  */
+  public ExecutionProfile profileFor(List<ActionRule> actionRules) {
+    List<ExecutionProfile> profiles =
+        actionRules.stream().map(this::profileFor).collect(Collectors.toList());
+
+    ExecutionProfile widest = new ExecutionProfile();
+    widest.setStatementTimeoutMillis(
+        widestTimeout(profiles, ExecutionProfile::getStatementTimeoutMillis));
+    widest.setLockTimeoutMillis(widestTimeout(profiles, ExecutionProfile::getLockTimeoutMillis));
+    widest.setWorkMemKb(largest(profiles, ExecutionProfile::getWorkMemKb));
+    widest.setMaxParallelWorkersPerGather(
+        largest(profiles, ExecutionProfile::getMaxParallelWorkersPerGather));
+    return widest;
+  }
+
+  // Applies the profile to the transaction the calling thread is in
+  public void apply(ExecutionProfile profile) {
+    List<String> params = settingParams(profile, false);
+    if (!params.isEmpty()) {
+      jdbcTemplate.queryForMap(setConfigSql(params.size() / 2), params.toArray());
+    }
+  }
+
+  // Applies the profile to the transaction open on a connection managed by hand
+  public void apply(Connection connection, ExecutionProfile profile) throws SQLException {
+    apply(connection, settingParams(profile, false));
+  }
+
+  // As above, for a transaction that only reads, which can also be given parallel workers
+  public void applyToReads(Connection connection, ExecutionProfile profile) throws SQLException {
+    apply(connection, settingParams(profile, true));
+  }
+
+  private static void apply(Connection connection, List<String> params) throws SQLException {
+    if (params.isEmpty()) {
+      return;
+    }
+
+    String sql = setConfigSql(params.size() / 2);
+    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+      for (int i = 0; i < params.size(); i++) {
+        statement.setString(i + 1, params.get(i));
+      }
+      statement.executeQuery().close();
+    }
+  }
+
+  /*
+   The SQL state Postgres failed the enqueue with if it was cancelled, by a timeout from the
+   profile or by the watchdog, otherwise null.
+  */
+  public static String cancelledSqlState(Throwable throwable) {
+    for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException) {
+        String sqlState = ((SQLException) cause).getSQLState();
+        if (QUERY_CANCELED.equals(sqlState) || LOCK_NOT_AVAILABLE.equals(sqlState)) {
+          return sqlState;
+        }
+      }
+    }
+    return null;
+  }
+
+  static ExecutionProfile overlay(ExecutionProfile base, ExecutionProfile override) {
+    if (override == null) {
+      return base;
+    }
+
+    ExecutionProfile overlaid = new ExecutionProfile();
+    overlaid.setStatementTimeoutMillis(
+        firstNonNull(override.getStatementTimeoutMillis(), base.getStatementTimeoutMillis()));
+    overlaid.setLockTimeoutMillis(
+        firstNonNull(override.getLockTimeoutMillis(), base.getLockTimeoutMillis()));
+    overlaid.setWorkMemKb(firstNonNull(override.getWorkMemKb(), base.getWorkMemKb()));
+    overlaid.setMaxParallelWorkersPerGather(
+        firstNonNull(
+            override.getMaxParallelWorkersPerGather(), base.getMaxParallelWorkersPerGather()));
+    return overlaid;
+  }
+
+  // Pairs of setting name and value, for the settings the profile has
+  private static List<String> settingParams(ExecutionProfile profile, boolean readOnly) {
+    Map<String, Integer> settings = new LinkedHashMap<>();
+    settings.put("statement_timeout", profile.getStatementTimeoutMillis());
+    settings.put("lock_timeout", profile.getLockTimeoutMillis());
+    settings.put("work_mem", profile.getWorkMemKb());
+    if (readOnly) {
+      settings.put("max_parallel_workers_per_gather", profile.getMaxParallelWorkersPerGather());
+    }
+
+    List<String> params = new ArrayList<>();
+    settings.forEach(
+        (name, value) -> {
+          if (value != null) {
+            params.add(name);
+            params.add(value.toString());
+          }
+        });
+    return params;
+  }
+
+  static String setConfigSql(int settings) {
+    return "SELECT " + String.join(", ", Collections.nCopies(settings, "set_config(?, ?, true)"));
+  }
+
+  // No limit, 0, is the widest timeout, and leaving it unset keeps whatever the server allows
+  private static Integer widestTimeout(
+      List<ExecutionProfile> profiles, Function<ExecutionProfile, Integer> timeout) {
+    Integer widest = 0;
+    for (ExecutionProfile profile : profiles) {
+      Integer value = timeout.apply(profile);
+      if (value == null || value == 0) {
+        return value;
+      }
+      widest = Math.max(widest, value);
+    }
+    return widest;
+  }
+
+  private static Integer largest(
+      List<ExecutionProfile> profiles, Function<ExecutionProfile, Integer> setting) {
+    return profiles.stream()
+        .map(setting)
+        .filter(Objects::nonNull)
+        .max(Integer::compare)
+        .orElse(null);
+  }
+
+  private static Integer firstNonNull(Integer first, Integer second) {
+    return first != null ? first : second;
+  }
+}
@@ -1,5 +1,6 @@
 package uk.gov.ons.census.action.schedule;
 
+import java.util.List;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -10,16 +11,49 @@ import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
 public class ActionRuleProcessor {
   private final CaseClassifier caseClassifier;
   private final ActionRuleRepository actionRuleRepo;
+  private final ActionRuleClaimer actionRuleClaimer;
+  private final CaseToProcessPartitioner caseToProcessPartitioner;
 
-  public ActionRuleProcessor(CaseClassifier caseClassifier, ActionRuleRepository actionRuleRepo) {
+  public ActionRuleProcessor(
+      CaseClassifier caseClassifier,
+      ActionRuleRepository actionRuleRepo,
+      ActionRuleClaimer actionRuleClaimer,
+      CaseToProcessPartitioner caseToProcessPartitioner) {
     this.caseClassifier = caseClassifier;
     this.actionRuleRepo = actionRuleRepo;
+    this.actionRuleClaimer = actionRuleClaimer;
+    this.caseToProcessPartitioner = caseToProcessPartitioner;
   }
 
   @Transactional(propagation = Propagation.REQUIRES_NEW) // Start a new transaction for every rule
   public void createScheduledActions(ActionRule triggeredActionRule) {
+    caseToProcessPartitioner.createPartition(triggeredActionRule.getId());
     caseClassifier.enqueueCasesForActionRule(triggeredActionRule);
+    actionRuleClaimer.assertLeaseHeld(triggeredActionRule);
     triggeredActionRule.setHasTriggered(true);
+    triggeredActionRule.setLeaseOwner(null);
+    triggeredActionRule.setLeaseExpiry(null);
     actionRuleRepo.save(triggeredActionRule);
   }
+
+  /*
+   Triggers a group of rules on the same plan and handler together, so their cases are enqueued
+   in one pass. If any rule in the group fails, none of them are marked triggered.
+  */
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public void createScheduledActions(List<ActionRule> triggeredActionRules) {
+    for (ActionRule triggeredActionRule : triggeredActionRules) {
+      caseToProcessPartitioner.createPartition(triggeredActionRule.getId());
+    }
+
+    caseClassifier.enqueueCasesForActionRules(triggeredActionRules);
+
+    for (ActionRule triggeredActionRule : triggeredActionRules) {
+      actionRuleClaimer.assertLeaseHeld(triggeredActionRule);
+      triggeredActionRule.setHasTriggered(true);
+      triggeredActionRule.setLeaseOwner(null);
+      triggeredActionRule.setLeaseExpiry(null);
+    }
+    actionRuleRepo.saveAll(triggeredActionRules);
+  }
 }
@@ -2,21 +2,33 @@ package uk.gov.ons.census.action.schedule;
 
 import com.godaddy.logging.Logger;
 import com.godaddy.logging.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
 
 @Service
 public class ActionRuleScheduler {
   private static final Logger log = LoggerFactory.getLogger(ActionRuleScheduler.class);
   private final ActionRuleTriggerer actionRuleTriggerer;
+  private final ObjectProvider<ActionRuleCalendar> actionRuleCalendar;
+  private final SchedulerWatchdog schedulerWatchdog;
 
-  public ActionRuleScheduler(ActionRuleTriggerer actionRuleTriggerer) {
+  public ActionRuleScheduler(
+      ActionRuleTriggerer actionRuleTriggerer,
+      ObjectProvider<ActionRuleCalendar> actionRuleCalendar,
+      SchedulerWatchdog schedulerWatchdog) {
     this.actionRuleTriggerer = actionRuleTriggerer;
+    this.actionRuleCalendar = actionRuleCalendar;
+    this.schedulerWatchdog = schedulerWatchdog;
   }
 
+  // When the calendar is enabled this is only a safety net for missed notifications
   @Scheduled(fixedDelayString = "${scheduler.frequency}")
   public void triggerActionRules() {
+    schedulerWatchdog.heartbeat();
     try {
+      actionRuleCalendar.ifAvailable(ActionRuleCalendar::reload);
       actionRuleTriggerer.triggerActionRules();
     } catch (Exception e) {
       log.error("Unexpected exception while processing Action Rules", e);
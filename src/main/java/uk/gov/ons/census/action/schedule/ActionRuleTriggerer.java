@@ -2,38 +2,308 @@ package uk.gov.ons.census.action.schedule;
 
 import com.godaddy.logging.Logger;
 import com.godaddy.logging.LoggerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.dto.EstimateMethod;
 import uk.gov.ons.census.action.model.entity.ActionRule;
-import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
 
 @Component
 public class ActionRuleTriggerer {
   private static final Logger log = LoggerFactory.getLogger(ActionRuleTriggerer.class);
-  private final ActionRuleRepository actionRuleRepo;
+  private final ActionRuleClaimer actionRuleClaimer;
   private final ActionRuleProcessor actionRuleProcessor;
+  private final TaskExecutor actionRuleExecutor;
+  private final MeterRegistry meterRegistry;
+  private final SchedulerWatchdog schedulerWatchdog;
+  private final ActionRuleEstimator actionRuleEstimator;
+  private final Semaphore idleWorkers;
+  private final int groupSize;
+  private final long groupMaxCases;
+  private final AtomicBoolean moreActionRulesMayBeDue = new AtomicBoolean();
 
   public ActionRuleTriggerer(
-      ActionRuleRepository actionRuleRepo, ActionRuleProcessor actionRuleProcessor) {
-    this.actionRuleRepo = actionRuleRepo;
+      ActionRuleClaimer actionRuleClaimer,
+      ActionRuleProcessor actionRuleProcessor,
+      @Qualifier("actionRuleExecutor") TaskExecutor actionRuleExecutor,
+      MeterRegistry meterRegistry,
+      SchedulerWatchdog schedulerWatchdog,
+      ActionRuleEstimator actionRuleEstimator,
+      @Value("${scheduler.concurrency}") int concurrency,
+      @Value("${scheduler.groupsize}") int groupSize,
+      @Value("${scheduler.groupmaxcases}") long groupMaxCases) {
+    this.actionRuleClaimer = actionRuleClaimer;
     this.actionRuleProcessor = actionRuleProcessor;
+    this.actionRuleExecutor = actionRuleExecutor;
+    this.meterRegistry = meterRegistry;
+    this.schedulerWatchdog = schedulerWatchdog;
+    this.actionRuleEstimator = actionRuleEstimator;
+    this.idleWorkers = new Semaphore(concurrency);
+    this.groupSize = Math.max(groupSize, 1);
+    this.groupMaxCases = groupMaxCases;
   }
 
-  @Transactional
-  public void triggerActionRules() {
-    List<ActionRule> triggeredActionRules =
-        actionRuleRepo.findByTriggerDateTimeBeforeAndHasTriggeredIsFalse(OffsetDateTime.now());
+  /*
+   Claims enough due rules to keep the idle workers busy and hands them to the worker pool. Rules
+   on the same plan and handler are grouped so their cases are enqueued in one pass, and each
+   group takes one worker. Nothing is held open here while the rules run, each group gets its own
+   transaction on a worker thread.
+  */
+  public int triggerActionRules() {
+    int workers = idleWorkers.drainPermits();
+    if (workers == 0) {
+      // Every worker is busy, so have the next one to come free claim again
+      moreActionRulesMayBeDue.set(true);
+      return 0;
+    }
+
+    long start = System.nanoTime();
+    int claimLimit = workers * groupSize;
+    List<ActionRule> claimedActionRules;
+    try {
+      claimedActionRules = actionRuleClaimer.claimDueActionRules(claimLimit);
+    } catch (RuntimeException e) {
+      idleWorkers.release(workers);
+      throw e;
+    }
+
+    List<List<ActionRule>> groups;
+    try {
+      groups = groupActionRules(claimedActionRules);
+    } catch (RuntimeException e) {
+      claimedActionRules.forEach(actionRuleClaimer::releaseLease);
+      idleWorkers.release(workers);
+      throw e;
+    }
+
+    // Groups beyond the idle workers are handed straight back, for whichever node is free first
+    int startedGroups = Math.min(workers, groups.size());
+    List<List<ActionRule>> unstartedGroups = groups.subList(startedGroups, groups.size());
+    List<List<ActionRule>> triggeredGroups = groups.subList(0, startedGroups);
+
+    // A full claim means there could be more rules waiting for a worker to come free
+    moreActionRulesMayBeDue.set(
+        claimedActionRules.size() == claimLimit || !unstartedGroups.isEmpty());
+    idleWorkers.release(workers - startedGroups);
+
+    /*
+     A group's worker and leases are ours to give back until the group is handed over, which is
+     once the executor has accepted it or it has started running inline. So a group the executor
+     rejects, or that is never submitted because an earlier one was rejected, is given back here.
+     Groups are told apart by identity, as their rules change while they run.
+    */
+    Set<List<ActionRule>> handedOverGroups =
+        Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    int triggered = 0;
+    try {
+      unstartedGroups.forEach(group -> group.forEach(actionRuleClaimer::releaseLease));
+
+      for (List<ActionRule> triggeredGroup : triggeredGroups) {
+        actionRuleExecutor.execute(
+            () -> {
+              handedOverGroups.add(triggeredGroup);
+              processActionRules(triggeredGroup);
+            });
+        handedOverGroups.add(triggeredGroup);
+        triggered += triggeredGroup.size();
+      }
+    } finally {
+      for (List<ActionRule> triggeredGroup : triggeredGroups) {
+        if (!handedOverGroups.contains(triggeredGroup)) {
+          try {
+            triggeredGroup.forEach(actionRuleClaimer::releaseLease);
+          } finally {
+            idleWorkers.release();
+          }
+        }
+      }
+    }
 
-    for (ActionRule triggeredActionRule : triggeredActionRules) {
+    meterRegistry
+        .timer("action.rule.trigger.loop")
+        .record(Duration.ofNanos(System.nanoTime() - start));
+    return triggered;
+  }
+
+  private void processActionRules(List<ActionRule> triggeredActionRules) {
+    long start = System.nanoTime();
+    String outcome = "failure";
+    try {
+      triggeredActionRules.forEach(
+          triggeredActionRule -> {
+            log.with("action_rule_id", triggeredActionRule.getId())
+                .with("group_size", triggeredActionRules.size())
+                .info("Action rule triggered");
+            schedulerWatchdog.startRun(watchdogRun(triggeredActionRule));
+            recordTriggerLag(triggeredActionRule);
+          });
+      if (triggeredActionRules.size() == 1) {
+        actionRuleProcessor.createScheduledActions(triggeredActionRules.get(0));
+      } else {
+        actionRuleProcessor.createScheduledActions(triggeredActionRules);
+      }
+      outcome = "success";
+    } catch (Exception e) {
+      String cancelledSqlState = ActionRuleGovernor.cancelledSqlState(e);
+      if (cancelledSqlState != null) {
+        outcome = "cancelled";
+        for (ActionRule triggeredActionRule : triggeredActionRules) {
+          log.with("action_rule_id", triggeredActionRule.getId())
+              .with("sql_state", cancelledSqlState)
+              .error("Action rule cancelled by the database - check its execution profile", e);
+          recordCancelled(triggeredActionRule);
+        }
+      } else {
+        triggeredActionRules.forEach(
+            triggeredActionRule ->
+                log.with("action_rule_id", triggeredActionRule.getId())
+                    .error(
+                        "Unexpected error while executing action rule - is classifier valid SQL?",
+                        e));
+      }
+    } finally {
+      recordEnqueueDuration(
+          triggeredActionRules, Duration.ofNanos(System.nanoTime() - start), outcome);
       try {
-        log.with("action_rule_id", triggeredActionRule.getId()).info("Action rule triggered");
-        actionRuleProcessor.createScheduledActions(triggeredActionRule);
-      } catch (Exception e) {
-        log.with("action_rule_id", triggeredActionRule.getId())
-            .error("Unexpected error while executing action rule - is classifier valid SQL?", e);
+        triggeredActionRules.forEach(
+            triggeredActionRule -> schedulerWatchdog.finishRun(watchdogRun(triggeredActionRule)));
+        triggeredActionRules.forEach(actionRuleClaimer::releaseLease);
+      } finally {
+        idleWorkers.release();
+      }
+    }
+
+    if (moreActionRulesMayBeDue.get()) {
+      triggerActionRules();
+    }
+  }
+
+  // Without this the rule would be claimed and cancelled again on every poll
+  private void recordCancelled(ActionRule actionRule) {
+    try {
+      actionRuleClaimer.recordCancelled(actionRule);
+    } catch (RuntimeException e) {
+      log.with("action_rule_id", actionRule.getId()).error("Could not record cancellation", e);
+    }
+  }
+
+  // How long after it was due the rule was picked up, whether from the calendar or the safety poll
+  private void recordTriggerLag(ActionRule actionRule) {
+    if (actionRule.getTriggerDateTime() != null) {
+      meterRegistry
+          .timer("action.rule.trigger.lag", "actionType", actionTypeTag(actionRule))
+          .record(Duration.between(actionRule.getTriggerDateTime(), OffsetDateTime.now()));
+    }
+  }
+
+  // Every rule in a group is recorded as taking as long as the whole group, which it did
+  private void recordEnqueueDuration(
+      List<ActionRule> actionRules, Duration duration, String outcome) {
+    for (ActionRule actionRule : actionRules) {
+      meterRegistry
+          .timer(
+              "action.rule.enqueue",
+              "actionType",
+              actionTypeTag(actionRule),
+              "handler",
+              actionRule.getActionType() == null
+                  ? "none"
+                  : actionRule.getActionType().getHandler().name(),
+              "outcome",
+              outcome)
+          .record(duration);
+    }
+  }
+
+  private static String watchdogRun(ActionRule actionRule) {
+    return SchedulerWatchdog.actionRuleRun(actionRule.getId());
+  }
+
+  private static String actionTypeTag(ActionRule actionRule) {
+    return actionRule.getActionType() == null ? "none" : actionRule.getActionType().name();
+  }
+
+  List<List<ActionRule>> groupActionRules(List<ActionRule> actionRules) {
+    return groupActionRules(actionRules, groupSize, this::estimateCases, groupMaxCases);
+  }
+
+  /*
+   Rules can share a pass over the cases when they select from the same plan with the same base
+   predicates and the same kind of batch quantity. A pass is one insert, which can't be chunked or
+   split into case_ref ranges, so a group is closed before its estimated cases go over
+   maxGroupCases. A rule estimated at maxGroupCases or more gets a group of its own, and so is
+   enqueued in chunks or partitions. Groups keep the order the rules were claimed in.
+  */
+  static List<List<ActionRule>> groupActionRules(
+      List<ActionRule> actionRules,
+      int groupSize,
+      ToLongFunction<ActionRule> estimatedCases,
+      long maxGroupCases) {
+    Map<Object, List<ActionRule>> openGroups = new LinkedHashMap<>();
+    Map<Object, Long> openGroupCases = new HashMap<>();
+    List<List<ActionRule>> groups = new ArrayList<>();
+
+    for (ActionRule actionRule : actionRules) {
+      // Only rules that could share a pass are estimated
+      Object groupKey = groupKey(actionRule, groupSize);
+      long cases = groupKey == null ? 0 : estimatedCases.applyAsLong(actionRule);
+      if (groupKey == null || cases >= maxGroupCases) {
+        groupKey = new Object(); // A group of its own
+      }
+
+      List<ActionRule> group = openGroups.get(groupKey);
+      if (group == null
+          || group.size() == groupSize
+          || openGroupCases.get(groupKey) + cases > maxGroupCases) {
+        group = new ArrayList<>();
+        openGroups.put(groupKey, group);
+        openGroupCases.put(groupKey, 0L);
+        groups.add(group);
       }
+      group.add(actionRule);
+      openGroupCases.put(groupKey, openGroupCases.get(groupKey) + cases);
+    }
+
+    return groups;
+  }
+
+  // A rule that can't be estimated is taken to be large, so it is enqueued by itself
+  private long estimateCases(ActionRule actionRule) {
+    try {
+      return actionRuleEstimator.estimate(actionRule, EstimateMethod.PLANNER).getCases();
+    } catch (RuntimeException e) {
+      log.with("action_rule_id", actionRule.getId()).warn("Could not estimate action rule", e);
+      return Long.MAX_VALUE;
+    }
+  }
+
+  // Null for a rule that can't share a pass with any other
+  private static Object groupKey(ActionRule actionRule, int groupSize) {
+    if (groupSize == 1
+        || actionRule.getActionPlan() == null
+        || actionRule.getActionType() == null) {
+      return null;
     }
+
+    return List.of(
+        actionRule.getActionPlan().getId(),
+        actionRule.getActionType().getHandler(),
+        CaseClassifier.isCeIndividualActionType(actionRule.getActionType()));
   }
 }
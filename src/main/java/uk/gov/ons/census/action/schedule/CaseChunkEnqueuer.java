@@ -0,0 +1,132 @@
+package uk.gov.ons.census.action.schedule;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import uk.gov.ons.census.action.model.entity.ActionRuleCheckpoint;
+import uk.gov.ons.census.action.model.entity.ExecutionProfile;
+import uk.gov.ons.census.action.model.repository.ActionRuleCheckpointRepository;
+
+@Component
+public class CaseChunkEnqueuer {
+  static final String UPSERT_BATCH_HEADER_SQL = batchHeaderUpsertSql("COUNT(*)");
+  static final String UPSERT_CE_INDIVIDUAL_BATCH_HEADER_SQL =
+      batchHeaderUpsertSql("COALESCE(SUM(ce_expected_capacity), 0)");
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ActionRuleCheckpointRepository checkpointRepository;
+  private final ActionRuleGovernor actionRuleGovernor;
+
+  public CaseChunkEnqueuer(
+      JdbcTemplate jdbcTemplate,
+      ActionRuleCheckpointRepository checkpointRepository,
+      ActionRuleGovernor actionRuleGovernor) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.checkpointRepository = checkpointRepository;
+    this.actionRuleGovernor = actionRuleGovernor;
+  }
+
+  public Optional<ActionRuleCheckpoint> findCheckpoint(UUID actionRuleId) {
+    return checkpointRepository.findById(actionRuleId);
+  }
+
+  // Must be visible to every chunk. The batch header is only written with the last chunk
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public ActionRuleCheckpoint createCheckpoint(UUID actionRuleId) {
+    ActionRuleCheckpoint checkpoint = new ActionRuleCheckpoint();
+    checkpoint.setActionRuleId(actionRuleId);
+    checkpoint.setBatchId(UUID.randomUUID());
+    checkpoint.setLastCaseRef(Long.MIN_VALUE);
+    checkpoint.setLastUpdated(OffsetDateTime.now());
+    return checkpointRepository.save(checkpoint);
+  }
+
+  /*
+   Inserts the next chunk of cases after the checkpoint and moves the checkpoint past them in the
+   same transaction, so a restart always resumes exactly where the last commit left off. The
+   checkpoint only moves if nobody else has moved it first, which stops a node that has lost its
+   lease on the rule from enqueueing the same cases as the node that took over.
+
+   A short chunk is the last one, and it writes the batch header in its own transaction from what
+   was actually enqueued into the batch, so the header never commits before all of its cases and
+   its quantity can't drift from them while the chunks run. The header is upserted so that a node
+   resuming after the last chunk committed, but before the checkpoint was deleted, writes the same
+   header again rather than failing.
+  */
+  @Transactional(propagation = Propagation.REQUIRES_NEW) // Commit every chunk on its own
+  public int enqueueChunk(
+      ActionRuleCheckpoint checkpoint,
+      String chunkSql,
+      List<Object> selectionParams,
+      int chunkSize,
+      boolean ceIndividual,
+      ExecutionProfile executionProfile) {
+    actionRuleGovernor.apply(executionProfile);
+    long previousCaseRef = checkpoint.getLastCaseRef();
+
+    List<Object> params =
+        new ArrayList<>(
+            Arrays.asList(checkpoint.getBatchId(), checkpoint.getActionRuleId(), previousCaseRef));
+    params.addAll(selectionParams);
+    params.add(chunkSize);
+
+    int enqueued =
+        jdbcTemplate.queryForObject(
+            chunkSql,
+            (resultSet, rowNum) -> {
+              int count = resultSet.getInt(1);
+              if (count > 0) {
+                checkpoint.setLastCaseRef(resultSet.getLong(2));
+              }
+              return count;
+            },
+            params.toArray());
+
+    checkpoint.setLastUpdated(OffsetDateTime.now());
+    int moved =
+        jdbcTemplate.update(
+            "UPDATE actionv2.action_rule_checkpoint SET last_case_ref = ?, last_updated = ? "
+                + "WHERE action_rule_id = ? AND last_case_ref = ?",
+            checkpoint.getLastCaseRef(),
+            checkpoint.getLastUpdated(),
+            checkpoint.getActionRuleId(),
+            previousCaseRef);
+
+    if (moved != 1) {
+      throw new IllegalStateException(
+          "Checkpoint for action rule "
+              + checkpoint.getActionRuleId()
+              + " has been moved by another node");
+    }
+
+    if (enqueued < chunkSize) {
+      jdbcTemplate.update(
+          ceIndividual ? UPSERT_CE_INDIVIDUAL_BATCH_HEADER_SQL : UPSERT_BATCH_HEADER_SQL,
+          checkpoint.getBatchId(),
+          checkpoint.getActionRuleId(),
+          checkpoint.getActionRuleId(),
+          checkpoint.getBatchId());
+    }
+
+    return enqueued;
+  }
+
+  public void deleteCheckpoint(UUID actionRuleId) {
+    checkpointRepository.deleteById(actionRuleId);
+  }
+
+  private static String batchHeaderUpsertSql(String quantity) {
+    return "INSERT INTO actionv2.action_batch (batch_id, action_rule_id, quantity, "
+        + "created_date_time) SELECT ?, ?, "
+        + quantity
+        + ", now() FROM actionv2.case_to_process WHERE action_rule_id = ? AND batch_id = ? "
+        + "ON CONFLICT (batch_id) DO UPDATE SET quantity = EXCLUDED.quantity";
+  }
+}
@@ -1,16 +1,42 @@
 package uk.gov.ons.census.action.schedule;
 
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.classifier.CaseSelection;
+import uk.gov.ons.census.action.classifier.ClassifierCompiler;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
 import uk.gov.ons.census.action.model.entity.ActionHandler;
 import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionRuleCheckpoint;
 import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.ExecutionProfile;
 import uk.gov.ons.census.action.model.entity.RefusalType;
 
 @Component
 public class CaseClassifier {
+  private static final Logger log = LoggerFactory.getLogger(CaseClassifier.class);
   private static final Set<ActionType> ceIndividualActionTypes =
       Set.of(
           ActionType.CE_IC03,
@@ -21,50 +47,579 @@ public class CaseClassifier {
           ActionType.CE_IC09,
           ActionType.CE_IC10);
 
+  static final String INSERT_ACTION_BATCH_SQL =
+      "INSERT INTO actionv2.action_batch (batch_id, action_rule_id, quantity, created_date_time) "
+          + "VALUES (?, ?, ?, now())";
+  static final String ACTION_BATCH_EXISTS_SQL =
+      "SELECT EXISTS (SELECT 1 FROM actionv2.action_batch WHERE action_rule_id = ?)";
+  static final String DELETE_UNBATCHED_CASES_SQL =
+      "DELETE FROM actionv2.case_to_process WHERE action_rule_id = ?";
+  static final String CASES_TABLE = "actionv2.cases";
+  static final String CASE_CLASSIFICATION_TABLE = "actionv2.case_classification";
+
   private final JdbcTemplate jdbcTemplate;
+  private final CaseChunkEnqueuer caseChunkEnqueuer;
+  private final ClassifierCompiler classifierCompiler;
+  private final MeterRegistry meterRegistry;
+  private final ActionRuleGovernor actionRuleGovernor;
+  private final SchedulerWatchdog schedulerWatchdog;
+  private final AsyncTaskExecutor partitionExecutor;
+
+  @Value("${scheduler.partitions:1}")
+  private int partitions;
+
+  @Value("${scheduler.chunksize:0}")
+  private int chunkSize;
+
+  @Value("${scheduler.chunkmaxsize:100000}")
+  private int maxChunkSize;
 
-  public CaseClassifier(JdbcTemplate jdbcTemplate) {
+  @Value("${scheduler.chunktarget:1000}")
+  private long chunkTargetMillis;
+
+  @Value("${classifier.projection:false}")
+  private boolean projection;
+
+  public CaseClassifier(
+      JdbcTemplate jdbcTemplate,
+      CaseChunkEnqueuer caseChunkEnqueuer,
+      ClassifierCompiler classifierCompiler,
+      MeterRegistry meterRegistry,
+      ActionRuleGovernor actionRuleGovernor,
+      SchedulerWatchdog schedulerWatchdog,
+      @Qualifier("partitionExecutor") AsyncTaskExecutor partitionExecutor) {
     this.jdbcTemplate = jdbcTemplate;
+    this.caseChunkEnqueuer = caseChunkEnqueuer;
+    this.classifierCompiler = classifierCompiler;
+    this.meterRegistry = meterRegistry;
+    this.actionRuleGovernor = actionRuleGovernor;
+    this.schedulerWatchdog = schedulerWatchdog;
+    this.partitionExecutor = partitionExecutor;
   }
 
   public void enqueueCasesForActionRule(ActionRule actionRule) {
+    recordCasesEnqueued(actionRule, enqueueCases(actionRule));
+  }
+
+  private int enqueueCases(ActionRule actionRule) {
+    Optional<ActionRuleCheckpoint> checkpoint =
+        caseChunkEnqueuer.findCheckpoint(actionRule.getId());
+
+    // A rule that was part way through when we stopped always resumes from its checkpoint
+    if (checkpoint.isPresent() || (chunkSize > 0 && partitions <= 1)) {
+      return enqueueCasesForActionRuleInChunks(actionRule, checkpoint);
+    }
+
+    if (partitions > 1) {
+      return enqueueCasesForActionRuleInPartitions(actionRule);
+    }
+
     UUID batchId = UUID.randomUUID();
+    boolean ceIndividual = isCeIndividualActionType(actionRule.getActionType());
+    CaseSelection caseSelection = selectCases(actionRule);
+    Object[] params = caseSelection.bindBetween(new Object[] {batchId, actionRule.getId()});
+
+    actionRuleGovernor.apply(actionRuleGovernor.profileFor(actionRule));
+    int enqueued =
+        jdbcTemplate.update(
+            "INSERT INTO actionv2.case_to_process (batch_id, action_rule_id, caze_case_ref"
+                + (ceIndividual ? ", ce_expected_capacity" : "")
+                + ") SELECT ?, ?, case_ref"
+                + (ceIndividual ? ", ce_expected_capacity" : "")
+                + " FROM "
+                + casesTable(actionRule)
+                + " "
+                + caseSelection.getSql(),
+            params);
 
-    if (isCeIndividualActionType(actionRule.getActionType())) {
+    insertActionBatch(batchId, actionRule, ceIndividual, enqueued);
+    return enqueued;
+  }
+
+  /*
+   The batch quantity is written once, on the action_batch header, rather than on every row, so
+   the insert streams straight out of the scan instead of waiting for the whole selection to be
+   counted. The header goes in after the rows, in the same transaction. Most rules' quantity is
+   the number of rows inserted, CE individual rules total the capacity of the rows just inserted.
+  */
+  private void insertActionBatch(
+      UUID batchId, ActionRule actionRule, boolean ceIndividual, int enqueued) {
+    if (enqueued == 0) {
+      return;
+    }
+
+    if (ceIndividual) {
       jdbcTemplate.update(
-          "INSERT INTO actionv2.case_to_process (batch_id, batch_quantity, action_rule_id, "
-              + "caze_case_ref, ce_expected_capacity) SELECT ?, SUM(ce_expected_capacity) OVER(), ?, "
-              + "case_ref, ce_expected_capacity FROM actionv2.cases "
-              + buildWhereClause(
-                  actionRule.getActionPlan().getId(),
-                  actionRule.getClassifiersClause(),
-                  actionRule.getActionType().getHandler())
-              + " GROUP BY case_ref",
+          "INSERT INTO actionv2.action_batch (batch_id, action_rule_id, quantity, "
+              + "created_date_time) SELECT ?, ?, COALESCE(SUM(ce_expected_capacity), 0), now() "
+              + "FROM actionv2.case_to_process WHERE action_rule_id = ? AND batch_id = ?",
           batchId,
-          actionRule.getId());
+          actionRule.getId(),
+          actionRule.getId(),
+          batchId);
     } else {
-      jdbcTemplate.update(
-          "INSERT INTO actionv2.case_to_process (batch_id, batch_quantity, action_rule_id, "
-              + "caze_case_ref) SELECT ?, COUNT(*) OVER (), ?, case_ref FROM "
-              + "actionv2.cases "
-              + buildWhereClause(
-                  actionRule.getActionPlan().getId(),
-                  actionRule.getClassifiersClause(),
-                  actionRule.getActionType().getHandler()),
-          batchId,
-          actionRule.getId());
+      jdbcTemplate.update(INSERT_ACTION_BATCH_SQL, batchId, actionRule.getId(), enqueued);
+    }
+  }
+
+  /*
+   Enqueues every rule in the group from one scan of the plan's cases, instead of one scan per
+   rule. Each case is routed to every rule whose classifier it matches, and a batch header is
+   written per rule from the rows it got, so the result is the same as enqueueing the rules one at
+   a time. The rules must share a plan, a handler and a kind of batch quantity, because they share
+   the base predicates and the insert. A rule resuming from a checkpoint carries on by itself.
+  */
+  public void enqueueCasesForActionRules(List<ActionRule> actionRules) {
+    ActionRule firstActionRule = actionRules.get(0);
+    boolean ceIndividual = isCeIndividualActionType(firstActionRule.getActionType());
+    for (ActionRule actionRule : actionRules) {
+      if (!actionRule.getActionPlan().getId().equals(firstActionRule.getActionPlan().getId())
+          || actionRule.getActionType().getHandler() != firstActionRule.getActionType().getHandler()
+          || isCeIndividualActionType(actionRule.getActionType()) != ceIndividual) {
+        throw new IllegalArgumentException(
+            "Action rule " + actionRule.getId() + " can't share a pass with the rest of its group");
+      }
+    }
+
+    List<ActionRule> singlePassActionRules = new ArrayList<>();
+    for (ActionRule actionRule : actionRules) {
+      if (caseChunkEnqueuer.findCheckpoint(actionRule.getId()).isPresent()) {
+        enqueueCasesForActionRule(actionRule);
+      } else {
+        singlePassActionRules.add(actionRule);
+      }
+    }
+
+    if (singlePassActionRules.size() == 1) {
+      enqueueCasesForActionRule(singlePassActionRules.get(0));
+    } else if (!singlePassActionRules.isEmpty()) {
+      enqueueCasesForActionRulesInOnePass(singlePassActionRules, ceIndividual);
+    }
+  }
+
+  private void enqueueCasesForActionRulesInOnePass(
+      List<ActionRule> actionRules, boolean ceIndividual) {
+    String[] actionRuleIds = new String[actionRules.size()];
+    String[] batchIds = new String[actionRules.size()];
+    StringBuilder routing = new StringBuilder();
+    List<Object> params = new ArrayList<>();
+    params.add(actionRuleIds);
+    params.add(batchIds);
+
+    for (int i = 0; i < actionRules.size(); i++) {
+      actionRuleIds[i] = actionRules.get(i).getId().toString();
+      batchIds[i] = UUID.randomUUID().toString();
+
+      CaseSelection classifierSelection = selectClassifiedCases(actionRules.get(i));
+      routing.append(i == 0 ? "" : ", ");
+      routing.append("CASE WHEN ").append(classifierSelection.getSql());
+      routing.append(" THEN ").append(i + 1).append(" END");
+      params.addAll(classifierSelection.getParams());
+    }
+
+    CaseSelection baseSelection = selectBaseCases(actionRules.get(0), null);
+    params.addAll(baseSelection.getParams());
+
+    /*
+     A case matching none of the rules unnests to a null rule_index and drops out of the join.
+     The rules are numbered from 1 to line up with WITH ORDINALITY. The headers are totalled from
+     the inserted rows, so a rule that matched nothing gets no header, as it gets no rows.
+    */
+    String sql =
+        "WITH rules AS (SELECT * FROM unnest(CAST(? AS uuid[]), CAST(? AS uuid[])) "
+            + "WITH ORDINALITY AS r(action_rule_id, batch_id, rule_index)), "
+            + "matched AS (SELECT case_ref"
+            + (ceIndividual ? ", ce_expected_capacity" : "")
+            + ", unnest(ARRAY["
+            + routing
+            + "]) AS rule_index FROM "
+            + casesTable(actionRules)
+            + " "
+            + baseSelection.getSql()
+            + "), inserted AS (INSERT INTO actionv2.case_to_process (batch_id, action_rule_id, "
+            + "caze_case_ref"
+            + (ceIndividual ? ", ce_expected_capacity" : "")
+            + ") SELECT r.batch_id, r.action_rule_id, m.case_ref"
+            + (ceIndividual ? ", m.ce_expected_capacity" : "")
+            + " FROM matched m JOIN rules r ON r.rule_index = m.rule_index "
+            + "RETURNING batch_id, action_rule_id, ce_expected_capacity), "
+            + "batches AS (INSERT INTO actionv2.action_batch (batch_id, action_rule_id, quantity, "
+            + "created_date_time) SELECT batch_id, action_rule_id, "
+            + (ceIndividual ? "COALESCE(SUM(ce_expected_capacity), 0)" : "COUNT(*)")
+            + ", now() FROM inserted GROUP BY batch_id, action_rule_id) "
+            + "SELECT action_rule_id, COUNT(*) FROM inserted GROUP BY action_rule_id";
+
+    log.with("action_plan_id", actionRules.get(0).getActionPlan().getId())
+        .with("action_rules", actionRules.size())
+        .info("Enqueueing cases for action rules in one pass");
+
+    actionRuleGovernor.apply(actionRuleGovernor.profileFor(actionRules));
+    Map<UUID, Integer> enqueued = new HashMap<>();
+    jdbcTemplate.query(
+        sql,
+        resultSet -> {
+          enqueued.put(resultSet.getObject(1, UUID.class), resultSet.getInt(2));
+        },
+        params.toArray());
+
+    for (ActionRule actionRule : actionRules) {
+      recordCasesEnqueued(actionRule, enqueued.getOrDefault(actionRule.getId(), 0));
+    }
+  }
+
+  // One observation per rule, so the summary gives the distribution of rule sizes by type
+  private void recordCasesEnqueued(ActionRule actionRule, int enqueued) {
+    meterRegistry
+        .summary(
+            "action.rule.cases.enqueued",
+            "actionType",
+            actionRule.getActionType().name(),
+            "handler",
+            actionRule.getActionType().getHandler().name())
+        .record(enqueued);
+
+    log.with("action_rule_id", actionRule.getId())
+        .with("cases", enqueued)
+        .info("Cases enqueued for action rule");
+  }
+
+  /*
+   Walks the cases of the rule in case_ref order, committing every chunk along with a checkpoint
+   of the last case_ref enqueued. The batch is created with the checkpoint, so a resumed rule
+   carries on with the same batch, but its header is only written with the last chunk, from the
+   cases that were actually enqueued. Until then nothing reads the batch.
+  */
+  private int enqueueCasesForActionRuleInChunks(
+      ActionRule actionRule, Optional<ActionRuleCheckpoint> existingCheckpoint) {
+    boolean ceIndividual = isCeIndividualActionType(actionRule.getActionType());
+    ExecutionProfile executionProfile = actionRuleGovernor.profileFor(actionRule);
+
+    ActionRuleCheckpoint checkpoint;
+    if (existingCheckpoint.isPresent()) {
+      checkpoint = existingCheckpoint.get();
+      log.with("action_rule_id", actionRule.getId())
+          .with("batch_id", checkpoint.getBatchId())
+          .with("last_case_ref", checkpoint.getLastCaseRef())
+          .info("Resuming action rule from checkpoint");
+    } else {
+      checkpoint = caseChunkEnqueuer.createCheckpoint(actionRule.getId());
+    }
+
+    CaseSelection chunkSelection = selectCases(actionRule, "case_ref > ?");
+    String chunkSql =
+        "WITH inserted AS (INSERT INTO actionv2.case_to_process (batch_id, action_rule_id, "
+            + "caze_case_ref"
+            + (ceIndividual ? ", ce_expected_capacity" : "")
+            + ") SELECT ?, ?, case_ref"
+            + (ceIndividual ? ", ce_expected_capacity" : "")
+            + " FROM "
+            + casesTable(actionRule)
+            + " "
+            + chunkSelection.getSql()
+            + " ORDER BY case_ref LIMIT ? RETURNING caze_case_ref) "
+            + "SELECT COUNT(*), MAX(caze_case_ref) FROM inserted";
+
+    // Chunking may have been switched off since the checkpoint was written
+    int currentChunkSize = Math.max(chunkSize, 1);
+    int totalEnqueued = 0;
+    boolean moreCases;
+    do {
+      long start = System.currentTimeMillis();
+      int enqueued =
+          caseChunkEnqueuer.enqueueChunk(
+              checkpoint,
+              chunkSql,
+              chunkSelection.getParams(),
+              currentChunkSize,
+              ceIndividual,
+              executionProfile);
+      long elapsed = System.currentTimeMillis() - start;
+      totalEnqueued += enqueued;
+      schedulerWatchdog.progress(SchedulerWatchdog.actionRuleRun(actionRule.getId()));
+
+      // A short chunk means we've run out of cases after the checkpoint
+      moreCases = enqueued == currentChunkSize;
+      currentChunkSize = nextChunkSize(currentChunkSize, elapsed, chunkTargetMillis, maxChunkSize);
+    } while (moreCases);
+
+    caseChunkEnqueuer.deleteCheckpoint(actionRule.getId());
+    return totalEnqueued;
+  }
+
+  /*
+   Splits the case_ref keyspace of the rule into ranges and inserts each range on its own
+   connection. Every worker imports the snapshot exported by the coordinator, so the ranges see
+   exactly the cases that the coordinator counted for the batch header.
+
+   The workers commit one after another, so a failure part way through can leave some ranges
+   committed. The header is what makes a batch visible, and it is written in the rule's own
+   transaction, so it only commits along with the rule being marked triggered. Rows left behind by
+   an attempt that failed have no header, so nothing reads them, and they are deleted when the
+   rule is retried, before its cases are enqueued again. A rule that already has a header has had
+   its cases enqueued, and is not enqueued a second time.
+  */
+  private int enqueueCasesForActionRuleInPartitions(ActionRule actionRule) {
+    Boolean enqueued =
+        jdbcTemplate.queryForObject(ACTION_BATCH_EXISTS_SQL, Boolean.class, actionRule.getId());
+    if (Boolean.TRUE.equals(enqueued)) {
+      log.with("action_rule_id", actionRule.getId())
+          .warn("Action rule already has a batch, not enqueueing its cases again");
+      return 0;
+    }
+
+    int discarded = jdbcTemplate.update(DELETE_UNBATCHED_CASES_SQL, actionRule.getId());
+    if (discarded > 0) {
+      log.with("action_rule_id", actionRule.getId())
+          .with("cases", discarded)
+          .warn("Discarded cases left by an earlier failed attempt at the action rule");
+    }
+
+    UUID batchId = UUID.randomUUID();
+    boolean ceIndividual = isCeIndividualActionType(actionRule.getActionType());
+    ExecutionProfile executionProfile = actionRuleGovernor.profileFor(actionRule);
+    DataSource dataSource = jdbcTemplate.getDataSource();
+
+    String casesTable = casesTable(actionRule);
+    CaseSelection countSelection = selectCases(actionRule);
+    String countSql =
+        "SELECT COUNT(*), SUM(ce_expected_capacity), MIN(case_ref), MAX(case_ref) FROM "
+            + casesTable
+            + " "
+            + countSelection.getSql();
+    CaseSelection rangeSelection = selectCases(actionRule, "case_ref BETWEEN ? AND ?");
+    String insertSql =
+        ceIndividual
+            ? "INSERT INTO actionv2.case_to_process (batch_id, action_rule_id, caze_case_ref, "
+                + "ce_expected_capacity) SELECT ?, ?, case_ref, ce_expected_capacity FROM "
+                + casesTable
+                + " "
+                + rangeSelection.getSql()
+            : "INSERT INTO actionv2.case_to_process (batch_id, action_rule_id, caze_case_ref) "
+                + "SELECT ?, ?, case_ref FROM "
+                + casesTable
+                + " "
+                + rangeSelection.getSql();
+
+    try (Connection coordinator = dataSource.getConnection()) {
+      coordinator.setAutoCommit(false);
+      coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+      try {
+        String snapshotId;
+        try (Statement statement = coordinator.createStatement();
+            ResultSet resultSet = statement.executeQuery("SELECT pg_export_snapshot()")) {
+          resultSet.next();
+          snapshotId = resultSet.getString(1);
+        }
+        actionRuleGovernor.applyToReads(coordinator, executionProfile);
+
+        int batchQuantity;
+        long minCaseRef;
+        long maxCaseRef;
+        try (PreparedStatement count = coordinator.prepareStatement(countSql)) {
+          bind(count, countSelection.getParams().toArray());
+          ResultSet resultSet = count.executeQuery();
+          resultSet.next();
+          if (resultSet.getLong(1) == 0) {
+            return 0;
+          }
+          Object quantity = ceIndividual ? resultSet.getObject(2) : resultSet.getObject(1);
+          batchQuantity = quantity == null ? 0 : ((Number) quantity).intValue();
+          minCaseRef = resultSet.getLong(3);
+          maxCaseRef = resultSet.getLong(4);
+        }
+
+        List<CaseRefRange> ranges = splitCaseRefRange(minCaseRef, maxCaseRef, partitions);
+        log.with("action_rule_id", actionRule.getId())
+            .with("batch_id", batchId)
+            .with("partitions", ranges.size())
+            .info("Enqueueing cases for action rule in partitions");
+
+        int inserted =
+            insertPartitions(
+                dataSource,
+                snapshotId,
+                insertSql,
+                rangeSelection,
+                ranges,
+                batchId,
+                actionRule.getId(),
+                executionProfile);
+        jdbcTemplate.update(INSERT_ACTION_BATCH_SQL, batchId, actionRule.getId(), batchQuantity);
+        return inserted;
+      } finally {
+        coordinator.rollback();
+      }
+    } catch (SQLException e) {
+      throw jdbcTemplate.getExceptionTranslator().translate("Partitioned enqueue", countSql, e);
     }
   }
 
-  private String buildWhereClause(
-      UUID actionPlanId, String classifiersClause, ActionHandler actionHandler) {
-    StringBuilder whereClause = new StringBuilder();
-    whereClause.append(String.format("WHERE action_plan_id='%s'", actionPlanId.toString()));
+  private int insertPartitions(
+      DataSource dataSource,
+      String snapshotId,
+      String insertSql,
+      CaseSelection rangeSelection,
+      List<CaseRefRange> ranges,
+      UUID batchId,
+      UUID actionRuleId,
+      ExecutionProfile executionProfile)
+      throws SQLException {
+    List<Connection> workerConnections = new ArrayList<>(ranges.size());
+    List<Future<Integer>> results = new ArrayList<>(ranges.size());
+
+    try {
+      for (CaseRefRange range : ranges) {
+        Connection connection = dataSource.getConnection();
+        workerConnections.add(connection);
+        connection.setAutoCommit(false);
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+        results.add(
+            partitionExecutor.submit(
+                () -> {
+                  try (Statement statement = connection.createStatement()) {
+                    statement.execute("SET TRANSACTION SNAPSHOT '" + snapshotId + "'");
+                  }
+                  // Only once the snapshot is set, which has to come first in the transaction
+                  actionRuleGovernor.apply(connection, executionProfile);
+                  try (PreparedStatement insert = connection.prepareStatement(insertSql)) {
+                    bind(
+                        insert,
+                        rangeSelection.bindBetween(
+                            new Object[] {batchId, actionRuleId, range.getFrom(), range.getTo()}));
+                    return insert.executeUpdate();
+                  }
+                }));
+      }
+
+      int inserted = 0;
+      for (Future<Integer> result : results) {
+        inserted += result.get();
+        schedulerWatchdog.progress(SchedulerWatchdog.actionRuleRun(actionRuleId));
+      }
+
+      // Only once every range has succeeded, so a failed range leaves nothing committed
+      for (Connection connection : workerConnections) {
+        connection.commit();
+      }
+      return inserted;
+    } catch (ExecutionException e) {
+      rollback(workerConnections);
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new RuntimeException("Unexpected error enqueueing partition", e.getCause());
+    } catch (InterruptedException e) {
+      rollback(workerConnections);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while enqueueing partitions", e);
+    } catch (SQLException | RuntimeException e) {
+      rollback(workerConnections);
+      throw e;
+    } finally {
+      // Stops any ranges still running after one has failed
+      results.forEach(result -> result.cancel(true));
+      for (Connection connection : workerConnections) {
+        connection.close();
+      }
+    }
+  }
+
+  private static void bind(PreparedStatement statement, Object[] params) throws SQLException {
+    for (int i = 0; i < params.length; i++) {
+      statement.setObject(i + 1, params[i]);
+    }
+  }
+
+  private void rollback(List<Connection> connections) {
+    for (Connection connection : connections) {
+      try {
+        connection.rollback();
+      } catch (SQLException e) {
+        log.error("Could not roll back partition", e);
+      }
+    }
+  }
+
+  /*
+   Scales the chunk towards the size that would have committed in the target time, but never by
+   more than a factor of two in one step so one slow commit doesn't collapse it.
+  */
+  static int nextChunkSize(
+      int currentChunkSize, long elapsedMillis, long targetMillis, int maxChunkSize) {
+    long idealChunkSize = currentChunkSize * targetMillis / Math.max(elapsedMillis, 1);
+    long boundedChunkSize =
+        Math.max(currentChunkSize / 2, Math.min(idealChunkSize, currentChunkSize * 2L));
+    return (int) Math.max(1, Math.min(boundedChunkSize, maxChunkSize));
+  }
+
+  static List<CaseRefRange> splitCaseRefRange(long minCaseRef, long maxCaseRef, int partitions) {
+    long rangeSize = (maxCaseRef - minCaseRef) / partitions + 1;
+    List<CaseRefRange> ranges = new ArrayList<>(partitions);
+
+    for (long from = minCaseRef; from <= maxCaseRef; from += rangeSize) {
+      ranges.add(new CaseRefRange(from, Math.min(from + rangeSize - 1, maxCaseRef)));
+    }
+
+    return ranges;
+  }
+
+  CaseSelection selectCases(ActionRule actionRule) {
+    return selectCases(actionRule, null);
+  }
+
+  /*
+   Every field a structured classifier can name is carried by the case_classification projection
+   from the V10 migration, so those rules scan it rather than the full width cases table. A raw
+   classifiers clause can name any column of cases, so those rules stay on cases.
+  */
+  String casesTable(ActionRule actionRule) {
+    return projection && actionRule.getClassifiers() != null
+        ? CASE_CLASSIFICATION_TABLE
+        : CASES_TABLE;
+  }
+
+  // Rules enqueued in one pass share the scan, so one raw clause keeps them all on cases
+  private String casesTable(List<ActionRule> actionRules) {
+    for (ActionRule actionRule : actionRules) {
+      if (casesTable(actionRule).equals(CASES_TABLE)) {
+        return CASES_TABLE;
+      }
+    }
+    return CASE_CLASSIFICATION_TABLE;
+  }
+
+  /*
+   The additional predicate comes first, so its parameters are bound before those of the plan and
+   the classifiers. The action plan and classifier values are all bound as parameters, so rules of
+   the same shape share one statement. The fixed predicates stay literals and must stay in step
+   with the partial indexes in the V3 and V10 migrations, which can only be used if the planner
+   sees them.
+  */
+  private CaseSelection selectCases(ActionRule actionRule, String additionalPredicate) {
+    CaseSelection baseSelection = selectBaseCases(actionRule, additionalPredicate);
+    CaseSelection classifierSelection = selectClassifiedCases(actionRule);
+
+    List<Object> params = new ArrayList<>(baseSelection.getParams());
+    params.addAll(classifierSelection.getParams());
+    return new CaseSelection(
+        baseSelection.getSql() + " AND " + classifierSelection.getSql(), params);
+  }
+
+  // Everything but the classifiers, which is what rules on the same plan and handler share
+  private CaseSelection selectBaseCases(ActionRule actionRule, String additionalPredicate) {
+    StringBuilder whereClause = new StringBuilder("WHERE ");
+    if (additionalPredicate != null) {
+      whereClause.append(additionalPredicate).append(" AND ");
+    }
+
+    whereClause.append("action_plan_id = ?");
     whereClause.append(" AND receipt_received='f'");
     whereClause.append(" AND address_invalid='f'");
     whereClause.append(" AND skeleton='f'");
 
-    if (actionHandler == ActionHandler.PRINTER) {
+    if (actionRule.getActionType().getHandler() == ActionHandler.PRINTER) {
       whereClause.append(
           " AND refusal_received IS DISTINCT FROM '"
               + RefusalType.EXTRAORDINARY_REFUSAL.name()
@@ -73,17 +628,44 @@ public class CaseClassifier {
       whereClause.append(" AND refusal_received IS NULL");
     }
 
-    /*
-     " AND " + classifiersclause, if there's no classifiersclause (it can't be null) it will cause an error,
-      as the SQL statement will end: " AND "
-      However this may not be bad behaviour, we would always want to a classifiersclause
-    */
-    whereClause.append(" AND ").append(classifiersClause);
+    return new CaseSelection(whereClause.toString(), List.of(actionRule.getActionPlan().getId()));
+  }
+
+  private CaseSelection selectClassifiedCases(ActionRule actionRule) {
+    if (actionRule.getClassifiers() != null) {
+      return classifierCompiler.compile(actionRule.getClassifiers());
+    }
 
-    return whereClause.toString();
+    // We would never want a rule with no classifiers to select every case
+    if (actionRule.getClassifiersClause() == null) {
+      throw new IllegalStateException("Action rule " + actionRule.getId() + " has no classifiers");
+    }
+
+    // Rules from before structured classifiers have a raw SQL clause, bracketed so an OR in it
+    // can't escape the base predicates
+    return new CaseSelection(
+        "(" + actionRule.getClassifiersClause() + ")", Collections.emptyList());
   }
 
-  private static boolean isCeIndividualActionType(ActionType actionType) {
+  static boolean isCeIndividualActionType(ActionType actionType) {
     return ceIndividualActionTypes.contains(actionType);
   }
+
+  static class CaseRefRange {
+    private final long from;
+    private final long to;
+
+    CaseRefRange(long from, long to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    long getFrom() {
+      return from;
+    }
+
+    long getTo() {
+      return to;
+    }
+  }
 }
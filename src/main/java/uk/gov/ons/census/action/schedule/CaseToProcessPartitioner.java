@@ -0,0 +1,95 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.util.List;
+import java.util.UUID;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/*
+ Gives every action rule its own partition of case_to_process, so that once a rule has triggered
+ and all of its cases have been consumed the whole partition can be dropped, instead of the rows
+ being deleted one by one and left for vacuum.
+*/
+@Component
+public class CaseToProcessPartitioner {
+  private static final Logger log = LoggerFactory.getLogger(CaseToProcessPartitioner.class);
+  private static final String PARTITION_PREFIX = "case_to_process_";
+
+  private static final String FIND_CONSUMED_PARTITIONS_SQL =
+      "SELECT c.relname FROM pg_inherits i "
+          + "JOIN pg_class c ON c.oid = i.inhrelid "
+          + "LEFT JOIN actionv2.action_rule r "
+          + "ON c.relname = '"
+          + PARTITION_PREFIX
+          + "' || replace(r.id::text, '-', '') "
+          + "WHERE i.inhparent = 'actionv2.case_to_process'::regclass "
+          + "AND c.relname <> '"
+          + PARTITION_PREFIX
+          + "default' "
+          + "AND (r.id IS NULL OR r.has_triggered)";
+
+  private final JdbcTemplate jdbcTemplate;
+
+  public CaseToProcessPartitioner(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  /*
+   Creating a partition briefly locks the whole of case_to_process, so it is committed on its own
+   rather than holding the lock for as long as the rule takes to enqueue.
+  */
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public void createPartition(UUID actionRuleId) {
+    jdbcTemplate.execute(
+        "CREATE TABLE IF NOT EXISTS actionv2."
+            + partitionName(actionRuleId)
+            + " PARTITION OF actionv2.case_to_process FOR VALUES IN ('"
+            + actionRuleId
+            + "')");
+  }
+
+  /*
+   Empties a rule's partition in one go once its cases have been published, leaving nothing for
+   vacuum and an empty partition for dropConsumedPartitions. A partition that has already been
+   dropped is left alone.
+  */
+  public void truncatePartition(UUID actionRuleId) {
+    String partition = "actionv2." + partitionName(actionRuleId);
+    Boolean exists =
+        jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, partition);
+    if (Boolean.TRUE.equals(exists)) {
+      jdbcTemplate.execute("TRUNCATE " + partition);
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${scheduler.droppartitions}")
+  public void dropConsumedPartitions() {
+    List<String> partitions = jdbcTemplate.queryForList(FIND_CONSUMED_PARTITIONS_SQL, String.class);
+
+    for (String partition : partitions) {
+      try {
+        if (dropPartitionIfEmpty(partition)) {
+          log.with("partition", partition).info("Dropped consumed case_to_process partition");
+        }
+      } catch (DataAccessException e) {
+        // Most likely a reader holding the partition past the lock timeout, try again next time
+        log.with("partition", partition).warn("Could not drop case_to_process partition", e);
+      }
+    }
+  }
+
+  private boolean dropPartitionIfEmpty(String partition) {
+    return jdbcTemplate.queryForObject(
+        "SELECT actionv2.drop_case_to_process_partition_if_empty(?)", Boolean.class, partition);
+  }
+
+  static String partitionName(UUID actionRuleId) {
+    return PARTITION_PREFIX + actionRuleId.toString().replace("-", "");
+  }
+}
@@ -0,0 +1,278 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.model.dto.EstimateMethod;
+import uk.gov.ons.census.action.model.entity.ActionHandler;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
+
+/*
+ Decides which rules to claim once more are due than the threshold, which happens after an outage
+ or a freeze. Normally rules are claimed oldest first, but a backlog is ordered by the configured
+ priorities instead, so time critical rules go ahead of bulk runs. Each backlogged rule is sized
+ once from the planner estimate, and no more than heavyconcurrency rules estimated at heavycases or
+ more are claimed at a time, so the heavy rules can't take every worker. How long the backlog will
+ take to drain is estimated from the cases every node has enqueued since catching up started.
+*/
+@Component
+public class CatchUpPlanner {
+  private static final Logger log = LoggerFactory.getLogger(CatchUpPlanner.class);
+  private static final String FIND_BACKLOG_SQL =
+      "SELECT id, action_type, trigger_date_time, sla_deadline FROM actionv2.action_rule "
+          + "WHERE trigger_date_time <= ? AND has_triggered = false "
+          + "AND (lease_expiry IS NULL OR lease_expiry < ?) "
+          + "AND (retry_after IS NULL OR retry_after <= ?)";
+  private static final String CASES_ENQUEUED_SINCE_SQL =
+      "SELECT COALESCE(SUM(quantity), 0) FROM actionv2.action_batch WHERE created_date_time >= ?";
+
+  enum Priority {
+    SLA_DEADLINE,
+    HANDLER,
+    TRIGGER_TIME,
+    ESTIMATED_SIZE
+  }
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ActionRuleRepository actionRuleRepo;
+  private final ActionRuleEstimator actionRuleEstimator;
+  private final int threshold;
+  private final Comparator<BacklogRule> priorityOrder;
+  private final long heavyCases;
+  private final int heavyConcurrency;
+  private final Map<UUID, Long> estimatedCases = new ConcurrentHashMap<>();
+  private final Set<UUID> runningHeavyRules = ConcurrentHashMap.newKeySet();
+
+  private volatile int backlogRules;
+  private volatile long backlogCases;
+  private volatile double drainSeconds = Double.NaN;
+  private Instant catchUpStarted;
+
+  public CatchUpPlanner(
+      JdbcTemplate jdbcTemplate,
+      ActionRuleRepository actionRuleRepo,
+      ActionRuleEstimator actionRuleEstimator,
+      MeterRegistry meterRegistry,
+      @Value("${scheduler.catchup.threshold}") int threshold,
+      @Value("${scheduler.catchup.priority}") String priorities,
+      @Value("${scheduler.catchup.handlerorder}") String handlerOrder,
+      @Value("${scheduler.catchup.heavycases}") long heavyCases,
+      @Value("${scheduler.catchup.heavyconcurrency}") int heavyConcurrency) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.actionRuleRepo = actionRuleRepo;
+    this.actionRuleEstimator = actionRuleEstimator;
+    this.threshold = threshold;
+    this.priorityOrder =
+        priorityOrder(parse(priorities, Priority.class), parse(handlerOrder, ActionHandler.class));
+    this.heavyCases = heavyCases;
+    this.heavyConcurrency = heavyConcurrency;
+
+    meterRegistry.gauge("action.rule.backlog", this, planner -> planner.backlogRules);
+    meterRegistry.gauge("action.rule.backlog.cases", this, planner -> planner.backlogCases);
+    meterRegistry.gauge("action.rule.backlog.drain", this, planner -> planner.drainSeconds);
+  }
+
+  /*
+   The ids of the rules to claim, highest priority first, or null when there is no backlog and
+   rules should be claimed in trigger order as usual. A heavy slot is taken for every heavy rule
+   returned, here rather than once it has been claimed so that two threads claiming at once can't
+   both fill the same slot, and given back by claimed() if the rule isn't claimed after all.
+  */
+  public synchronized List<UUID> prioritise(int limit, OffsetDateTime now) {
+    List<BacklogRule> backlog = findBacklog(now);
+    if (backlog.size() <= threshold) {
+      finishCatchingUp();
+      return null;
+    }
+
+    estimate(backlog);
+    backlog.sort(priorityOrder);
+    report(backlog);
+
+    List<UUID> prioritised = new ArrayList<>();
+    int heavyPermits = heavyConcurrency - runningHeavyRules.size();
+    for (BacklogRule rule : backlog) {
+      if (prioritised.size() == limit) {
+        break;
+      }
+      if (isHeavy(rule.getId())) {
+        if (heavyPermits <= 0) {
+          continue;
+        }
+        heavyPermits--;
+        runningHeavyRules.add(rule.getId());
+      }
+      prioritised.add(rule.getId());
+    }
+    return prioritised;
+  }
+
+  // Gives back the heavy slots taken for prioritised rules that another node claimed first
+  public void claimed(List<UUID> prioritisedIds, List<UUID> claimedIds) {
+    prioritisedIds.stream()
+        .filter(actionRuleId -> !claimedIds.contains(actionRuleId))
+        .forEach(runningHeavyRules::remove);
+  }
+
+  public void released(UUID actionRuleId) {
+    runningHeavyRules.remove(actionRuleId);
+  }
+
+  List<BacklogRule> findBacklog(OffsetDateTime now) {
+    return jdbcTemplate.query(
+        FIND_BACKLOG_SQL,
+        (resultSet, rowNum) ->
+            new BacklogRule(
+                resultSet.getObject("id", UUID.class),
+                resultSet.getString("action_type") == null
+                    ? null
+                    : ActionType.valueOf(resultSet.getString("action_type")),
+                resultSet.getObject("trigger_date_time", OffsetDateTime.class),
+                resultSet.getObject("sla_deadline", OffsetDateTime.class)),
+        now,
+        now,
+        now);
+  }
+
+  // Each rule is only sized once while it is in the backlog, the planner estimate is enough to rank
+  private void estimate(List<BacklogRule> backlog) {
+    Set<UUID> backlogIds = backlog.stream().map(BacklogRule::getId).collect(Collectors.toSet());
+    estimatedCases.keySet().retainAll(backlogIds);
+
+    List<UUID> unsized =
+        backlogIds.stream()
+            .filter(id -> !estimatedCases.containsKey(id))
+            .collect(Collectors.toList());
+    for (ActionRule actionRule : actionRuleRepo.findAllById(unsized)) {
+      long cases;
+      try {
+        cases = actionRuleEstimator.estimate(actionRule, EstimateMethod.PLANNER).getCases();
+      } catch (RuntimeException e) {
+        // It will fail again when it runs, and get reported then
+        log.with("action_rule_id", actionRule.getId()).warn("Could not size backlogged rule", e);
+        cases = 0;
+      }
+      estimatedCases.put(actionRule.getId(), cases);
+    }
+
+    backlog.forEach(rule -> rule.setEstimatedCases(estimatedCases.getOrDefault(rule.getId(), 0L)));
+  }
+
+  private void report(List<BacklogRule> backlog) {
+    Instant now = Instant.now();
+    if (catchUpStarted == null) {
+      catchUpStarted = now;
+    }
+
+    backlogRules = backlog.size();
+    backlogCases = backlog.stream().mapToLong(BacklogRule::getEstimatedCases).sum();
+    double elapsedSeconds = Duration.between(catchUpStarted, now).toMillis() / 1000.0;
+    double casesPerSecond =
+        elapsedSeconds > 0 ? casesEnqueuedSinceCatchUpStarted() / elapsedSeconds : 0;
+    drainSeconds = casesPerSecond > 0 ? backlogCases / casesPerSecond : Double.NaN;
+
+    log.with("backlog_rules", backlogRules)
+        .with("backlog_cases", backlogCases)
+        .with("running_heavy_rules", runningHeavyRules.size())
+        .with("drain_seconds", Double.isNaN(drainSeconds) ? null : Math.round(drainSeconds))
+        .info("Catching up on backlogged action rules");
+  }
+
+  private void finishCatchingUp() {
+    if (catchUpStarted != null) {
+      log.with("elapsed_seconds", Duration.between(catchUpStarted, Instant.now()).toSeconds())
+          .info("Caught up on backlogged action rules");
+      catchUpStarted = null;
+    }
+    backlogRules = 0;
+    backlogCases = 0;
+    drainSeconds = Double.NaN;
+  }
+
+  /*
+   From the batch headers, so the rules every node has enqueued count, not just this one's. A CE
+   individual batch counts its expected capacity rather than its cases, which is close enough to
+   tell how fast the backlog is going down.
+  */
+  private long casesEnqueuedSinceCatchUpStarted() {
+    Long cases =
+        jdbcTemplate.queryForObject(
+            CASES_ENQUEUED_SINCE_SQL,
+            Long.class,
+            OffsetDateTime.ofInstant(catchUpStarted, ZoneOffset.UTC));
+    return cases == null ? 0 : cases;
+  }
+
+  private boolean isHeavy(UUID actionRuleId) {
+    return estimatedCases.getOrDefault(actionRuleId, 0L) >= heavyCases;
+  }
+
+  static Comparator<BacklogRule> priorityOrder(
+      List<Priority> priorities, List<ActionHandler> handlerOrder) {
+    Comparator<BacklogRule> order = (first, second) -> 0;
+    for (Priority priority : priorities) {
+      switch (priority) {
+        case SLA_DEADLINE:
+          order =
+              order.thenComparing(
+                  BacklogRule::getSlaDeadline, Comparator.nullsLast(Comparator.naturalOrder()));
+          break;
+        case HANDLER:
+          order = order.thenComparingInt(rule -> handlerRank(rule, handlerOrder));
+          break;
+        case TRIGGER_TIME:
+          order =
+              order.thenComparing(
+                  BacklogRule::getTriggerDateTime, Comparator.nullsLast(Comparator.naturalOrder()));
+          break;
+        case ESTIMATED_SIZE:
+          order = order.thenComparingLong(BacklogRule::getEstimatedCases);
+          break;
+      }
+    }
+    return order;
+  }
+
+  // Handlers that aren't listed come after those that are
+  private static int handlerRank(BacklogRule rule, List<ActionHandler> handlerOrder) {
+    int rank =
+        rule.getActionType() == null ? -1 : handlerOrder.indexOf(rule.getActionType().getHandler());
+    return rank == -1 ? handlerOrder.size() : rank;
+  }
+
+  private static <E extends Enum<E>> List<E> parse(String values, Class<E> type) {
+    return Arrays.stream(values.split(","))
+        .map(String::trim)
+        .filter(value -> !value.isEmpty())
+        .map(value -> Enum.valueOf(type, value))
+        .collect(Collectors.toList());
+  }
+
+  @Data
+  static class BacklogRule {
+    private final UUID id;
+    private final ActionType actionType;
+    private final OffsetDateTime triggerDateTime;
+    private final OffsetDateTime slaDeadline;
+    private long estimatedCases;
+  }
+}
@@ -0,0 +1,255 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.model.dto.FulfilmentIngestion;
+import uk.gov.ons.census.action.model.dto.FulfilmentRecord;
+
+/*
+ Bulk loads a stream of fulfilments into fulfilment_to_process in one transaction. The stream is
+ copied into a temporary staging table by COPY as it is read, through a fixed size buffer, so a
+ stream of any length is loaded in constant memory. A single INSERT ... SELECT then moves the
+ staged fulfilments across, looking each case ref up by case id through cases_case_id_idx.
+ Fulfilments whose case id matches no case are dropped and counted as unmatched. CSV streams are
+ handed to COPY as they come, once their header has been checked, NDJSON streams are parsed a
+ record at a time and written to COPY as CSV.
+*/
+@Component
+public class FulfilmentIngester {
+  private static final Logger log = LoggerFactory.getLogger(FulfilmentIngester.class);
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int MAX_HEADER_BYTES = 4096;
+
+  // In the order of the fields of FulfilmentRecord, which NDJSON records are written in
+  static final List<String> STAGING_COLUMNS =
+      List.of(
+          "case_id",
+          "fulfilment_code",
+          "fulfilment_type",
+          "address_line1",
+          "address_line2",
+          "address_line3",
+          "town_name",
+          "postcode",
+          "title",
+          "forename",
+          "surname",
+          "field_coordinator_id",
+          "field_officer_id",
+          "organisation_name",
+          "quantity");
+
+  static final String CREATE_STAGING_SQL =
+      "CREATE TEMPORARY TABLE fulfilment_staging (case_id uuid, fulfilment_code varchar(255), "
+          + "fulfilment_type varchar(255), address_line1 varchar(255), "
+          + "address_line2 varchar(255), address_line3 varchar(255), town_name varchar(255), "
+          + "postcode varchar(255), title varchar(255), forename varchar(255), "
+          + "surname varchar(255), field_coordinator_id varchar(255), "
+          + "field_officer_id varchar(255), organisation_name varchar(255), quantity integer) "
+          + "ON COMMIT DROP";
+
+  static final String INSERT_FULFILMENTS_SQL =
+      "INSERT INTO actionv2.fulfilment_to_process (caze_case_ref, fulfilment_code, "
+          + "fulfilment_type, address_line1, address_line2, address_line3, town_name, postcode, "
+          + "title, forename, surname, field_coordinator_id, field_officer_id, "
+          + "organisation_name, quantity) "
+          + "SELECT c.case_ref, s.fulfilment_code, s.fulfilment_type, s.address_line1, "
+          + "s.address_line2, s.address_line3, s.town_name, s.postcode, s.title, s.forename, "
+          + "s.surname, s.field_coordinator_id, s.field_officer_id, s.organisation_name, "
+          + "s.quantity FROM fulfilment_staging s JOIN actionv2.cases c ON c.case_id = s.case_id";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ObjectMapper objectMapper;
+
+  public FulfilmentIngester(JdbcTemplate jdbcTemplate, ObjectMapper objectMapper) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.objectMapper = objectMapper;
+  }
+
+  public FulfilmentIngestion ingestNdjson(InputStream input) {
+    return ingest(
+        connection -> {
+          long received = 0;
+          try (MappingIterator<FulfilmentRecord> records =
+                  objectMapper.readerFor(FulfilmentRecord.class).readValues(input);
+              Writer staging = copyIn(connection, copySql(STAGING_COLUMNS))) {
+            while (records.hasNextValue()) {
+              writeRow(staging, records.nextValue());
+              received++;
+            }
+          }
+          return received;
+        });
+  }
+
+  // The header names the staging columns present, in the order the values are in
+  public FulfilmentIngestion ingestCsv(InputStream input) {
+    return ingest(
+        connection -> {
+          List<String> columns = readHeader(input);
+          return connection
+              .unwrap(PGConnection.class)
+              .getCopyAPI()
+              .copyIn(copySql(columns), input, BUFFER_SIZE);
+        });
+  }
+
+  private FulfilmentIngestion ingest(StagingLoader stagingLoader) {
+    long start = System.currentTimeMillis();
+
+    try (Connection connection = jdbcTemplate.getDataSource().getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        try (Statement statement = connection.createStatement()) {
+          statement.execute(CREATE_STAGING_SQL);
+        }
+        long received = stagingLoader.load(connection);
+
+        // So the planner knows how many are staged, and probes the case_id index for a small load
+        long ingested;
+        try (Statement statement = connection.createStatement()) {
+          statement.execute("ANALYZE fulfilment_staging");
+          ingested = statement.executeUpdate(INSERT_FULFILMENTS_SQL);
+        }
+        connection.commit();
+
+        FulfilmentIngestion ingestion = new FulfilmentIngestion();
+        ingestion.setReceived(received);
+        ingestion.setIngested(ingested);
+        ingestion.setUnmatched(received - ingested);
+        ingestion.setElapsedMillis(System.currentTimeMillis() - start);
+
+        log.with("received", received)
+            .with("ingested", ingested)
+            .with("unmatched", ingestion.getUnmatched())
+            .with("elapsed_ms", ingestion.getElapsedMillis())
+            .info("Fulfilments ingested");
+        return ingestion;
+      } catch (IOException | SQLException | RuntimeException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Could not read fulfilment: " + e.getOriginalMessage(), e);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read fulfilments", e);
+    } catch (SQLException e) {
+      // Data exceptions are a value in the stream that doesn't fit its column
+      if (e.getSQLState() != null && e.getSQLState().startsWith("22")) {
+        throw new IllegalArgumentException("Could not stage fulfilment: " + e.getMessage(), e);
+      }
+      throw jdbcTemplate
+          .getExceptionTranslator()
+          .translate("Fulfilment ingestion", INSERT_FULFILMENTS_SQL, e);
+    }
+  }
+
+  /*
+   Reads the header line a byte at a time, so nothing after it is taken from the stream before
+   COPY reads the rows. The names are checked against the staging columns because they are put
+   into the COPY statement, which can't take bind parameters.
+  */
+  static List<String> readHeader(InputStream input) throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    int next;
+    while ((next = input.read()) != -1 && next != '\n') {
+      if (header.size() == MAX_HEADER_BYTES) {
+        throw new IllegalArgumentException("CSV header is too long");
+      }
+      header.write(next);
+    }
+
+    List<String> columns = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    for (String name : header.toString(StandardCharsets.UTF_8).split(",")) {
+      String column = name.trim().replace("\"", "");
+      if (!STAGING_COLUMNS.contains(column) || !seen.add(column)) {
+        throw new IllegalArgumentException("Unexpected CSV column '" + column + "'");
+      }
+      columns.add(column);
+    }
+
+    if (!seen.contains("case_id")) {
+      throw new IllegalArgumentException("CSV must have a case_id column");
+    }
+    return columns;
+  }
+
+  static String copySql(List<String> columns) {
+    return "COPY fulfilment_staging ("
+        + String.join(", ", columns)
+        + ") FROM STDIN WITH (FORMAT csv)";
+  }
+
+  private static Writer copyIn(Connection connection, String sql) throws SQLException {
+    return new BufferedWriter(
+        new OutputStreamWriter(
+            new PGCopyOutputStream(connection.unwrap(PGConnection.class), sql, BUFFER_SIZE),
+            StandardCharsets.UTF_8),
+        BUFFER_SIZE);
+  }
+
+  static void writeRow(Writer writer, FulfilmentRecord record) throws IOException {
+    writeValues(
+        writer,
+        record.getCaseId(),
+        record.getFulfilmentCode(),
+        record.getFulfilmentType() == null ? null : record.getFulfilmentType().name(),
+        record.getAddressLine1(),
+        record.getAddressLine2(),
+        record.getAddressLine3(),
+        record.getTownName(),
+        record.getPostcode(),
+        record.getTitle(),
+        record.getForename(),
+        record.getSurname(),
+        record.getFieldCoordinatorId(),
+        record.getFieldOfficerId(),
+        record.getOrganisationName(),
+        record.getQuantity());
+  }
+
+  // Nulls are empty and unquoted, strings are always quoted, as COPY csv expects
+  private static void writeValues(Writer writer, Object... values) throws IOException {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+
+      Object value = values[i];
+      if (value instanceof String) {
+        writer.write('"');
+        writer.write(((String) value).replace("\"", "\"\""));
+        writer.write('"');
+      } else if (value != null) {
+        writer.write(value.toString());
+      }
+    }
+    writer.write('\n');
+  }
+
+  private interface StagingLoader {
+    long load(Connection connection) throws IOException, SQLException;
+  }
+}
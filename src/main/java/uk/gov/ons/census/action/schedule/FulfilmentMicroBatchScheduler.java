@@ -0,0 +1,61 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/*
+ Cuts a batch for a fulfilment code as soon as enough fulfilments are waiting for it, or the
+ oldest of them has waited long enough, rather than leaving them all for the daily batch. The
+ decision is made from the fulfilment_pending counters, which are incremented by a trigger on
+ fulfilment_to_process and reduced when a batch is cut. The daily batch still runs and sweeps up
+ whatever is left.
+*/
+@Service
+@ConditionalOnProperty(name = "fulfilment.batch.microbatch.enabled", havingValue = "true")
+public class FulfilmentMicroBatchScheduler {
+  private static final Logger log = LoggerFactory.getLogger(FulfilmentMicroBatchScheduler.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final FulfilmentProcessor fulfilmentProcessor;
+
+  @Value("${fulfilment.batch.microbatch.maxsize}")
+  private long maxSize;
+
+  @Value("${fulfilment.batch.microbatch.maxage}")
+  private long maxAgeMillis;
+
+  public FulfilmentMicroBatchScheduler(
+      JdbcTemplate jdbcTemplate, FulfilmentProcessor fulfilmentProcessor) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.fulfilmentProcessor = fulfilmentProcessor;
+  }
+
+  @Scheduled(fixedDelayString = "${fulfilment.batch.microbatch.frequency}")
+  public void triggerDueFulfilments() {
+    try {
+      for (String fulfilmentCode : findDueFulfilmentCodes()) {
+        fulfilmentProcessor.addFulfilmentBatchIdAndQuantity(fulfilmentCode);
+      }
+    } catch (Exception e) {
+      log.error("Unexpected exception while micro batching fulfilments", e);
+      throw e;
+    }
+  }
+
+  List<String> findDueFulfilmentCodes() {
+    return jdbcTemplate.queryForList(
+        "SELECT fulfilment_code FROM actionv2.fulfilment_pending "
+            + "WHERE pending_count >= ? OR (pending_count > 0 AND oldest_pending <= ?)",
+        String.class,
+        maxSize,
+        OffsetDateTime.now().minus(Duration.ofMillis(maxAgeMillis)));
+  }
+}
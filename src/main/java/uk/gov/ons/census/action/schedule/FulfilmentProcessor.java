@@ -2,43 +2,126 @@ package uk.gov.ons.census.action.schedule;
 
 import com.godaddy.logging.Logger;
 import com.godaddy.logging.LoggerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.UUID;
 import javax.transaction.Transactional;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
-import uk.gov.ons.census.action.model.repository.FulfilmentToSendRepository;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.entity.FulfilmentBatch;
 
 @Component
 public class FulfilmentProcessor {
   private static final Logger log = LoggerFactory.getLogger(FulfilmentProcessor.class);
+
+  /*
+   Claims every unbatched fulfilment in one pass. The batch id for a code is derived from the id
+   of this run and the code, so it can be assigned row by row without first looking up the codes.
+   The claimed rows are locked, so the count per batch is of exactly the rows that are then
+   updated, and the same count goes on each row's quantity, on the batch header and off the
+   pending counters. Fulfilments that arrive while the batch is cut stay counted for the next one.
+  */
+  private static final String BATCH_FULFILMENTS_SQL = buildBatchFulfilmentsSql("");
+  private static final String BATCH_FULFILMENT_CODE_SQL =
+      buildBatchFulfilmentsSql(" AND fulfilment_code = ?");
+
   private JdbcTemplate jdbcTemplate;
-  private FulfilmentToSendRepository fulfilmentToSendRepository;
+  private MeterRegistry meterRegistry;
+  private SchedulerWatchdog schedulerWatchdog;
 
   public FulfilmentProcessor(
-      JdbcTemplate jdbcTemplate, FulfilmentToSendRepository fulfilmentToSendRepository) {
+      JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry, SchedulerWatchdog schedulerWatchdog) {
     this.jdbcTemplate = jdbcTemplate;
-    this.fulfilmentToSendRepository = fulfilmentToSendRepository;
+    this.meterRegistry = meterRegistry;
+    this.schedulerWatchdog = schedulerWatchdog;
   }
 
   @Transactional
-  public void addFulfilmentBatchIdAndQuantity() {
-    List<String> fulfilmentCodes = fulfilmentToSendRepository.findDistinctFulfilmentCode();
-
-    fulfilmentCodes.forEach(
-        fulfilmentCode -> {
-          UUID batchId = UUID.randomUUID();
-          log.with("batch_id", batchId)
-              .with("fulfilment_code", fulfilmentCode)
-              .info("Fulfilments triggered");
+  public List<FulfilmentBatch> addFulfilmentBatchIdAndQuantity() {
+    return batchFulfilments(
+        BATCH_FULFILMENTS_SQL, "all", UUID.randomUUID().toString(), OffsetDateTime.now());
+  }
+
+  @Transactional
+  public List<FulfilmentBatch> addFulfilmentBatchIdAndQuantity(String fulfilmentCode) {
+    return batchFulfilments(
+        BATCH_FULFILMENT_CODE_SQL,
+        fulfilmentCode,
+        UUID.randomUUID().toString(),
+        fulfilmentCode,
+        OffsetDateTime.now());
+  }
 
-          jdbcTemplate.update(
-              "UPDATE actionv2.fulfilment_to_process "
-                  + "SET quantity = (SELECT COUNT(*) FROM actionv2.fulfilment_to_process "
-                  + "WHERE fulfilment_code = ?), batch_id = ? WHERE fulfilment_code = ?",
-              fulfilmentCode,
-              batchId,
-              fulfilmentCode);
+  /*
+   The daily batch cuts every code in one statement, so its duration is recorded against "all".
+   Batch sizes are always recorded per code.
+  */
+  private List<FulfilmentBatch> batchFulfilments(
+      String sql, String fulfilmentCodeTag, Object... params) {
+    String watchdogRun = "fulfilments " + fulfilmentCodeTag;
+    schedulerWatchdog.startRun(watchdogRun);
+    long start = System.nanoTime();
+    List<FulfilmentBatch> fulfilmentBatches;
+    try {
+      fulfilmentBatches =
+          jdbcTemplate.query(
+              sql,
+              (resultSet, rowNum) -> {
+                FulfilmentBatch fulfilmentBatch = new FulfilmentBatch();
+                fulfilmentBatch.setBatchId(resultSet.getObject("batch_id", UUID.class));
+                fulfilmentBatch.setFulfilmentCode(resultSet.getString("fulfilment_code"));
+                fulfilmentBatch.setQuantity(resultSet.getInt("quantity"));
+                fulfilmentBatch.setCreatedDateTime(
+                    resultSet.getObject("created_date_time", OffsetDateTime.class));
+                return fulfilmentBatch;
+              },
+              params);
+    } finally {
+      schedulerWatchdog.finishRun(watchdogRun);
+    }
+
+    meterRegistry
+        .timer("fulfilment.batch.duration", "fulfilmentCode", fulfilmentCodeTag)
+        .record(Duration.ofNanos(System.nanoTime() - start));
+
+    fulfilmentBatches.forEach(
+        fulfilmentBatch -> {
+          log.with("batch_id", fulfilmentBatch.getBatchId())
+              .with("fulfilment_code", fulfilmentBatch.getFulfilmentCode())
+              .with("quantity", fulfilmentBatch.getQuantity())
+              .info("Fulfilments triggered");
+          meterRegistry
+              .summary(
+                  "fulfilment.batch.size", "fulfilmentCode", fulfilmentBatch.getFulfilmentCode())
+              .record(fulfilmentBatch.getQuantity());
         });
+
+    return fulfilmentBatches;
+  }
+
+  private static String buildBatchFulfilmentsSql(String additionalPredicate) {
+    return "WITH claimed AS (SELECT id, md5(? || fulfilment_code)::uuid AS batch_id, "
+        + "fulfilment_code FROM actionv2.fulfilment_to_process "
+        + "WHERE batch_id IS NULL AND fulfilment_code IS NOT NULL"
+        + additionalPredicate
+        + " FOR UPDATE), "
+        + "counted AS (SELECT batch_id, fulfilment_code, COUNT(*) AS quantity FROM claimed "
+        + "GROUP BY batch_id, fulfilment_code), "
+        + "batched AS (UPDATE actionv2.fulfilment_to_process f "
+        + "SET batch_id = c.batch_id, quantity = c.quantity "
+        + "FROM claimed cl JOIN counted c ON c.batch_id = cl.batch_id WHERE f.id = cl.id), "
+        + "batches AS (INSERT INTO actionv2.fulfilment_batch "
+        + "(batch_id, fulfilment_code, quantity, created_date_time) "
+        + "SELECT batch_id, fulfilment_code, quantity, ? FROM counted "
+        + "RETURNING batch_id, fulfilment_code, quantity, created_date_time), "
+        + "pending AS (UPDATE actionv2.fulfilment_pending p "
+        + "SET pending_count = GREATEST(p.pending_count - b.quantity, 0), "
+        + "oldest_pending = CASE WHEN p.pending_count > b.quantity "
+        + "THEN b.created_date_time END "
+        + "FROM batches b WHERE p.fulfilment_code = b.fulfilment_code) "
+        + "SELECT batch_id, fulfilment_code, quantity, created_date_time FROM batches";
   }
 }
@@ -0,0 +1,177 @@
+package uk.gov.ons.census.action.schedule;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+import lombok.Data;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.entity.ActionHandler;
+import uk.gov.ons.census.action.model.entity.ActionType;
+
+/*
+ Writes every triggered printer batch out as a gzipped CSV print file, standing in for the print
+ supplier when testing. The rows are streamed by COPY TO STDOUT from the database through the
+ compressor onto disk without ever being read into objects, so a batch of any size is exported in
+ constant memory. There is one file per batch, named by pack code and batch id. It is written
+ under a temporary name and only renamed into place once complete, then the batch is marked
+ exported so it isn't looked at again. A batch whose file already exists was exported by a run
+ that stopped before marking it, so it is only marked.
+*/
+@Component
+@ConditionalOnProperty(name = "printfile.enabled", havingValue = "true")
+public class PrintFileExporter {
+  private static final Logger log = LoggerFactory.getLogger(PrintFileExporter.class);
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final String PART_SUFFIX = ".part";
+
+  public static final String[] PRINTER_ACTION_TYPES =
+      Arrays.stream(ActionType.values())
+          .filter(actionType -> actionType.getHandler() == ActionHandler.PRINTER)
+          .map(ActionType::name)
+          .toArray(String[]::new);
+
+  // A rule is only marked triggered once all of its cases are in, so these batches are complete
+  static final String FIND_UNEXPORTED_PRINT_BATCHES_SQL =
+      "SELECT b.batch_id, b.action_rule_id, r.action_type FROM actionv2.action_batch b "
+          + "JOIN actionv2.action_rule r ON r.id = b.action_rule_id "
+          + "WHERE b.exported_date_time IS NULL AND r.has_triggered "
+          + "AND r.action_type = ANY(CAST(? AS varchar[])) ORDER BY b.created_date_time";
+  static final String MARK_EXPORTED_SQL =
+      "UPDATE actionv2.action_batch SET exported_date_time = now() WHERE batch_id = ?";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final SchedulerWatchdog schedulerWatchdog;
+  private final Path directory;
+  private final int compressionLevel;
+
+  public PrintFileExporter(
+      JdbcTemplate jdbcTemplate,
+      SchedulerWatchdog schedulerWatchdog,
+      @Value("${printfile.directory}") String directory,
+      @Value("${printfile.compression}") int compressionLevel) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.schedulerWatchdog = schedulerWatchdog;
+    this.directory = Paths.get(directory);
+    this.compressionLevel = compressionLevel;
+  }
+
+  @Scheduled(fixedDelayString = "${printfile.frequency}")
+  public void exportPrintFiles() {
+    for (PrintBatch printBatch : findUnexportedPrintBatches()) {
+      Path printFile = directory.resolve(printBatch.getFileName());
+
+      try {
+        if (!Files.exists(printFile)) {
+          Files.createDirectories(directory);
+          exportPrintFile(printBatch, printFile);
+        }
+        jdbcTemplate.update(MARK_EXPORTED_SQL, printBatch.getBatchId());
+      } catch (IOException | SQLException e) {
+        // Left for the next run to try again
+        log.with("batch_id", printBatch.getBatchId())
+            .with("print_file", printFile.toString())
+            .error("Could not export print file", e);
+      }
+    }
+  }
+
+  List<PrintBatch> findUnexportedPrintBatches() {
+    return jdbcTemplate.query(
+        FIND_UNEXPORTED_PRINT_BATCHES_SQL,
+        (resultSet, rowNum) ->
+            new PrintBatch(
+                resultSet.getObject("batch_id", UUID.class),
+                resultSet.getObject("action_rule_id", UUID.class),
+                ActionType.valueOf(resultSet.getString("action_type"))),
+        (Object) PRINTER_ACTION_TYPES);
+  }
+
+  private void exportPrintFile(PrintBatch printBatch, Path printFile)
+      throws IOException, SQLException {
+    Path partFile = printFile.resolveSibling(printFile.getFileName() + PART_SUFFIX);
+    String watchdogRun = "printFile " + printBatch.getBatchId();
+    schedulerWatchdog.startRun(watchdogRun);
+    long start = System.currentTimeMillis();
+
+    try {
+      long rows;
+      try (Connection connection = jdbcTemplate.getDataSource().getConnection();
+          OutputStream output = compressedOutput(partFile)) {
+        rows =
+            connection
+                .unwrap(PGConnection.class)
+                .getCopyAPI()
+                .copyOut(printFileSql(printBatch), output);
+      }
+      Files.move(partFile, printFile, StandardCopyOption.ATOMIC_MOVE);
+
+      log.with("batch_id", printBatch.getBatchId())
+          .with("pack_code", printBatch.getActionType().getPackCode())
+          .with("rows", rows)
+          .with("bytes", Files.size(printFile))
+          .with("elapsed_ms", System.currentTimeMillis() - start)
+          .info("Print file exported");
+    } catch (IOException | SQLException | RuntimeException e) {
+      Files.deleteIfExists(partFile);
+      throw e;
+    } finally {
+      schedulerWatchdog.finishRun(watchdogRun);
+    }
+  }
+
+  /*
+   COPY can't take bind parameters, but both ids come out of uuid columns so are safe to inline.
+   The action rule id prunes the join down to the rule's own partition of case_to_process.
+  */
+  static String printFileSql(PrintBatch printBatch) {
+    return "COPY (SELECT c.case_ref, c.case_id, c.organisation_name, c.address_line1, "
+        + "c.address_line2, c.address_line3, c.town_name, c.postcode, c.treatment_code, "
+        + "ctp.ce_expected_capacity FROM actionv2.case_to_process ctp "
+        + "JOIN actionv2.cases c ON c.case_ref = ctp.caze_case_ref "
+        + "WHERE ctp.action_rule_id = '"
+        + printBatch.getActionRuleId()
+        + "' AND ctp.batch_id = '"
+        + printBatch.getBatchId()
+        + "') TO STDOUT WITH (FORMAT csv, HEADER)";
+  }
+
+  // COPY writes a row at a time, so the rows are buffered ahead of the compressor
+  private OutputStream compressedOutput(Path file) throws IOException {
+    return new BufferedOutputStream(
+        new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE) {
+          {
+            def.setLevel(compressionLevel);
+          }
+        },
+        BUFFER_SIZE);
+  }
+
+  @Data
+  static class PrintBatch {
+    private final UUID batchId;
+    private final UUID actionRuleId;
+    private final ActionType actionType;
+
+    String getFileName() {
+      return actionType.getPackCode() + "_" + batchId + ".csv.gz";
+    }
+  }
+}
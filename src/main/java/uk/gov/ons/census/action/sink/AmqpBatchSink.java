@@ -0,0 +1,72 @@
+package uk.gov.ons.census.action.sink;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.model.dto.CaseBatchMessage;
+
+/*
+ Publishes to the action exchange with publisher confirms, so a send is complete when the broker
+ acks it rather than when it is written to the socket. Sends don't wait for each other's confirms,
+ which lets a window of them share the round trip to the broker.
+*/
+@Component
+@ConditionalOnProperty(name = "batchsink.type", havingValue = "amqp")
+public class AmqpBatchSink implements BatchSink {
+  private final RabbitTemplate rabbitTemplate;
+  private final ObjectMapper objectMapper;
+  private final String exchange;
+
+  public AmqpBatchSink(
+      RabbitTemplate rabbitTemplate,
+      ObjectMapper objectMapper,
+      @Value("${batchsink.amqp.exchange}") String exchange) {
+    this.rabbitTemplate = rabbitTemplate;
+    this.objectMapper = objectMapper;
+    this.exchange = exchange;
+  }
+
+  @Override
+  public CompletableFuture<Void> send(String routingKey, CaseBatchMessage message) {
+    CompletableFuture<Void> confirmed = new CompletableFuture<>();
+    CorrelationData correlationData = new CorrelationData(UUID.randomUUID().toString());
+    correlationData
+        .getFuture()
+        .addCallback(
+            confirm -> {
+              if (confirm.isAck()) {
+                confirmed.complete(null);
+              } else {
+                confirmed.completeExceptionally(
+                    new IllegalStateException(
+                        "Broker nacked batch message: " + confirm.getReason()));
+              }
+            },
+            confirmed::completeExceptionally);
+
+    try {
+      rabbitTemplate.send(exchange, routingKey, toAmqpMessage(message), correlationData);
+    } catch (JsonProcessingException | AmqpException e) {
+      confirmed.completeExceptionally(e);
+    }
+    return confirmed;
+  }
+
+  private Message toAmqpMessage(CaseBatchMessage message) throws JsonProcessingException {
+    return MessageBuilder.withBody(objectMapper.writeValueAsBytes(message))
+        .setContentType(MessageProperties.CONTENT_TYPE_JSON)
+        .setDeliveryMode(MessageDeliveryMode.PERSISTENT)
+        .build();
+  }
+}
@@ -0,0 +1,14 @@
+package uk.gov.ons.census.action.sink;
+
+import java.util.concurrent.CompletableFuture;
+import uk.gov.ons.census.action.model.dto.CaseBatchMessage;
+
+/*
+ Where the cases of a triggered batch are published, one message per page of cases, routed by the
+ routing key of the rule's action handler. Sends are asynchronous: the future completes once the
+ sink has taken responsibility for the message and fails if it never will. OutboxRelay bounds
+ how many sends are in flight, so an implementation doesn't need to.
+*/
+public interface BatchSink {
+  CompletableFuture<Void> send(String routingKey, CaseBatchMessage message);
+}
@@ -0,0 +1,61 @@
+package uk.gov.ons.census.action.sink;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.model.dto.CaseBatchMessage;
+
+/*
+ Stands in for the broker when testing: messages are held in a bounded queue per routing key until
+ something in the same process takes them. A full queue holds the send up until there is room, or
+ fails it after the timeout, so a slow consumer pushes back on the relay as a broker would.
+*/
+@Component
+@ConditionalOnProperty(name = "batchsink.type", havingValue = "inprocess")
+public class InProcessBatchSink implements BatchSink {
+  private final Map<String, BlockingQueue<CaseBatchMessage>> queues = new ConcurrentHashMap<>();
+  private final int capacity;
+  private final long offerTimeoutMillis;
+
+  public InProcessBatchSink(
+      @Value("${batchsink.inprocess.capacity}") int capacity,
+      @Value("${batchsink.confirmtimeout}") long offerTimeoutMillis) {
+    this.capacity = capacity;
+    this.offerTimeoutMillis = offerTimeoutMillis;
+  }
+
+  @Override
+  public CompletableFuture<Void> send(String routingKey, CaseBatchMessage message) {
+    CompletableFuture<Void> accepted = new CompletableFuture<>();
+    try {
+      if (queueFor(routingKey).offer(message, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        accepted.complete(null);
+      } else {
+        accepted.completeExceptionally(
+            new IllegalStateException("No room for batch message on " + routingKey));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      accepted.completeExceptionally(e);
+    }
+    return accepted;
+  }
+
+  public CaseBatchMessage take(String routingKey) throws InterruptedException {
+    return queueFor(routingKey).take();
+  }
+
+  public CaseBatchMessage poll(String routingKey) {
+    return queueFor(routingKey).poll();
+  }
+
+  private BlockingQueue<CaseBatchMessage> queueFor(String routingKey) {
+    return queues.computeIfAbsent(routingKey, key -> new ArrayBlockingQueue<>(capacity));
+  }
+}
@@ -0,0 +1,281 @@
+package uk.gov.ons.census.action.sink;
+
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.dto.CaseBatchMessage;
+import uk.gov.ons.census.action.model.dto.EnqueuedCase;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.schedule.CaseToProcessPartitioner;
+import uk.gov.ons.census.action.schedule.PrintFileExporter;
+
+/*
+ Relays triggered batches from case_to_process to the batch sink. The cases and their
+ action_batch header are committed with the rule, so case_to_process is the outbox and nothing is
+ published for a rule that failed to enqueue. A batch is read in case id order a page at a time,
+ each page going out as one message, with up to window messages sent but not yet confirmed. Once
+ the window is full the oldest send is waited on before another page is read, so a slow sink
+ holds the relay back instead of pages piling up in memory.
+
+ A batch is claimed under a time limited lease, renewed with every page confirmed, so replicas
+ share the batches without two of them publishing the same one. The cursor on the header only
+ moves past a page once it and every page before it are confirmed, and never moves backwards, so a
+ batch that fails part way resumes from the last confirmed page, and a page may be delivered more
+ than once. Once the whole batch is confirmed the rule's partition is truncated and the batch
+ marked published. While print files are enabled a printer batch isn't claimed until
+ PrintFileExporter has exported it, so its cases aren't truncated before they are in the file.
+*/
+@Component
+@ConditionalOnProperty(name = "batchsink.enabled", havingValue = "true")
+public class OutboxRelay {
+  private static final Logger log = LoggerFactory.getLogger(OutboxRelay.class);
+
+  // The action types passed are those whose batches must be exported before they are published
+  static final String CLAIM_BATCH_SQL =
+      "UPDATE actionv2.action_batch b SET lease_owner = ?, lease_expiry = ? "
+          + "FROM actionv2.action_rule r WHERE r.id = b.action_rule_id AND b.batch_id = "
+          + "(SELECT ub.batch_id FROM actionv2.action_batch ub "
+          + "JOIN actionv2.action_rule ur ON ur.id = ub.action_rule_id "
+          + "WHERE ub.published_date_time IS NULL AND ur.has_triggered "
+          + "AND (ub.lease_expiry IS NULL OR ub.lease_expiry < ?) "
+          + "AND (ub.exported_date_time IS NOT NULL "
+          + "OR ur.action_type <> ALL(CAST(? AS varchar[]))) "
+          + "ORDER BY ub.created_date_time LIMIT 1 FOR UPDATE OF ub SKIP LOCKED) "
+          + "RETURNING b.batch_id, b.action_rule_id, b.quantity, b.last_published_id, "
+          + "r.action_type";
+
+  // The action rule id prunes the read down to the rule's own partition of case_to_process
+  static final String READ_PAGE_SQL =
+      "SELECT ctp.id, c.case_id, ctp.caze_case_ref, ctp.ce_expected_capacity "
+          + "FROM actionv2.case_to_process ctp "
+          + "JOIN actionv2.cases c ON c.case_ref = ctp.caze_case_ref "
+          + "WHERE ctp.action_rule_id = ? AND ctp.batch_id = ? AND ctp.id > ? "
+          + "ORDER BY ctp.id LIMIT ?";
+
+  static final String ADVANCE_CURSOR_SQL =
+      "UPDATE actionv2.action_batch SET last_published_id = ?, lease_expiry = ? "
+          + "WHERE batch_id = ? AND lease_owner = ? AND last_published_id < ?";
+
+  static final String MARK_PUBLISHED_SQL =
+      "UPDATE actionv2.action_batch SET published_date_time = now() WHERE batch_id = ?";
+
+  static final String RELEASE_LEASE_SQL =
+      "UPDATE actionv2.action_batch SET lease_owner = NULL, lease_expiry = NULL "
+          + "WHERE batch_id = ? AND lease_owner = ?";
+
+  private static final String[] NO_ACTION_TYPES = new String[0];
+
+  private final JdbcTemplate jdbcTemplate;
+  private final BatchSink batchSink;
+  private final CaseToProcessPartitioner caseToProcessPartitioner;
+  private final SchedulerWatchdog schedulerWatchdog;
+  private final String leaseOwner = UUID.randomUUID().toString();
+  private final int pageSize;
+  private final int window;
+  private final long confirmTimeoutMillis;
+  private final long leaseDurationMillis;
+  private final String[] exportedFirstActionTypes;
+
+  public OutboxRelay(
+      JdbcTemplate jdbcTemplate,
+      BatchSink batchSink,
+      CaseToProcessPartitioner caseToProcessPartitioner,
+      SchedulerWatchdog schedulerWatchdog,
+      @Value("${batchsink.pagesize}") int pageSize,
+      @Value("${batchsink.window}") int window,
+      @Value("${batchsink.confirmtimeout}") long confirmTimeoutMillis,
+      @Value("${batchsink.lease}") long leaseDurationMillis,
+      @Value("${printfile.enabled}") boolean printFileEnabled) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.batchSink = batchSink;
+    this.caseToProcessPartitioner = caseToProcessPartitioner;
+    this.schedulerWatchdog = schedulerWatchdog;
+    this.pageSize = pageSize;
+    this.window = window;
+    this.confirmTimeoutMillis = confirmTimeoutMillis;
+    this.leaseDurationMillis = leaseDurationMillis;
+    this.exportedFirstActionTypes =
+        printFileEnabled ? PrintFileExporter.PRINTER_ACTION_TYPES : NO_ACTION_TYPES;
+  }
+
+  @Scheduled(fixedDelayString = "${batchsink.frequency}")
+  public void publishTriggeredBatches() {
+    UnpublishedBatch batch;
+    while ((batch = claimBatch()) != null) {
+      String watchdogRun = watchdogRun(batch);
+      schedulerWatchdog.startRun(watchdogRun);
+      try {
+        publishBatch(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IllegalStateException e) {
+        log.with("batch_id", batch.getBatchId()).warn("Stopped publishing batch", e);
+      } catch (ExecutionException | TimeoutException | DataAccessException e) {
+        // The sink is most likely down, so leave the rest for the next run too
+        log.with("batch_id", batch.getBatchId())
+            .error("Could not publish batch, will resume from the last confirmed page", e);
+        return;
+      } finally {
+        schedulerWatchdog.finishRun(watchdogRun);
+        releaseLease(batch);
+      }
+    }
+  }
+
+  // The oldest batch ready to publish that no other node holds, or null if there isn't one
+  UnpublishedBatch claimBatch() {
+    OffsetDateTime now = OffsetDateTime.now();
+    List<UnpublishedBatch> claimed =
+        jdbcTemplate.query(
+            CLAIM_BATCH_SQL,
+            (resultSet, rowNum) ->
+                new UnpublishedBatch(
+                    resultSet.getObject("batch_id", UUID.class),
+                    resultSet.getObject("action_rule_id", UUID.class),
+                    resultSet.getInt("quantity"),
+                    resultSet.getLong("last_published_id"),
+                    ActionType.valueOf(resultSet.getString("action_type"))),
+            leaseOwner,
+            now.plus(Duration.ofMillis(leaseDurationMillis)),
+            now,
+            exportedFirstActionTypes);
+    return claimed.isEmpty() ? null : claimed.get(0);
+  }
+
+  private void releaseLease(UnpublishedBatch batch) {
+    try {
+      jdbcTemplate.update(RELEASE_LEASE_SQL, batch.getBatchId(), leaseOwner);
+    } catch (DataAccessException e) {
+      // The lease runs out by itself
+      log.with("batch_id", batch.getBatchId()).warn("Could not release lease on batch", e);
+    }
+  }
+
+  private void publishBatch(UnpublishedBatch batch)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    String routingKey = batch.getActionType().getHandler().getRoutingKey();
+    Deque<InFlightPage> inFlight = new ArrayDeque<>();
+    long readCursor = batch.getLastPublishedId();
+    long start = System.currentTimeMillis();
+    int pages = 0;
+
+    List<OutboxRow> page;
+    while (!(page = readPage(batch, readCursor)).isEmpty()) {
+      if (inFlight.size() >= window) {
+        confirmOldest(batch, inFlight);
+      }
+
+      readCursor = page.get(page.size() - 1).getId();
+      inFlight.addLast(
+          new InFlightPage(batchSink.send(routingKey, toMessage(batch, page)), readCursor));
+      pages++;
+    }
+
+    while (!inFlight.isEmpty()) {
+      confirmOldest(batch, inFlight);
+    }
+
+    // Truncated first, so a batch marked published never has cases left behind
+    caseToProcessPartitioner.truncatePartition(batch.getActionRuleId());
+    jdbcTemplate.update(MARK_PUBLISHED_SQL, batch.getBatchId());
+
+    log.with("batch_id", batch.getBatchId())
+        .with("routing_key", routingKey)
+        .with("pages", pages)
+        .with("elapsed_ms", System.currentTimeMillis() - start)
+        .info("Batch published");
+  }
+
+  private List<OutboxRow> readPage(UnpublishedBatch batch, long afterId) {
+    return jdbcTemplate.query(
+        READ_PAGE_SQL,
+        (resultSet, rowNum) -> {
+          EnqueuedCase enqueuedCase = new EnqueuedCase();
+          enqueuedCase.setCaseId(resultSet.getObject("case_id", UUID.class));
+          enqueuedCase.setCaseRef(resultSet.getLong("caze_case_ref"));
+          enqueuedCase.setCeExpectedCapacity(
+              resultSet.getObject("ce_expected_capacity", Integer.class));
+          return new OutboxRow(resultSet.getLong("id"), enqueuedCase);
+        },
+        batch.getActionRuleId(),
+        batch.getBatchId(),
+        afterId,
+        pageSize);
+  }
+
+  private void confirmOldest(UnpublishedBatch batch, Deque<InFlightPage> inFlight)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    InFlightPage oldest = inFlight.removeFirst();
+    oldest.getConfirmation().get(confirmTimeoutMillis, TimeUnit.MILLISECONDS);
+    int advanced =
+        jdbcTemplate.update(
+            ADVANCE_CURSOR_SQL,
+            oldest.getLastId(),
+            OffsetDateTime.now().plus(Duration.ofMillis(leaseDurationMillis)),
+            batch.getBatchId(),
+            leaseOwner,
+            oldest.getLastId());
+
+    // Another node has claimed the batch since our lease ran out, and may be ahead of us
+    if (advanced == 0) {
+      throw new IllegalStateException(
+          "Lease on batch " + batch.getBatchId() + " has been lost to another node");
+    }
+    schedulerWatchdog.progress(watchdogRun(batch));
+  }
+
+  private static String watchdogRun(UnpublishedBatch batch) {
+    return "publish " + batch.getBatchId();
+  }
+
+  private CaseBatchMessage toMessage(UnpublishedBatch batch, List<OutboxRow> page) {
+    CaseBatchMessage message = new CaseBatchMessage();
+    message.setBatchId(batch.getBatchId());
+    message.setActionRuleId(batch.getActionRuleId());
+    message.setActionType(batch.getActionType());
+    message.setPackCode(batch.getActionType().getPackCode());
+    message.setBatchQuantity(batch.getQuantity());
+    message.setCases(page.stream().map(OutboxRow::getEnqueuedCase).collect(Collectors.toList()));
+    return message;
+  }
+
+  @Data
+  static class UnpublishedBatch {
+    private final UUID batchId;
+    private final UUID actionRuleId;
+    private final int quantity;
+    private final long lastPublishedId;
+    private final ActionType actionType;
+  }
+
+  @Data
+  static class OutboxRow {
+    private final long id;
+    private final EnqueuedCase enqueuedCase;
+  }
+
+  @Data
+  private static class InFlightPage {
+    private final CompletableFuture<Void> confirmation;
+    private final long lastId;
+  }
+}
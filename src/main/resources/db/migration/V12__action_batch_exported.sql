@@ -0,0 +1,12 @@
+-- When PrintFileExporter wrote a batch's print file. The exporter only looks at batches without
+-- one, so it doesn't rescan every batch each run, or export an empty file for a batch whose cases
+-- have since been truncated. Batches enqueued before this migration were consumed from
+-- case_to_process, or have had their print file written already, so they are marked exported and
+-- the exporter leaves them alone.
+
+ALTER TABLE action_batch ADD COLUMN exported_date_time timestamp with time zone;
+
+UPDATE action_batch SET exported_date_time = created_date_time;
+
+CREATE INDEX action_batch_unexported_idx ON action_batch (created_date_time)
+    WHERE exported_date_time IS NULL;
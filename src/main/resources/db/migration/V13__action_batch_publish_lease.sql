@@ -0,0 +1,7 @@
+-- The batch sink's lease on a batch, so that only one node publishes it at a time. A node takes
+-- the lease when it claims the batch, renews it with every page confirmed and gives it up when it
+-- stops. A batch whose lease has expired, because its node died, is claimed again and resumes from
+-- its last confirmed page.
+
+ALTER TABLE action_batch ADD COLUMN lease_owner varchar(255);
+ALTER TABLE action_batch ADD COLUMN lease_expiry timestamp with time zone;
@@ -0,0 +1,8 @@
+-- Rules the database cancelled for running past their statement or lock timeout. Each
+-- cancellation holds the rule back from being claimed again until retry_after, twice as long as
+-- the last time, and once a rule has been cancelled too often retry_after is infinity and it isn't
+-- claimed again until its plan is reloaded, which clears both. Until now such a rule was claimed
+-- again on every poll and cancelled again, holding a worker and a connection each time.
+
+ALTER TABLE action_rule ADD COLUMN cancelled_count integer NOT NULL DEFAULT 0;
+ALTER TABLE action_rule ADD COLUMN retry_after timestamp with time zone;
@@ -0,0 +1,6 @@
+-- A chunked rule's batch header is now written with its last chunk, from the cases that were
+-- actually enqueued, rather than from a count taken when the checkpoint was created. The count is
+-- no longer kept on the checkpoint. A checkpoint left by an earlier version still has its header,
+-- which the last chunk overwrites with the enqueued quantity.
+
+ALTER TABLE action_rule_checkpoint DROP COLUMN batch_quantity;
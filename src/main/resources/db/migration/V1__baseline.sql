@@ -0,0 +1,118 @@
+-- Schema as it was managed by hibernate ddl-auto. Existing databases are baselined at this version
+-- and start from V2.
+
+CREATE TABLE action_plan (
+    id uuid NOT NULL,
+    description varchar(255),
+    name varchar(255),
+    CONSTRAINT action_plan_pkey PRIMARY KEY (id)
+);
+
+CREATE TABLE action_rule (
+    id uuid NOT NULL,
+    action_type varchar(255),
+    classifiers_clause bytea NOT NULL,
+    has_triggered boolean,
+    trigger_date_time timestamp with time zone,
+    action_plan_id uuid,
+    CONSTRAINT action_rule_pkey PRIMARY KEY (id),
+    CONSTRAINT action_rule_action_plan_fkey FOREIGN KEY (action_plan_id) REFERENCES action_plan (id)
+);
+
+CREATE TABLE cases (
+    case_ref bigint NOT NULL,
+    abp_code varchar(255),
+    action_plan_id uuid,
+    address_invalid boolean DEFAULT false NOT NULL,
+    address_level varchar(255),
+    address_line1 varchar(255),
+    address_line2 varchar(255),
+    address_line3 varchar(255),
+    address_type varchar(255),
+    case_id uuid NOT NULL,
+    case_type varchar(255),
+    ce_actual_responses integer NOT NULL,
+    ce_expected_capacity integer,
+    collection_exercise_id uuid,
+    created_date_time timestamp with time zone,
+    estab_type varchar(255),
+    estab_uprn varchar(255),
+    field_coordinator_id varchar(255),
+    field_officer_id varchar(255),
+    hand_delivery boolean DEFAULT false,
+    htc_digital varchar(255),
+    htc_willingness varchar(255),
+    lad varchar(255),
+    last_updated timestamp with time zone,
+    latitude varchar(255),
+    longitude varchar(255),
+    lsoa varchar(255),
+    metadata jsonb,
+    msoa varchar(255),
+    oa varchar(255),
+    organisation_name varchar(255),
+    postcode varchar(255),
+    print_batch varchar(255),
+    receipt_received boolean DEFAULT false NOT NULL,
+    refusal_received varchar(255),
+    region varchar(255),
+    skeleton boolean DEFAULT false,
+    survey_launched boolean DEFAULT false NOT NULL,
+    town_name varchar(255),
+    treatment_code varchar(255),
+    uprn varchar(255),
+    CONSTRAINT cases_pkey PRIMARY KEY (case_ref)
+);
+
+CREATE INDEX receipt_received_idx ON cases (receipt_received);
+CREATE INDEX cases_case_id_idx ON cases (case_id);
+CREATE INDEX treatment_code_idx ON cases (treatment_code);
+CREATE INDEX lsoa_idx ON cases (lsoa);
+
+CREATE TABLE case_to_process (
+    id serial NOT NULL,
+    batch_id uuid,
+    batch_quantity integer NOT NULL,
+    ce_expected_capacity integer,
+    action_rule_id uuid,
+    caze_case_ref bigint,
+    CONSTRAINT case_to_process_pkey PRIMARY KEY (id),
+    CONSTRAINT case_to_process_action_rule_fkey FOREIGN KEY (action_rule_id)
+        REFERENCES action_rule (id),
+    CONSTRAINT case_to_process_caze_fkey FOREIGN KEY (caze_case_ref) REFERENCES cases (case_ref)
+);
+
+CREATE TABLE fulfilment_to_process (
+    id serial NOT NULL,
+    address_line1 varchar(255),
+    address_line2 varchar(255),
+    address_line3 varchar(255),
+    batch_id uuid,
+    field_coordinator_id varchar(255),
+    field_officer_id varchar(255),
+    forename varchar(255),
+    fulfilment_code varchar(255),
+    fulfilment_type varchar(255),
+    organisation_name varchar(255),
+    postcode varchar(255),
+    quantity integer,
+    surname varchar(255),
+    title varchar(255),
+    town_name varchar(255),
+    caze_case_ref bigint,
+    CONSTRAINT fulfilment_to_process_pkey PRIMARY KEY (id),
+    CONSTRAINT fulfilment_to_process_caze_fkey FOREIGN KEY (caze_case_ref)
+        REFERENCES cases (case_ref)
+);
+
+CREATE TABLE uac_qid_link (
+    id uuid NOT NULL,
+    active boolean NOT NULL,
+    case_id uuid,
+    qid varchar(255),
+    uac varchar(255),
+    CONSTRAINT uac_qid_link_pkey PRIMARY KEY (id)
+);
+
+CREATE INDEX uacqid_case_id_idx ON uac_qid_link (case_id);
+CREATE INDEX qid_idx ON uac_qid_link (qid);
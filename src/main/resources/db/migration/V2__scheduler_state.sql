@@ -0,0 +1,86 @@
+-- The scheduler's own state, added after the baseline: action rule leases, enqueue checkpoints,
+-- fulfilment batch headers and pending counts, and the triggers that used to be installed at
+-- startup. A database that ran those versions under ddl-auto already has some of this, so every
+-- object is created only if it is missing and the triggers are replaced.
+
+ALTER TABLE action_rule ADD COLUMN IF NOT EXISTS lease_expiry timestamp with time zone;
+ALTER TABLE action_rule ADD COLUMN IF NOT EXISTS lease_owner varchar(255);
+
+CREATE TABLE IF NOT EXISTS action_rule_checkpoint (
+    action_rule_id uuid NOT NULL,
+    batch_id uuid NOT NULL,
+    batch_quantity integer,
+    last_case_ref bigint NOT NULL,
+    last_updated timestamp with time zone,
+    CONSTRAINT action_rule_checkpoint_pkey PRIMARY KEY (action_rule_id)
+);
+
+CREATE TABLE IF NOT EXISTS fulfilment_batch (
+    batch_id uuid NOT NULL,
+    created_date_time timestamp with time zone,
+    fulfilment_code varchar(255) NOT NULL,
+    quantity integer NOT NULL,
+    CONSTRAINT fulfilment_batch_pkey PRIMARY KEY (batch_id)
+);
+
+CREATE TABLE IF NOT EXISTS fulfilment_pending (
+    fulfilment_code varchar(255) NOT NULL,
+    oldest_pending timestamp with time zone,
+    pending_count bigint NOT NULL,
+    CONSTRAINT fulfilment_pending_pkey PRIMARY KEY (fulfilment_code)
+);
+
+-- Tells ActionRuleChangeListener when a rule is created, rescheduled or triggered. The trigger
+-- time is rounded up to the millisecond so the calendar never wakes before the rule is due.
+CREATE OR REPLACE FUNCTION notify_action_rule_changed() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('action_rule_changed', NEW.id::text || ',' ||
+        COALESCE(ceil(extract(epoch FROM NEW.trigger_date_time) * 1000)::bigint::text, '') ||
+        ',' || COALESCE(NEW.has_triggered, false)::text);
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS action_rule_changed ON action_rule;
+CREATE TRIGGER action_rule_changed
+    AFTER INSERT OR UPDATE OF trigger_date_time, has_triggered ON action_rule
+    FOR EACH ROW EXECUTE PROCEDURE notify_action_rule_changed();
+
+-- Running count of the unbatched fulfilments for each code, read by the micro batch scheduler and
+-- reduced by FulfilmentProcessor when it cuts a batch. The count is taken once per statement from
+-- the rows it inserted, so a bulk ingest of millions of fulfilments updates each code's count once
+-- rather than once per row. The codes are counted in order, so two inserts running at once take
+-- their row locks on fulfilment_pending in the same order and can't deadlock.
+CREATE OR REPLACE FUNCTION count_pending_fulfilment() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO actionv2.fulfilment_pending (fulfilment_code, pending_count, oldest_pending)
+    SELECT fulfilment_code, COUNT(*), now()
+    FROM inserted_fulfilments
+    WHERE batch_id IS NULL AND fulfilment_code IS NOT NULL
+    GROUP BY fulfilment_code
+    ORDER BY fulfilment_code
+    ON CONFLICT (fulfilment_code) DO UPDATE
+    SET pending_count = fulfilment_pending.pending_count + EXCLUDED.pending_count,
+        oldest_pending = COALESCE(fulfilment_pending.oldest_pending, EXCLUDED.oldest_pending);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Inserts are held off until the migration commits, so the counts seeded from the fulfilments
+-- already waiting neither miss one nor count one twice.
+LOCK TABLE fulfilment_to_process IN SHARE ROW EXCLUSIVE MODE;
+
+DROP TRIGGER IF EXISTS fulfilment_pending_count ON fulfilment_to_process;
+CREATE TRIGGER fulfilment_pending_count
+    AFTER INSERT ON fulfilment_to_process
+    REFERENCING NEW TABLE AS inserted_fulfilments
+    FOR EACH STATEMENT EXECUTE PROCEDURE count_pending_fulfilment();
+
+INSERT INTO fulfilment_pending (fulfilment_code, pending_count, oldest_pending)
+SELECT fulfilment_code, COUNT(*), now()
+FROM fulfilment_to_process
+WHERE batch_id IS NULL AND fulfilment_code IS NOT NULL
+GROUP BY fulfilment_code
+ON CONFLICT (fulfilment_code) DO UPDATE
+SET pending_count = EXCLUDED.pending_count,
+    oldest_pending = COALESCE(fulfilment_pending.oldest_pending, EXCLUDED.oldest_pending);
@@ -0,0 +1,27 @@
+-- Every classifier query starts with the same fixed predicates from
+-- CaseClassifier.buildWhereClause. These partial indexes are restricted to exactly those
+-- predicates, one per action handler, so the planner only reads the cases a rule could select.
+-- The predicates must be kept textually in step with buildWhereClause or the planner will not be
+-- able to prove the query implies them and will stop using the indexes.
+--
+-- The keys are (action_plan_id, case_ref) so chunked enqueueing can walk a plan in case_ref order.
+-- The columns that classifiers commonly filter on and that the enqueue inserts are carried as
+-- non-key columns, so typical rules are answered by index only scans. INCLUDE needs Postgres 11.
+
+CREATE INDEX cases_printer_classifier_idx
+    ON cases (action_plan_id, case_ref)
+    INCLUDE (treatment_code, case_type, address_level, region, lad, lsoa, survey_launched,
+        ce_expected_capacity)
+    WHERE receipt_received = 'f'
+        AND address_invalid = 'f'
+        AND skeleton = 'f'
+        AND refusal_received IS DISTINCT FROM 'EXTRAORDINARY_REFUSAL';
+
+CREATE INDEX cases_field_classifier_idx
+    ON cases (action_plan_id, case_ref)
+    INCLUDE (treatment_code, case_type, address_level, region, lad, lsoa, survey_launched,
+        ce_expected_capacity)
+    WHERE receipt_received = 'f'
+        AND address_invalid = 'f'
+        AND skeleton = 'f'
+        AND refusal_received IS NULL;
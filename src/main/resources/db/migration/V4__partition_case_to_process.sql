@@ -0,0 +1,61 @@
+-- case_to_process is list partitioned by action rule. A partition is created for each rule when it
+-- triggers, and dropped once the rule has triggered and its cases have all been consumed, so the
+-- rows are never deleted one by one and the table does not bloat. The existing table becomes the
+-- default partition, which holds any rows that were enqueued before this migration.
+
+ALTER TABLE case_to_process RENAME TO case_to_process_default;
+ALTER TABLE case_to_process_default RENAME CONSTRAINT case_to_process_pkey
+    TO case_to_process_default_pkey;
+ALTER TABLE case_to_process_default RENAME CONSTRAINT case_to_process_action_rule_fkey
+    TO case_to_process_default_action_rule_fkey;
+ALTER TABLE case_to_process_default RENAME CONSTRAINT case_to_process_caze_fkey
+    TO case_to_process_default_caze_fkey;
+
+-- The partition key has to be part of the primary key, so rows without a rule can't stay. They are
+-- moved to case_to_process_without_rule rather than deleted, for whoever consumed them to look at.
+CREATE TABLE case_to_process_without_rule (LIKE case_to_process_default);
+
+WITH moved AS (
+    DELETE FROM case_to_process_default WHERE action_rule_id IS NULL RETURNING *
+)
+INSERT INTO case_to_process_without_rule SELECT * FROM moved;
+ALTER TABLE case_to_process_default ALTER COLUMN action_rule_id SET NOT NULL;
+
+CREATE TABLE case_to_process (
+    id integer NOT NULL DEFAULT nextval('case_to_process_id_seq'),
+    batch_id uuid,
+    batch_quantity integer NOT NULL,
+    ce_expected_capacity integer,
+    action_rule_id uuid NOT NULL,
+    caze_case_ref bigint,
+    CONSTRAINT case_to_process_pkey PRIMARY KEY (id, action_rule_id),
+    CONSTRAINT case_to_process_action_rule_fkey FOREIGN KEY (action_rule_id)
+        REFERENCES action_rule (id),
+    CONSTRAINT case_to_process_caze_fkey FOREIGN KEY (caze_case_ref) REFERENCES cases (case_ref)
+) PARTITION BY LIST (action_rule_id);
+
+ALTER SEQUENCE case_to_process_id_seq OWNED BY case_to_process.id;
+
+ALTER TABLE case_to_process_default DROP CONSTRAINT case_to_process_default_pkey;
+ALTER TABLE case_to_process_default DROP CONSTRAINT case_to_process_default_action_rule_fkey;
+ALTER TABLE case_to_process_default DROP CONSTRAINT case_to_process_default_caze_fkey;
+ALTER TABLE case_to_process ATTACH PARTITION case_to_process_default DEFAULT;
+
+-- Used by CaseToProcessPartitioner. The parent is locked before the partition, in the same order
+-- as readers take their locks, and the lock timeout stops a long running reader from queueing
+-- everybody else up behind the drop.
+CREATE FUNCTION drop_case_to_process_partition_if_empty(partition_name text) RETURNS boolean AS $$
+DECLARE
+    has_rows boolean;
+BEGIN
+    PERFORM set_config('lock_timeout', '5s', true);
+    LOCK TABLE ONLY actionv2.case_to_process IN ACCESS EXCLUSIVE MODE;
+    EXECUTE format('LOCK TABLE actionv2.%I IN ACCESS EXCLUSIVE MODE', partition_name);
+    EXECUTE format('SELECT EXISTS (SELECT 1 FROM actionv2.%I)', partition_name) INTO has_rows;
+    IF has_rows THEN
+        RETURN false;
+    END IF;
+    EXECUTE format('DROP TABLE actionv2.%I', partition_name);
+    RETURN true;
+END;
+$$ LANGUAGE plpgsql;
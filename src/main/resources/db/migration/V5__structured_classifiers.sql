@@ -0,0 +1,7 @@
+-- Action rules are classified by a structured classifier, compiled to parameterised SQL, rather
+-- than by a raw SQL fragment. Existing rules keep their raw classifiers_clause.
+
+ALTER TABLE action_rule ADD COLUMN classifiers jsonb;
+ALTER TABLE action_rule ALTER COLUMN classifiers_clause DROP NOT NULL;
+ALTER TABLE action_rule ADD CONSTRAINT action_rule_classifiers_check
+    CHECK (classifiers IS NOT NULL OR classifiers_clause IS NOT NULL);
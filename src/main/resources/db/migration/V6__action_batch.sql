@@ -0,0 +1,24 @@
+-- The batch quantity of enqueued cases moves off every case_to_process row onto one action_batch
+-- header per batch. Filling it in on every row took a window function over the whole selection,
+-- so Postgres had to materialise all of it before inserting the first row. Rows enqueued from now
+-- on leave batch_quantity null and are joined to their header on batch_id. Rows enqueued before
+-- this migration keep their batch_quantity.
+
+CREATE TABLE action_batch (
+    batch_id uuid NOT NULL,
+    action_rule_id uuid NOT NULL,
+    quantity integer NOT NULL,
+    created_date_time timestamp with time zone NOT NULL,
+    CONSTRAINT action_batch_pkey PRIMARY KEY (batch_id),
+    CONSTRAINT action_batch_action_rule_fkey FOREIGN KEY (action_rule_id)
+        REFERENCES action_rule (id)
+);
+
+CREATE INDEX action_batch_action_rule_idx ON action_batch (action_rule_id);
+
+ALTER TABLE case_to_process ALTER COLUMN batch_quantity DROP NOT NULL;
+
+-- Rules part way through a chunked enqueue carry on with the batch in their checkpoint
+INSERT INTO action_batch (batch_id, action_rule_id, quantity, created_date_time)
+SELECT batch_id, action_rule_id, COALESCE(batch_quantity, 0), COALESCE(last_updated, now())
+FROM action_rule_checkpoint;
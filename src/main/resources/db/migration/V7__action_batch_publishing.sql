@@ -0,0 +1,12 @@
+-- Tracks how far the batch sink has got through each batch. Cases are published in id order and
+-- last_published_id only moves past a page once the sink has confirmed it, so publishing resumes
+-- from the last confirmed page. Batches enqueued before this migration were consumed from
+-- case_to_process, so they are marked published and the relay leaves them alone.
+
+ALTER TABLE action_batch ADD COLUMN last_published_id bigint NOT NULL DEFAULT 0;
+ALTER TABLE action_batch ADD COLUMN published_date_time timestamp with time zone;
+
+UPDATE action_batch SET published_date_time = created_date_time;
+
+CREATE INDEX action_batch_unpublished_idx ON action_batch (created_date_time)
+    WHERE published_date_time IS NULL;
@@ -0,0 +1,4 @@
+-- A rule's own execution profile, overriding the profile configured for its action type. Null
+-- for rules that take the action type's profile as it is.
+
+ALTER TABLE action_rule ADD COLUMN execution_profile jsonb;
@@ -0,0 +1,4 @@
+-- When a rule's cases must be enqueued by, at the latest. Only used to order the backlog when
+-- rules have fallen behind, so rules without one are left null and come after those with one.
+
+ALTER TABLE action_rule ADD COLUMN sla_deadline timestamp with time zone;
@@ -1 +0,0 @@
-CREATE SCHEMA IF NOT EXISTS actionv2;
\ No newline at end of file
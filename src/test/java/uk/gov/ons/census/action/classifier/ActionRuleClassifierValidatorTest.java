@@ -0,0 +1,142 @@
+package uk.gov.ons.census.action.classifier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Test;
+import org.springframework.data.rest.core.RepositoryConstraintViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.validation.Errors;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.ClassifierField;
+import uk.gov.ons.census.action.model.entity.ClassifierOperator;
+
+public class ActionRuleClassifierValidatorTest {
+  private final ClassifierIndexLint classifierIndexLint = mock(ClassifierIndexLint.class);
+
+  @Test
+  public void testIndexedClassifiersAreAccepted() {
+    // Given
+    ActionRule actionRule = new ActionRule();
+    actionRule.setClassifiers(treatmentCodeClassifier());
+    when(classifierIndexLint.findUnindexedFields(any())).thenReturn(Collections.emptyList());
+
+    // When
+    createValidator(true).validate(actionRule);
+  }
+
+  @Test
+  public void testUnindexedClassifiersAreAcceptedWhenNotStrict() {
+    // Given
+    ActionRule actionRule = new ActionRule();
+    actionRule.setClassifiers(treatmentCodeClassifier());
+    when(classifierIndexLint.findUnindexedFields(any()))
+        .thenReturn(List.of(ClassifierField.TREATMENT_CODE));
+
+    // When
+    createValidator(false).validate(actionRule);
+  }
+
+  @Test(expected = RepositoryConstraintViolationException.class)
+  public void testUnindexedClassifiersAreRejectedWhenStrict() {
+    // Given
+    ActionRule actionRule = new ActionRule();
+    actionRule.setClassifiers(treatmentCodeClassifier());
+    when(classifierIndexLint.findUnindexedFields(any()))
+        .thenReturn(List.of(ClassifierField.TREATMENT_CODE));
+
+    // When
+    createValidator(true).validate(actionRule);
+  }
+
+  @Test(expected = RepositoryConstraintViolationException.class)
+  public void testInvalidClassifiersAreRejected() {
+    // Given
+    Classifier classifier = new Classifier();
+    classifier.setOperator(ClassifierOperator.AND);
+    ActionRule actionRule = new ActionRule();
+    actionRule.setClassifiers(classifier);
+
+    // When
+    createValidator(false).validate(actionRule);
+  }
+
+  @Test(expected = RepositoryConstraintViolationException.class)
+  public void testRuleWithoutClassifiersIsRejected() {
+    createValidator(false).validate(new ActionRule());
+  }
+
+  @Test
+  public void testRawClassifiersClauseIsNotLinted() {
+    // Given
+    ActionRule actionRule = new ActionRule();
+    actionRule.setClassifiersClause("case_type != 'HI'");
+
+    // When
+    createValidator(true).validate(actionRule);
+
+    // Then
+    verifyNoMoreInteractions(classifierIndexLint);
+  }
+
+  @Test
+  public void testBulkValidationReturnsEveryRejectedRule() {
+    // Given
+    ActionRule indexedActionRule = new ActionRule();
+    indexedActionRule.setId(UUID.randomUUID());
+    indexedActionRule.setClassifiers(treatmentCodeClassifier());
+    ActionRule unindexedActionRule = new ActionRule();
+    unindexedActionRule.setId(UUID.randomUUID());
+    unindexedActionRule.setClassifiers(regionClassifier());
+    ActionRule actionRuleWithoutClassifiers = new ActionRule();
+    actionRuleWithoutClassifiers.setId(UUID.randomUUID());
+    when(classifierIndexLint.findIndexedColumns()).thenReturn(Set.of("treatment_code"));
+    when(classifierIndexLint.findUnindexedFields(any(), eq(Set.of("treatment_code"))))
+        .thenCallRealMethod();
+
+    // When
+    Map<UUID, Errors> rejections =
+        createValidator(true)
+            .validate(
+                List.of(indexedActionRule, unindexedActionRule, actionRuleWithoutClassifiers));
+
+    // Then
+    assertThat(rejections)
+        .containsOnlyKeys(unindexedActionRule.getId(), actionRuleWithoutClassifiers.getId());
+    verify(classifierIndexLint).findIndexedColumns();
+  }
+
+  private ActionRuleClassifierValidator createValidator(boolean strict) {
+    ActionRuleClassifierValidator underTest =
+        new ActionRuleClassifierValidator(classifierIndexLint);
+    ReflectionTestUtils.setField(underTest, "strict", strict);
+    return underTest;
+  }
+
+  private Classifier treatmentCodeClassifier() {
+    Classifier classifier = new Classifier();
+    classifier.setOperator(ClassifierOperator.IN);
+    classifier.setField(ClassifierField.TREATMENT_CODE);
+    classifier.setValues(List.of("HH_LF2R1E"));
+    return classifier;
+  }
+
+  private Classifier regionClassifier() {
+    Classifier classifier = new Classifier();
+    classifier.setOperator(ClassifierOperator.IN);
+    classifier.setField(ClassifierField.REGION);
+    classifier.setValues(List.of("E"));
+    return classifier;
+  }
+}
@@ -0,0 +1,99 @@
+package uk.gov.ons.census.action.classifier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import org.junit.Test;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.ClassifierField;
+import uk.gov.ons.census.action.model.entity.ClassifierOperator;
+
+public class ClassifierCompilerTest {
+
+  @Test
+  public void testCompileNestedClassifier() {
+    // Given
+    Classifier classifier =
+        logical(
+            ClassifierOperator.AND,
+            comparison(ClassifierOperator.IN, ClassifierField.TREATMENT_CODE, "HH_LF2R1E", "HH_X"),
+            logical(
+                ClassifierOperator.NOT,
+                comparison(ClassifierOperator.IS_NULL, ClassifierField.FIELD_OFFICER_ID)),
+            comparison(ClassifierOperator.GREATER_THAN, ClassifierField.CE_EXPECTED_CAPACITY, "5"),
+            comparison(
+                ClassifierOperator.NOT_IN, ClassifierField.METADATA_SECURE_ESTABLISHMENT, "true"));
+
+    // When
+    CaseSelection caseSelection = new ClassifierCompiler().compile(classifier);
+
+    // Then
+    assertThat(caseSelection.getSql())
+        .isEqualTo(
+            "((treatment_code = ANY(CAST(? AS text[])))"
+                + " AND NOT (field_officer_id IS NULL)"
+                + " AND (ce_expected_capacity > CAST(? AS integer))"
+                + " AND NOT (metadata_secure_establishment = ANY(CAST(? AS boolean[]))))");
+    assertThat(caseSelection.getParams()).hasSize(3);
+    assertThat(caseSelection.getParams().get(0)).isEqualTo(new String[] {"HH_LF2R1E", "HH_X"});
+    assertThat(caseSelection.getParams().get(1)).isEqualTo("5");
+    assertThat(caseSelection.getParams().get(2)).isEqualTo(new String[] {"true"});
+  }
+
+  @Test
+  public void testClassifiersOfTheSameShapeShareSql() {
+    // Given
+    ClassifierCompiler underTest = new ClassifierCompiler();
+    Classifier twoValues =
+        comparison(ClassifierOperator.IN, ClassifierField.TREATMENT_CODE, "HH_LF2R1E", "HH_X");
+    Classifier threeValues =
+        comparison(ClassifierOperator.IN, ClassifierField.TREATMENT_CODE, "A", "B", "C");
+    Classifier otherField = comparison(ClassifierOperator.IN, ClassifierField.REGION, "E");
+
+    // When
+    CaseSelection first = underTest.compile(twoValues);
+    CaseSelection second = underTest.compile(threeValues);
+    CaseSelection third = underTest.compile(otherField);
+
+    // Then
+    assertThat(second.getSql()).isSameAs(first.getSql());
+    assertThat(third.getSql()).isNotEqualTo(first.getSql());
+    assertThat(underTest.cachedShapes()).isEqualTo(2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInWithoutValuesIsRejected() {
+    new ClassifierCompiler().compile(comparison(ClassifierOperator.IN, ClassifierField.LSOA));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testComparisonWithoutFieldIsRejected() {
+    new ClassifierCompiler().compile(comparison(ClassifierOperator.IS_NULL, null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNotWithTwoClassifiersIsRejected() {
+    new ClassifierCompiler()
+        .compile(
+            logical(
+                ClassifierOperator.NOT,
+                comparison(ClassifierOperator.IS_NULL, ClassifierField.LSOA),
+                comparison(ClassifierOperator.IS_NULL, ClassifierField.MSOA)));
+  }
+
+  private Classifier logical(ClassifierOperator operator, Classifier... classifiers) {
+    Classifier classifier = new Classifier();
+    classifier.setOperator(operator);
+    classifier.setClassifiers(List.of(classifiers));
+    return classifier;
+  }
+
+  private Classifier comparison(
+      ClassifierOperator operator, ClassifierField field, String... values) {
+    Classifier classifier = new Classifier();
+    classifier.setOperator(operator);
+    classifier.setField(field);
+    classifier.setValues(values.length == 0 ? null : List.of(values));
+    return classifier;
+  }
+}
@@ -0,0 +1,139 @@
+package uk.gov.ons.census.action.healthcheck;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.ResultSet;
+import java.util.List;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+public class SchedulerWatchdogTest {
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+  @Test
+  public void testUpWhenNothingRunning() {
+    // Given
+    SchedulerWatchdog underTest = new SchedulerWatchdog(jdbcTemplate, 60000, 600000, 3600000, 0);
+
+    // When
+    underTest.heartbeat();
+
+    // Then
+    assertThat(underTest.health().getStatus()).isEqualTo(Status.UP);
+    assertThat(underTest.isStuck()).isFalse();
+  }
+
+  @Test
+  public void testDegradedWhenRunPastDegradedThreshold() {
+    // Given
+    SchedulerWatchdog underTest = new SchedulerWatchdog(jdbcTemplate, 60000, 0, 3600000, 0);
+
+    // When
+    underTest.startRun("actionRule 1");
+
+    // Then
+    assertThat(underTest.health().getStatus()).isEqualTo(SchedulerWatchdog.DEGRADED);
+    assertThat(underTest.isStuck()).isFalse();
+  }
+
+  @Test
+  public void testStuckWhenRunPastStuckThreshold() {
+    // Given
+    SchedulerWatchdog underTest = new SchedulerWatchdog(jdbcTemplate, 60000, 0, 0, 0);
+
+    // When
+    underTest.startRun("fulfilments all");
+
+    // Then
+    assertThat(underTest.health().getStatus()).isEqualTo(Status.DOWN);
+    assertThat(underTest.isStuck()).isTrue();
+  }
+
+  @Test
+  public void testNotStuckWhileRunProgresses() throws Exception {
+    // Given
+    SchedulerWatchdog underTest = new SchedulerWatchdog(jdbcTemplate, 60000, 0, 1000, 0);
+    underTest.startRun("actionRule 1");
+    Thread.sleep(1100);
+
+    // When
+    underTest.progress("actionRule 1");
+
+    // Then
+    assertThat(underTest.health().getStatus()).isEqualTo(SchedulerWatchdog.DEGRADED);
+    assertThat(underTest.isStuck()).isFalse();
+  }
+
+  @Test
+  public void testUpOnceRunFinished() {
+    // Given
+    SchedulerWatchdog underTest = new SchedulerWatchdog(jdbcTemplate, 60000, 0, 0, 0);
+    underTest.startRun("actionRule 1");
+
+    // When
+    underTest.finishRun("actionRule 1");
+
+    // Then
+    assertThat(underTest.health().getStatus()).isEqualTo(Status.UP);
+  }
+
+  @Test
+  public void testDegradedWhenPollLate() {
+    // Given
+    SchedulerWatchdog underTest = new SchedulerWatchdog(jdbcTemplate, 0, 0, 3600000, 0);
+
+    // When
+    underTest.heartbeat();
+
+    // Then
+    assertThat(underTest.health().getStatus()).isEqualTo(SchedulerWatchdog.DEGRADED);
+  }
+
+  @Test
+  public void testStatementPastCeilingCancelledWithoutGoingDown() throws Exception {
+    // Given
+    givenRunningStatement(123, 120000);
+    SchedulerWatchdog underTest = new SchedulerWatchdog(jdbcTemplate, 60000, 60000, 90000, 60000);
+
+    // When
+    underTest.checkRunningStatements();
+
+    // Then
+    verify(jdbcTemplate).queryForObject("SELECT pg_cancel_backend(?)", Boolean.class, 123);
+    assertThat(underTest.health().getStatus()).isEqualTo(SchedulerWatchdog.DEGRADED);
+  }
+
+  @Test
+  public void testStatementNotCancelledWithoutCeiling() throws Exception {
+    // Given
+    givenRunningStatement(123, 120000);
+    SchedulerWatchdog underTest = new SchedulerWatchdog(jdbcTemplate, 60000, 60000, 3600000, 0);
+
+    // When
+    underTest.checkRunningStatements();
+
+    // Then
+    verify(jdbcTemplate, never()).queryForObject(anyString(), eq(Boolean.class), anyInt());
+    assertThat(underTest.health().getStatus()).isEqualTo(SchedulerWatchdog.DEGRADED);
+  }
+
+  private void givenRunningStatement(int pid, long ageMillis) throws Exception {
+    ResultSet resultSet = mock(ResultSet.class);
+    when(resultSet.getInt(1)).thenReturn(pid);
+    when(resultSet.getLong(2)).thenReturn(ageMillis);
+    when(resultSet.getString(3)).thenReturn("INSERT INTO actionv2.case_to_process");
+    when(jdbcTemplate.query(anyString(), any(RowMapper.class), anyInt()))
+        .thenAnswer(
+            invocation -> List.of(invocation.<RowMapper<?>>getArgument(1).mapRow(resultSet, 0)));
+  }
+}
@@ -0,0 +1,9 @@
+package uk.gov.ons.census.action.model.repository;
+
+import java.util.UUID;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import uk.gov.ons.census.action.model.entity.FulfilmentBatch;
+
+@RepositoryRestResource(exported = false)
+public interface FulfilmentBatchRepository extends JpaRepository<FulfilmentBatch, UUID> {}
@@ -0,0 +1,8 @@
+package uk.gov.ons.census.action.model.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import uk.gov.ons.census.action.model.entity.FulfilmentPending;
+
+@RepositoryRestResource(exported = false)
+public interface FulfilmentPendingRepository extends JpaRepository<FulfilmentPending, String> {}
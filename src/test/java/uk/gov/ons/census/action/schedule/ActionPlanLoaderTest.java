@@ -0,0 +1,63 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import uk.gov.ons.census.action.model.dto.ActionPlanLoad;
+import uk.gov.ons.census.action.model.entity.ActionPlan;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionType;
+
+public class ActionPlanLoaderTest {
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRulesWrittenInBatches() {
+    // Given
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    actionPlan.setName("census");
+    List<ActionRule> actionRules = List.of(setUpActionRule(), setUpActionRule(), setUpActionRule());
+    actionPlan.setActionRules(actionRules);
+
+    // The second rule has already triggered, so the upsert leaves it alone
+    when(jdbcTemplate.batchUpdate(
+            eq(ActionPlanLoader.UPSERT_ACTION_RULE_SQL),
+            eq(actionRules),
+            eq(2),
+            any(ParameterizedPreparedStatementSetter.class)))
+        .thenReturn(new int[][] {{1, 0}, {1}});
+
+    // When
+    ActionPlanLoad load =
+        new ActionPlanLoader(jdbcTemplate, new ObjectMapper(), 2).load(actionPlan);
+
+    // Then
+    verify(jdbcTemplate)
+        .update(ActionPlanLoader.UPSERT_ACTION_PLAN_SQL, actionPlan.getId(), "census", null);
+    assertThat(load.getActionPlanId()).isEqualTo(actionPlan.getId());
+    assertThat(load.getActionRules()).isEqualTo(2);
+    assertThat(load.getUnchangedActionRuleIds()).containsExactly(actionRules.get(1).getId());
+  }
+
+  private ActionRule setUpActionRule() {
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionType(ActionType.ICL1E);
+    actionRule.setTriggerDateTime(OffsetDateTime.now());
+    actionRule.setClassifiersClause("case_type != 'HI'");
+    return actionRule;
+  }
+}
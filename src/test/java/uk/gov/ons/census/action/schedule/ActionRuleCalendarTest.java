@@ -0,0 +1,85 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.time.Instant;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class ActionRuleCalendarTest {
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+  private final ActionRuleTriggerer actionRuleTriggerer = mock(ActionRuleTriggerer.class);
+
+  private ActionRuleCalendar underTest;
+
+  @Before
+  public void setUp() {
+    underTest = new ActionRuleCalendar(jdbcTemplate, actionRuleTriggerer);
+    underTest.start();
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+  }
+
+  @Test
+  public void testDueActionRuleIsTriggered() {
+    // When
+    underTest.schedule(UUID.randomUUID(), Instant.now());
+
+    // Then
+    verify(actionRuleTriggerer, timeout(1000)).triggerActionRules();
+  }
+
+  @Test
+  public void testActionRuleIsNotTriggeredEarly() {
+    // When
+    underTest.schedule(UUID.randomUUID(), Instant.now().plusSeconds(60));
+
+    // Then
+    verify(actionRuleTriggerer, after(500).never()).triggerActionRules();
+  }
+
+  @Test
+  public void testRescheduledActionRuleIsNotTriggeredAtOldTime() {
+    // Given
+    UUID actionRuleId = UUID.randomUUID();
+    underTest.schedule(actionRuleId, Instant.now().plusMillis(100));
+
+    // When
+    underTest.schedule(actionRuleId, Instant.now().plusSeconds(60));
+
+    // Then
+    verify(actionRuleTriggerer, after(500).never()).triggerActionRules();
+  }
+
+  @Test
+  public void testUnscheduledActionRuleIsNotTriggered() {
+    // Given
+    UUID actionRuleId = UUID.randomUUID();
+    underTest.schedule(actionRuleId, Instant.now().plusMillis(100));
+
+    // When
+    underTest.unschedule(actionRuleId);
+
+    // Then
+    verify(actionRuleTriggerer, after(500).never()).triggerActionRules();
+  }
+
+  @Test
+  public void testCeilToMillisNeverRoundsDown() {
+    Instant onTheMilli = Instant.ofEpochMilli(1000);
+
+    assertThat(ActionRuleCalendar.ceilToMillis(onTheMilli)).isEqualTo(onTheMilli);
+    assertThat(ActionRuleCalendar.ceilToMillis(onTheMilli.plusNanos(1)))
+        .isEqualTo(Instant.ofEpochMilli(1001));
+  }
+}
@@ -0,0 +1,51 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.time.Instant;
+import java.util.UUID;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+public class ActionRuleChangeListenerTest {
+  private final ActionRuleCalendar actionRuleCalendar = mock(ActionRuleCalendar.class);
+  private final ActionRuleChangeListener underTest =
+      new ActionRuleChangeListener(mock(DataSourceProperties.class), actionRuleCalendar);
+
+  @Test
+  public void testUntriggeredActionRuleIsScheduled() {
+    // Given
+    UUID actionRuleId = UUID.randomUUID();
+
+    // When
+    underTest.handleNotification(actionRuleId + ",1589371200000,false");
+
+    // Then
+    verify(actionRuleCalendar).schedule(actionRuleId, Instant.ofEpochMilli(1589371200000L));
+  }
+
+  @Test
+  public void testTriggeredActionRuleIsUnscheduled() {
+    // Given
+    UUID actionRuleId = UUID.randomUUID();
+
+    // When
+    underTest.handleNotification(actionRuleId + ",1589371200000,true");
+
+    // Then
+    verify(actionRuleCalendar).unschedule(actionRuleId);
+  }
+
+  @Test
+  public void testActionRuleWithoutTriggerTimeIsUnscheduled() {
+    // Given
+    UUID actionRuleId = UUID.randomUUID();
+
+    // When
+    underTest.handleNotification(actionRuleId + ",,false");
+
+    // Then
+    verify(actionRuleCalendar).unschedule(actionRuleId);
+  }
+}
@@ -0,0 +1,203 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.UUID;
+import javax.sql.DataSource;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.gov.ons.census.action.classifier.CaseSelection;
+import uk.gov.ons.census.action.model.dto.ActionPlanForecast;
+import uk.gov.ons.census.action.model.dto.ActionRuleEstimate;
+import uk.gov.ons.census.action.model.dto.EstimateMethod;
+import uk.gov.ons.census.action.model.dto.ForecastVolume;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.ExecutionProfile;
+
+public class ActionRuleEstimatorTest {
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+  private final CaseClassifier caseClassifier = mock(CaseClassifier.class);
+  private final ActionRuleGovernor actionRuleGovernor = mock(ActionRuleGovernor.class);
+  private final UUID actionPlanId = UUID.randomUUID();
+
+  @Test
+  public void testPlannerEstimate() {
+    // Given
+    ActionRule actionRule = setUpActionRule();
+    when(jdbcTemplate.queryForObject(
+            startsWith("EXPLAIN (FORMAT JSON) SELECT case_ref FROM actionv2.cases WHERE"),
+            eq(String.class),
+            eq(actionPlanId)))
+        .thenReturn("[{\"Plan\": {\"Node Type\": \"Index Only Scan\", \"Plan Rows\": 12345}}]");
+
+    // When
+    ActionRuleEstimate estimate = createEstimator().estimate(actionRule, EstimateMethod.PLANNER);
+
+    // Then
+    assertThat(estimate.getCases()).isEqualTo(12345);
+    assertThat(estimate.getMethod()).isEqualTo(EstimateMethod.PLANNER);
+    assertThat(estimate.getActionRuleId()).isEqualTo(actionRule.getId());
+    assertThat(estimate.getPackCode()).isEqualTo("P_IC_ICL1");
+  }
+
+  @Test
+  public void testSampleEstimateIsScaledUp() throws Exception {
+    // Given
+    ActionRule actionRule = setUpActionRule();
+    givenSample(30L, 0L);
+
+    // When
+    ActionRuleEstimate estimate = createEstimator().estimate(actionRule, EstimateMethod.SAMPLE);
+
+    // Then
+    assertThat(estimate.getCases()).isEqualTo(1500);
+    assertThat(estimate.getVolume()).isEqualTo(1500);
+  }
+
+  @Test
+  public void testCeIndividualVolumeIsSampledCapacity() throws Exception {
+    // Given
+    ActionRule actionRule = setUpActionRule(ActionType.CE_IC03);
+    givenPlanRows(100);
+    givenSample(2L, 90L);
+
+    // When
+    ActionRuleEstimate estimate = createEstimator().estimate(actionRule, EstimateMethod.PLANNER);
+
+    // Then
+    assertThat(estimate.getCases()).isEqualTo(100);
+    assertThat(estimate.getVolume()).isEqualTo(4500);
+  }
+
+  @Test
+  public void testPlanForecastVolumesByTriggerDateAndActionType() {
+    // Given
+    OffsetDateTime firstDate = OffsetDateTime.parse("2021-03-01T09:00:00Z");
+    OffsetDateTime secondDate = OffsetDateTime.parse("2021-03-08T09:00:00Z");
+    ActionRule firstLetters = setUpActionRule(ActionType.ICL1E, firstDate);
+    ActionRule moreFirstLetters = setUpActionRule(ActionType.ICL1E, firstDate.plusHours(6));
+    ActionRule reminders = setUpActionRule(ActionType.P_RL_1RL1_1, secondDate);
+    givenPlanRows(100);
+
+    // When
+    ActionPlanForecast forecast =
+        createEstimator()
+            .forecast(
+                actionPlanId,
+                List.of(firstLetters, moreFirstLetters, reminders),
+                EstimateMethod.PLANNER);
+
+    // Then
+    assertThat(forecast.getTimeline()).hasSize(3);
+    assertThat(forecast.getTotalCases()).isEqualTo(300);
+    assertThat(forecast.getTotalVolume()).isEqualTo(300);
+    assertThat(forecast.getVolumes())
+        .extracting(
+            ForecastVolume::getTriggerDate,
+            ForecastVolume::getActionType,
+            ForecastVolume::getActionRules,
+            ForecastVolume::getVolume)
+        .containsExactly(
+            tuple(LocalDate.of(2021, 3, 1), ActionType.ICL1E, 2, 200L),
+            tuple(LocalDate.of(2021, 3, 8), ActionType.P_RL_1RL1_1, 1, 100L));
+  }
+
+  @Test
+  public void testExactCountUnderProfileInReadOnlyTransaction() throws Exception {
+    // Given
+    ActionRule actionRule = setUpActionRule();
+    ExecutionProfile executionProfile = new ExecutionProfile();
+    executionProfile.setMaxParallelWorkersPerGather(4);
+    when(actionRuleGovernor.profileFor(actionRule)).thenReturn(executionProfile);
+
+    DataSource dataSource = mock(DataSource.class);
+    Connection connection = mock(Connection.class);
+    PreparedStatement count = mock(PreparedStatement.class);
+    ResultSet resultSet = mock(ResultSet.class);
+    when(jdbcTemplate.getDataSource()).thenReturn(dataSource);
+    when(dataSource.getConnection()).thenReturn(connection);
+    when(connection.prepareStatement(
+            startsWith("SELECT COUNT(*), SUM(ce_expected_capacity) FROM actionv2.cases WHERE")))
+        .thenReturn(count);
+    when(count.executeQuery()).thenReturn(resultSet);
+    when(resultSet.getLong(1)).thenReturn(1499L);
+
+    // When
+    ActionRuleEstimate estimate = createEstimator().estimate(actionRule, EstimateMethod.EXACT);
+
+    // Then
+    assertThat(estimate.getCases()).isEqualTo(1499);
+    assertThat(estimate.getVolume()).isEqualTo(1499);
+    verify(connection).setReadOnly(true);
+    verify(actionRuleGovernor).applyToReads(connection, executionProfile);
+    verify(count).setObject(1, actionPlanId);
+    verify(connection).rollback();
+  }
+
+  private ActionRuleEstimator createEstimator() {
+    ActionRuleEstimator underTest =
+        new ActionRuleEstimator(
+            jdbcTemplate, caseClassifier, actionRuleGovernor, new ObjectMapper());
+    ReflectionTestUtils.setField(underTest, "samplePercent", 2.0);
+    return underTest;
+  }
+
+  private void givenPlanRows(long planRows) {
+    when(jdbcTemplate.queryForObject(
+            startsWith("EXPLAIN (FORMAT JSON) SELECT case_ref FROM actionv2.cases WHERE"),
+            eq(String.class),
+            eq(actionPlanId)))
+        .thenReturn("[{\"Plan\": {\"Node Type\": \"Seq Scan\", \"Plan Rows\": " + planRows + "}}]");
+  }
+
+  private void givenSample(long cases, long capacity) throws Exception {
+    ResultSet resultSet = mock(ResultSet.class);
+    when(resultSet.getLong(1)).thenReturn(cases);
+    when(resultSet.getLong(2)).thenReturn(capacity);
+    when(jdbcTemplate.queryForObject(
+            startsWith(
+                "SELECT COUNT(*), SUM(ce_expected_capacity) FROM actionv2.cases TABLESAMPLE SYSTEM"),
+            any(RowMapper.class),
+            eq(2.0),
+            eq(actionPlanId)))
+        .thenAnswer(invocation -> invocation.<RowMapper<?>>getArgument(1).mapRow(resultSet, 0));
+  }
+
+  private ActionRule setUpActionRule() {
+    return setUpActionRule(ActionType.ICL1E);
+  }
+
+  private ActionRule setUpActionRule(ActionType actionType) {
+    return setUpActionRule(actionType, OffsetDateTime.now());
+  }
+
+  private ActionRule setUpActionRule(ActionType actionType, OffsetDateTime triggerDateTime) {
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionType(actionType);
+    actionRule.setTriggerDateTime(triggerDateTime);
+    when(caseClassifier.casesTable(actionRule)).thenReturn(CaseClassifier.CASES_TABLE);
+    when(caseClassifier.selectCases(actionRule))
+        .thenReturn(
+            new CaseSelection(
+                "WHERE action_plan_id = ? AND (case_type != 'HI')", List.of(actionPlanId)));
+    return actionRule;
+  }
+}
@@ -0,0 +1,147 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import uk.gov.ons.census.action.config.GovernorProperties;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.ExecutionProfile;
+
+public class ActionRuleGovernorTest {
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+  @Test
+  public void testRuleProfileOverridesActionTypeAndDefaults() {
+    // Given
+    GovernorProperties governorProperties = new GovernorProperties();
+    governorProperties.getDefaults().setStatementTimeoutMillis(3600000);
+    governorProperties.getDefaults().setLockTimeoutMillis(60000);
+    governorProperties.getActionTypes().put(ActionType.ICL1E, profile(7200000, null, 262144));
+    ActionRule actionRule = setUpActionRule(ActionType.ICL1E, profile(null, 1000, null));
+    ActionRuleGovernor underTest = new ActionRuleGovernor(jdbcTemplate, governorProperties);
+
+    // When
+    ExecutionProfile executionProfile = underTest.profileFor(actionRule);
+
+    // Then
+    assertThat(executionProfile).isEqualTo(profile(7200000, 1000, 262144));
+  }
+
+  @Test
+  public void testGroupTakesWidestProfile() {
+    // Given
+    GovernorProperties governorProperties = new GovernorProperties();
+    ActionRuleGovernor underTest = new ActionRuleGovernor(jdbcTemplate, governorProperties);
+    ActionRule smallRule = setUpActionRule(ActionType.ICL1E, profile(60000, 1000, 4096));
+    ActionRule largeRule = setUpActionRule(ActionType.ICL1E, profile(600000, 0, null));
+
+    // When
+    ExecutionProfile executionProfile = underTest.profileFor(List.of(smallRule, largeRule));
+
+    // Then
+    assertThat(executionProfile).isEqualTo(profile(600000, 0, 4096));
+  }
+
+  @Test
+  public void testProfileAppliedLocalToTransaction() {
+    // Given
+    ActionRuleGovernor underTest = new ActionRuleGovernor(jdbcTemplate, new GovernorProperties());
+
+    // When
+    underTest.apply(profile(60000, null, 4096));
+
+    // Then
+    verify(jdbcTemplate)
+        .queryForMap(
+            "SELECT set_config(?, ?, true), set_config(?, ?, true)",
+            "statement_timeout",
+            "60000",
+            "work_mem",
+            "4096");
+  }
+
+  @Test
+  public void testParallelWorkersOnlyAppliedToReads() throws Exception {
+    // Given
+    ActionRuleGovernor underTest = new ActionRuleGovernor(jdbcTemplate, new GovernorProperties());
+    ExecutionProfile executionProfile = profile(60000, null, null);
+    executionProfile.setMaxParallelWorkersPerGather(4);
+    Connection connection = mock(Connection.class);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(connection.prepareStatement(anyString())).thenReturn(statement);
+    when(statement.executeQuery()).thenReturn(mock(ResultSet.class));
+
+    // When
+    underTest.apply(executionProfile);
+    underTest.applyToReads(connection, executionProfile);
+
+    // Then
+    verify(jdbcTemplate).queryForMap("SELECT set_config(?, ?, true)", "statement_timeout", "60000");
+    verify(connection).prepareStatement("SELECT set_config(?, ?, true), set_config(?, ?, true)");
+    verify(statement).setString(3, "max_parallel_workers_per_gather");
+    verify(statement).setString(4, "4");
+  }
+
+  @Test
+  public void testEmptyProfileNotApplied() {
+    // Given
+    ActionRuleGovernor underTest = new ActionRuleGovernor(jdbcTemplate, new GovernorProperties());
+
+    // When
+    underTest.apply(new ExecutionProfile());
+
+    // Then
+    verifyNoMoreInteractions(jdbcTemplate);
+  }
+
+  @Test
+  public void testCancelledSqlState() {
+    assertThat(
+            ActionRuleGovernor.cancelledSqlState(
+                new UncategorizedSQLException(
+                    "enqueue", "INSERT", new SQLException("statement timeout", "57014"))))
+        .isEqualTo("57014");
+    assertThat(
+            ActionRuleGovernor.cancelledSqlState(
+                new DataAccessResourceFailureException(
+                    "enqueue", new SQLException("lock timeout", "55P03"))))
+        .isEqualTo("55P03");
+    assertThat(
+            ActionRuleGovernor.cancelledSqlState(
+                new UncategorizedSQLException(
+                    "enqueue", "INSERT", new SQLException("syntax error", "42601"))))
+        .isNull();
+  }
+
+  private ActionRule setUpActionRule(ActionType actionType, ExecutionProfile executionProfile) {
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionType(actionType);
+    actionRule.setExecutionProfile(executionProfile);
+    return actionRule;
+  }
+
+  private ExecutionProfile profile(
+      Integer statementTimeoutMillis, Integer lockTimeoutMillis, Integer workMemKb) {
+    ExecutionProfile executionProfile = new ExecutionProfile();
+    executionProfile.setStatementTimeoutMillis(statementTimeoutMillis);
+    executionProfile.setLockTimeoutMillis(lockTimeoutMillis);
+    executionProfile.setWorkMemKb(workMemKb);
+    return executionProfile;
+  }
+}
@@ -12,16 +12,19 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.transaction.annotation.Transactional;
+import uk.gov.ons.census.action.model.entity.ActionBatch;
 import uk.gov.ons.census.action.model.entity.ActionPlan;
 import uk.gov.ons.census.action.model.entity.ActionRule;
 import uk.gov.ons.census.action.model.entity.ActionType;
 import uk.gov.ons.census.action.model.entity.Case;
 import uk.gov.ons.census.action.model.entity.CaseToProcess;
 import uk.gov.ons.census.action.model.entity.RefusalType;
+import uk.gov.ons.census.action.model.repository.ActionBatchRepository;
 import uk.gov.ons.census.action.model.repository.ActionPlanRepository;
 import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
 import uk.gov.ons.census.action.model.repository.CaseRepository;
@@ -38,7 +41,10 @@ public class ActionRuleProcessorIT {
   @Autowired private ActionRuleRepository actionRuleRepository;
   @Autowired private ActionPlanRepository actionPlanRepository;
   @Autowired private CaseToProcessRepository caseToProcessRepository;
+  @Autowired private ActionBatchRepository actionBatchRepository;
   @Autowired private FulfilmentToSendRepository fulfilmentToSendRepository;
+  @Autowired private CaseToProcessPartitioner caseToProcessPartitioner;
+  @Autowired private JdbcTemplate jdbcTemplate;
 
   private static final EasyRandom easyRandom = new EasyRandom();
 
@@ -47,6 +53,7 @@ public class ActionRuleProcessorIT {
   public void setUp() {
     fulfilmentToSendRepository.deleteAllInBatch();
     caseToProcessRepository.deleteAllInBatch();
+    actionBatchRepository.deleteAllInBatch();
     caseRepository.deleteAllInBatch();
     actionRuleRepository.deleteAllInBatch();
     actionPlanRepository.deleteAll();
@@ -135,7 +142,9 @@ public class ActionRuleProcessorIT {
     // Then
     List<CaseToProcess> queuedCases = caseToProcessRepository.findAll();
     assertThat(queuedCases.size()).isEqualTo(3);
-    assertThat(queuedCases.get(0).getBatchQuantity()).isEqualTo(100);
+    ActionBatch actionBatch = actionBatchRepository.findById(queuedCases.get(0).getBatchId()).get();
+    assertThat(actionBatch.getQuantity()).isEqualTo(100);
+    assertThat(queuedCases.get(0).getBatchQuantity()).isNull();
   }
 
   @Test
@@ -213,6 +222,36 @@ public class ActionRuleProcessorIT {
     assertThat(caseIds).containsOnly(unRefusedCase.getCaseId());
   }
 
+  @Test
+  public void testConsumedPartitionIsDropped() throws InterruptedException {
+    // Given
+    ActionPlan actionPlan = setUpActionPlan();
+    setUpCase(actionPlan);
+    ActionRule actionRule = setUpActionRule(ActionType.P_QU_H1, actionPlan);
+    Thread.sleep(2000);
+    assertThat(partitionExists(actionRule)).isTrue();
+
+    // When
+    caseToProcessPartitioner.dropConsumedPartitions();
+
+    // Then
+    assertThat(partitionExists(actionRule)).isTrue();
+
+    // When
+    caseToProcessRepository.deleteAllInBatch();
+    caseToProcessPartitioner.dropConsumedPartitions();
+
+    // Then
+    assertThat(partitionExists(actionRule)).isFalse();
+  }
+
+  private boolean partitionExists(ActionRule actionRule) {
+    return jdbcTemplate.queryForObject(
+        "SELECT to_regclass(?) IS NOT NULL",
+        Boolean.class,
+        "actionv2." + CaseToProcessPartitioner.partitionName(actionRule.getId()));
+  }
+
   private ActionPlan setUpActionPlan() {
     ActionPlan actionPlan = new ActionPlan();
     actionPlan.setId(UUID.randomUUID());
@@ -1,15 +1,21 @@
 package uk.gov.ons.census.action.schedule;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.time.OffsetDateTime;
+import java.util.List;
 import java.util.UUID;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import uk.gov.ons.census.action.model.entity.ActionPlan;
 import uk.gov.ons.census.action.model.entity.ActionRule;
 import uk.gov.ons.census.action.model.entity.ActionType;
@@ -18,6 +24,9 @@ import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
 public class ActionRuleProcessorTest {
   private final ActionRuleRepository actionRuleRepo = mock(ActionRuleRepository.class);
   private final CaseClassifier caseClassifier = mock(CaseClassifier.class);
+  private final ActionRuleClaimer actionRuleClaimer = mock(ActionRuleClaimer.class);
+  private final CaseToProcessPartitioner caseToProcessPartitioner =
+      mock(CaseToProcessPartitioner.class);
 
   @Test
   public void testExecuteClassifiers() {
@@ -26,7 +35,8 @@ public class ActionRuleProcessorTest {
 
     // when
     ActionRuleProcessor actionRuleProcessor =
-        new ActionRuleProcessor(caseClassifier, actionRuleRepo);
+        new ActionRuleProcessor(
+            caseClassifier, actionRuleRepo, actionRuleClaimer, caseToProcessPartitioner);
     actionRuleProcessor.createScheduledActions(actionRule);
 
     // then
@@ -36,7 +46,52 @@ public class ActionRuleProcessorTest {
     actionRule.setHasTriggered(true);
     Assertions.assertThat(actualActionRule).isEqualTo(actionRule);
 
-    verify(caseClassifier).enqueueCasesForActionRule(eq(actionRule));
+    InOrder inOrder = inOrder(caseToProcessPartitioner, caseClassifier);
+    inOrder.verify(caseToProcessPartitioner).createPartition(eq(actionRule.getId()));
+    inOrder.verify(caseClassifier).enqueueCasesForActionRule(eq(actionRule));
+    verify(actionRuleClaimer).assertLeaseHeld(eq(actionRule));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testActionRuleNotMarkedTriggeredWhenLeaseLost() {
+    // Given
+    ActionRule actionRule = setUpActionRule(ActionType.ICL1E);
+    doThrow(new IllegalStateException()).when(actionRuleClaimer).assertLeaseHeld(actionRule);
+
+    // When
+    ActionRuleProcessor actionRuleProcessor =
+        new ActionRuleProcessor(
+            caseClassifier, actionRuleRepo, actionRuleClaimer, caseToProcessPartitioner);
+    try {
+      actionRuleProcessor.createScheduledActions(actionRule);
+    } finally {
+      // Then
+      verify(actionRuleRepo, never()).save(any(ActionRule.class));
+    }
+  }
+
+  @Test
+  public void testExecuteClassifiersForGroupOfActionRules() {
+    // Given
+    ActionRule englandActionRule = setUpActionRule(ActionType.ICL1E);
+    ActionRule walesActionRule = setUpActionRule(ActionType.ICL2W);
+    List<ActionRule> actionRules = List.of(englandActionRule, walesActionRule);
+
+    // When
+    ActionRuleProcessor actionRuleProcessor =
+        new ActionRuleProcessor(
+            caseClassifier, actionRuleRepo, actionRuleClaimer, caseToProcessPartitioner);
+    actionRuleProcessor.createScheduledActions(actionRules);
+
+    // Then
+    InOrder inOrder = inOrder(caseToProcessPartitioner, caseClassifier, actionRuleRepo);
+    inOrder.verify(caseToProcessPartitioner).createPartition(eq(englandActionRule.getId()));
+    inOrder.verify(caseToProcessPartitioner).createPartition(eq(walesActionRule.getId()));
+    inOrder.verify(caseClassifier).enqueueCasesForActionRules(eq(actionRules));
+    inOrder.verify(actionRuleRepo).saveAll(eq(actionRules));
+    verify(actionRuleClaimer).assertLeaseHeld(eq(englandActionRule));
+    verify(actionRuleClaimer).assertLeaseHeld(eq(walesActionRule));
+    Assertions.assertThat(actionRules).allMatch(ActionRule::getHasTriggered);
   }
 
   private ActionRule setUpActionRule(ActionType actionType) {
@@ -1,38 +1,72 @@
 package uk.gov.ons.census.action.schedule;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.sql.SQLException;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.dto.ActionRuleEstimate;
+import uk.gov.ons.census.action.model.dto.EstimateMethod;
+import uk.gov.ons.census.action.model.entity.ActionPlan;
 import uk.gov.ons.census.action.model.entity.ActionRule;
-import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
+import uk.gov.ons.census.action.model.entity.ActionType;
 
 public class ActionRuleTriggererTest {
-  private final ActionRuleRepository actionRuleRepo = mock(ActionRuleRepository.class);
+  private final ActionRuleClaimer actionRuleClaimer = mock(ActionRuleClaimer.class);
   private final ActionRuleProcessor actionRuleProcessor = mock(ActionRuleProcessor.class);
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final SchedulerWatchdog schedulerWatchdog = mock(SchedulerWatchdog.class);
+  private final ActionRuleEstimator actionRuleEstimator = mock(ActionRuleEstimator.class);
 
   @Test
   public void testTriggerActionRules() {
     // Given
     ActionRule actionRule = new ActionRule();
-    when(actionRuleRepo.findByTriggerDateTimeBeforeAndHasTriggeredIsFalse(
-            any(OffsetDateTime.class)))
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
         .thenReturn(Collections.singletonList(actionRule));
 
     // When
-    ActionRuleTriggerer underTest = new ActionRuleTriggerer(actionRuleRepo, actionRuleProcessor);
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            new SyncTaskExecutor(),
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            4,
+            1,
+            1000000);
     underTest.triggerActionRules();
 
     // Then
+    verify(actionRuleClaimer).claimDueActionRules(4);
     verify(actionRuleProcessor).createScheduledActions(eq(actionRule));
+    verify(actionRuleClaimer).releaseLease(eq(actionRule));
   }
 
   @Test
@@ -43,15 +77,365 @@ public class ActionRuleTriggererTest {
       actionRules.add(new ActionRule());
     }
 
-    when(actionRuleRepo.findByTriggerDateTimeBeforeAndHasTriggeredIsFalse(
-            any(OffsetDateTime.class)))
-        .thenReturn(actionRules);
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(actionRules, Collections.emptyList());
 
     // When
-    ActionRuleTriggerer underTest = new ActionRuleTriggerer(actionRuleRepo, actionRuleProcessor);
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            new SyncTaskExecutor(),
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            50,
+            1,
+            1000000);
     underTest.triggerActionRules();
 
     // Then
     verify(actionRuleProcessor, times(50)).createScheduledActions(any(ActionRule.class));
+    verify(actionRuleClaimer, times(50)).releaseLease(any(ActionRule.class));
+  }
+
+  @Test
+  public void testNoActionRulesClaimedWhenAllWorkersBusy() {
+    // Given
+    List<Runnable> queuedWork = new ArrayList<>();
+    TaskExecutor queueingExecutor = queuedWork::add;
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(List.of(new ActionRule(), new ActionRule()));
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            queueingExecutor,
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            2,
+            1,
+            1000000);
+    underTest.triggerActionRules();
+
+    // When
+    underTest.triggerActionRules();
+
+    // Then
+    verify(actionRuleClaimer, times(1)).claimDueActionRules(anyInt());
+    verify(actionRuleProcessor, never()).createScheduledActions(any(ActionRule.class));
+  }
+
+  @Test
+  public void testLeaseReleasedWhenActionRuleFails() {
+    // Given
+    ActionRule actionRule = new ActionRule();
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(Collections.singletonList(actionRule));
+    doThrow(new RuntimeException()).when(actionRuleProcessor).createScheduledActions(actionRule);
+
+    // When
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            new SyncTaskExecutor(),
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            4,
+            1,
+            1000000);
+    underTest.triggerActionRules();
+
+    // Then
+    verify(actionRuleClaimer).releaseLease(eq(actionRule));
+  }
+
+  @Test
+  public void testWatchdogRunFinishedWhenActionRuleFails() {
+    // Given
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(Collections.singletonList(actionRule));
+    doThrow(new RuntimeException()).when(actionRuleProcessor).createScheduledActions(actionRule);
+
+    // When
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            new SyncTaskExecutor(),
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            4,
+            1,
+            1000000);
+    underTest.triggerActionRules();
+
+    // Then
+    verify(schedulerWatchdog).startRun("actionRule " + actionRule.getId());
+    verify(schedulerWatchdog).finishRun("actionRule " + actionRule.getId());
+  }
+
+  @Test
+  public void testActionRuleCancelledByStatementTimeoutRecorded() {
+    // Given
+    ActionRule actionRule = setUpActionRule(new ActionPlan(), ActionType.ICL1E);
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(Collections.singletonList(actionRule));
+    doThrow(
+            new UncategorizedSQLException(
+                "enqueue",
+                "INSERT INTO actionv2.case_to_process",
+                new SQLException("canceling statement due to statement timeout", "57014")))
+        .when(actionRuleProcessor)
+        .createScheduledActions(actionRule);
+
+    // When
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            new SyncTaskExecutor(),
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            4,
+            1,
+            1000000);
+    underTest.triggerActionRules();
+
+    // Then
+    assertThat(
+            meterRegistry
+                .get("action.rule.enqueue")
+                .tags("actionType", "ICL1E", "handler", "PRINTER", "outcome", "cancelled")
+                .timer()
+                .count())
+        .isEqualTo(1);
+    verify(actionRuleClaimer).recordCancelled(eq(actionRule));
+    verify(actionRuleClaimer).releaseLease(eq(actionRule));
+  }
+
+  @Test
+  public void testCoDueActionRulesOnSamePlanAndHandlerTriggeredTogether() {
+    // Given
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule englandActionRule = setUpActionRule(actionPlan, ActionType.ICL1E);
+    ActionRule walesActionRule = setUpActionRule(actionPlan, ActionType.ICL2W);
+    ActionRule fieldActionRule = setUpActionRule(actionPlan, ActionType.FIELD);
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(
+            List.of(englandActionRule, fieldActionRule, walesActionRule), Collections.emptyList());
+    when(actionRuleEstimator.estimate(any(ActionRule.class), eq(EstimateMethod.PLANNER)))
+        .thenReturn(new ActionRuleEstimate());
+
+    // When
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            new SyncTaskExecutor(),
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            4,
+            16,
+            1000000);
+    underTest.triggerActionRules();
+
+    // Then
+    verify(actionRuleClaimer).claimDueActionRules(64);
+    verify(actionRuleProcessor)
+        .createScheduledActions(eq(List.of(englandActionRule, walesActionRule)));
+    verify(actionRuleProcessor).createScheduledActions(eq(fieldActionRule));
+    verify(actionRuleClaimer, times(3)).releaseLease(any(ActionRule.class));
+  }
+
+  @Test
+  public void testActionRulesOverMaxGroupCasesEnqueuedByThemselves() {
+    // Given
+    ActionPlan actionPlan = new ActionPlan();
+    ActionRule heavyActionRule = setUpActionRule(actionPlan, ActionType.ICL1E);
+    ActionRule firstActionRule = setUpActionRule(actionPlan, ActionType.ICL2W);
+    ActionRule secondActionRule = setUpActionRule(actionPlan, ActionType.ICL4N);
+    ActionRule thirdActionRule = setUpActionRule(actionPlan, ActionType.ICL1E);
+    Map<ActionRule, Long> estimatedCases =
+        Map.of(
+            heavyActionRule,
+            1000L,
+            firstActionRule,
+            400L,
+            secondActionRule,
+            400L,
+            thirdActionRule,
+            400L);
+
+    // When
+    List<List<ActionRule>> groups =
+        ActionRuleTriggerer.groupActionRules(
+            List.of(heavyActionRule, firstActionRule, secondActionRule, thirdActionRule),
+            16,
+            estimatedCases::get,
+            1000);
+
+    // Then
+    assertThat(groups)
+        .containsExactly(
+            List.of(heavyActionRule),
+            List.of(firstActionRule, secondActionRule),
+            List.of(thirdActionRule));
+  }
+
+  @Test
+  public void testGroupsBeyondIdleWorkersReleased() {
+    // Given
+    List<Runnable> queuedWork = new ArrayList<>();
+    TaskExecutor queueingExecutor = queuedWork::add;
+    ActionRule firstActionRule = setUpActionRule(new ActionPlan(), ActionType.ICL1E);
+    ActionRule secondActionRule = setUpActionRule(new ActionPlan(), ActionType.ICL1E);
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(List.of(firstActionRule, secondActionRule));
+
+    // When
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            queueingExecutor,
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            1,
+            16,
+            1000000);
+    int triggered = underTest.triggerActionRules();
+
+    // Then
+    assertThat(triggered).isEqualTo(1);
+    assertThat(queuedWork).hasSize(1);
+    verify(actionRuleClaimer).releaseLease(eq(secondActionRule));
+    verify(actionRuleClaimer, never()).releaseLease(eq(firstActionRule));
+  }
+
+  @Test
+  public void testRejectedGroupGivesBackWorkerAndLeases() {
+    // Given
+    List<Runnable> queuedWork = new ArrayList<>();
+    TaskExecutor rejectsSecond =
+        task -> {
+          if (!queuedWork.isEmpty()) {
+            throw new TaskRejectedException("Executor is full");
+          }
+          queuedWork.add(task);
+        };
+    ActionRule firstActionRule = setUpActionRule(new ActionPlan(), ActionType.ICL1E);
+    ActionRule secondActionRule = setUpActionRule(new ActionPlan(), ActionType.ICL1E);
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(List.of(firstActionRule, secondActionRule), Collections.emptyList());
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            rejectsSecond,
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            2,
+            1,
+            1000000);
+
+    // When
+    Throwable thrown = catchThrowable(underTest::triggerActionRules);
+    underTest.triggerActionRules();
+
+    // Then
+    assertThat(thrown).isInstanceOf(TaskRejectedException.class);
+    verify(actionRuleClaimer).releaseLease(eq(secondActionRule));
+    verify(actionRuleClaimer, never()).releaseLease(eq(firstActionRule));
+    verify(actionRuleClaimer).claimDueActionRules(1);
+  }
+
+  @Test
+  public void testClaimedAgainWhenWorkerFreesAfterAllWereBusy() {
+    // Given
+    List<Runnable> queuedWork = new ArrayList<>();
+    TaskExecutor queueingExecutor = queuedWork::add;
+    ActionRule actionRule = setUpActionRule(new ActionPlan(), ActionType.ICL1E);
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(List.of(actionRule), Collections.emptyList());
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            queueingExecutor,
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            1,
+            16,
+            1000000);
+    underTest.triggerActionRules();
+
+    // When
+    int triggeredWhileBusy = underTest.triggerActionRules();
+    queuedWork.get(0).run();
+
+    // Then
+    assertThat(triggeredWhileBusy).isEqualTo(0);
+    verify(actionRuleClaimer, times(2)).claimDueActionRules(16);
+  }
+
+  @Test
+  public void testTriggerLagAndEnqueueDurationRecorded() {
+    // Given
+    ActionRule actionRule = setUpActionRule(new ActionPlan(), ActionType.ICL1E);
+    actionRule.setTriggerDateTime(OffsetDateTime.now().minusMinutes(1));
+    when(actionRuleClaimer.claimDueActionRules(anyInt()))
+        .thenReturn(Collections.singletonList(actionRule));
+
+    // When
+    ActionRuleTriggerer underTest =
+        new ActionRuleTriggerer(
+            actionRuleClaimer,
+            actionRuleProcessor,
+            new SyncTaskExecutor(),
+            meterRegistry,
+            schedulerWatchdog,
+            actionRuleEstimator,
+            4,
+            1,
+            1000000);
+    underTest.triggerActionRules();
+
+    // Then
+    Timer triggerLag =
+        meterRegistry.get("action.rule.trigger.lag").tag("actionType", "ICL1E").timer();
+    assertThat(triggerLag.count()).isEqualTo(1);
+    assertThat(triggerLag.totalTime(TimeUnit.SECONDS)).isGreaterThanOrEqualTo(60);
+    assertThat(
+            meterRegistry
+                .get("action.rule.enqueue")
+                .tags("actionType", "ICL1E", "handler", "PRINTER", "outcome", "success")
+                .timer()
+                .count())
+        .isEqualTo(1);
+  }
+
+  private ActionRule setUpActionRule(ActionPlan actionPlan, ActionType actionType) {
+    if (actionPlan.getId() == null) {
+      actionPlan.setId(UUID.randomUUID());
+    }
+
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionPlan(actionPlan);
+    actionRule.setActionType(actionType);
+    return actionRule;
   }
 }
@@ -0,0 +1,80 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import uk.gov.ons.census.action.model.entity.ActionRuleCheckpoint;
+import uk.gov.ons.census.action.model.entity.ExecutionProfile;
+import uk.gov.ons.census.action.model.repository.ActionRuleCheckpointRepository;
+
+public class CaseChunkEnqueuerTest {
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+  private final CaseChunkEnqueuer underTest =
+      new CaseChunkEnqueuer(
+          jdbcTemplate, mock(ActionRuleCheckpointRepository.class), mock(ActionRuleGovernor.class));
+
+  @Test
+  public void testFullChunkDoesNotWriteBatchHeader() {
+    // Given
+    ActionRuleCheckpoint checkpoint = setUpCheckpoint();
+    when(jdbcTemplate.queryForObject(
+            anyString(), any(RowMapper.class), any(), any(), any(), any(), any()))
+        .thenReturn(10);
+    when(jdbcTemplate.update(anyString(), any(), any(), any(), anyLong())).thenReturn(1);
+
+    // When
+    int enqueued =
+        underTest.enqueueChunk(
+            checkpoint, "chunk", List.of("plan"), 10, false, new ExecutionProfile());
+
+    // Then
+    assertThat(enqueued).isEqualTo(10);
+    verify(jdbcTemplate, never())
+        .update(eq(CaseChunkEnqueuer.UPSERT_BATCH_HEADER_SQL), any(), any(), any(), any());
+  }
+
+  @Test
+  public void testLastChunkWritesBatchHeaderFromEnqueuedCapacity() {
+    // Given
+    ActionRuleCheckpoint checkpoint = setUpCheckpoint();
+    when(jdbcTemplate.queryForObject(
+            anyString(), any(RowMapper.class), any(), any(), any(), any(), any()))
+        .thenReturn(3);
+    when(jdbcTemplate.update(anyString(), any(), any(), any(), anyLong())).thenReturn(1);
+
+    // When
+    int enqueued =
+        underTest.enqueueChunk(
+            checkpoint, "chunk", List.of("plan"), 10, true, new ExecutionProfile());
+
+    // Then
+    assertThat(enqueued).isEqualTo(3);
+    verify(jdbcTemplate)
+        .update(
+            CaseChunkEnqueuer.UPSERT_CE_INDIVIDUAL_BATCH_HEADER_SQL,
+            checkpoint.getBatchId(),
+            checkpoint.getActionRuleId(),
+            checkpoint.getActionRuleId(),
+            checkpoint.getBatchId());
+  }
+
+  private ActionRuleCheckpoint setUpCheckpoint() {
+    ActionRuleCheckpoint checkpoint = new ActionRuleCheckpoint();
+    checkpoint.setActionRuleId(UUID.randomUUID());
+    checkpoint.setBatchId(UUID.randomUUID());
+    checkpoint.setLastCaseRef(Long.MIN_VALUE);
+    return checkpoint;
+  }
+}
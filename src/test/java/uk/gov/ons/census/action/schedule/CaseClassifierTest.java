@@ -1,25 +1,63 @@
 package uk.gov.ons.census.action.schedule;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 import org.junit.Test;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.gov.ons.census.action.classifier.ClassifierCompiler;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
 import uk.gov.ons.census.action.model.entity.ActionPlan;
 import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionRuleCheckpoint;
 import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.entity.Classifier;
+import uk.gov.ons.census.action.model.entity.ClassifierField;
+import uk.gov.ons.census.action.model.entity.ClassifierOperator;
 
 public class CaseClassifierTest {
+  private final CaseChunkEnqueuer caseChunkEnqueuer = mock(CaseChunkEnqueuer.class);
+  private final ClassifierCompiler classifierCompiler = new ClassifierCompiler();
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final ActionRuleGovernor actionRuleGovernor = mock(ActionRuleGovernor.class);
+  private final SchedulerWatchdog schedulerWatchdog = mock(SchedulerWatchdog.class);
+  private final AsyncTaskExecutor partitionExecutor = mock(AsyncTaskExecutor.class);
 
   @Test
   public void testEnqueueCasesForActionRuleField() {
     // Given
     JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
 
-    CaseClassifier underTest = new CaseClassifier(jdbcTemplate);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
     String classifiersClause = "treatment_code IN ('abc','xyz')";
 
     ActionPlan actionPlan = new ActionPlan();
@@ -35,17 +73,20 @@ public class CaseClassifierTest {
 
     // Then
     StringBuilder expectedSql = new StringBuilder();
-    expectedSql.append("INSERT INTO actionv2.case_to_process (batch_id, batch_quantity,");
-    expectedSql.append(" action_rule_id, caze_case_ref) SELECT ?, COUNT(*) OVER (), ?, case_ref");
-    expectedSql.append(" FROM actionv2.cases WHERE action_plan_id=");
-    expectedSql.append("'" + actionPlan.getId().toString() + "'");
+    expectedSql.append("INSERT INTO actionv2.case_to_process (batch_id, action_rule_id,");
+    expectedSql.append(" caze_case_ref) SELECT ?, ?, case_ref");
+    expectedSql.append(" FROM actionv2.cases WHERE action_plan_id = ?");
     expectedSql.append(" AND receipt_received='f'");
     expectedSql.append(" AND address_invalid='f'");
     expectedSql.append(" AND skeleton='f'");
     expectedSql.append(" AND refusal_received IS NULL");
-    expectedSql.append(" AND treatment_code IN ('abc','xyz')");
+    expectedSql.append(" AND (treatment_code IN ('abc','xyz'))");
     verify(jdbcTemplate)
-        .update(eq(expectedSql.toString()), any(UUID.class), eq(actionRule.getId()));
+        .update(
+            eq(expectedSql.toString()),
+            any(UUID.class),
+            eq(actionRule.getId()),
+            eq(actionPlan.getId()));
   }
 
   @Test
@@ -53,7 +94,15 @@ public class CaseClassifierTest {
     // Given
     JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
 
-    CaseClassifier underTest = new CaseClassifier(jdbcTemplate);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
     String classifiersClause = "treatment_code IN ('abc','xyz')";
     ActionPlan actionPlan = new ActionPlan();
     actionPlan.setId(UUID.randomUUID());
@@ -69,17 +118,20 @@ public class CaseClassifierTest {
 
     // Then
     StringBuilder expectedSql = new StringBuilder();
-    expectedSql.append("INSERT INTO actionv2.case_to_process (batch_id, batch_quantity,");
-    expectedSql.append(" action_rule_id, caze_case_ref) SELECT ?, COUNT(*) OVER (), ?, case_ref");
-    expectedSql.append(" FROM actionv2.cases WHERE action_plan_id=");
-    expectedSql.append("'" + actionPlan.getId().toString() + "'");
+    expectedSql.append("INSERT INTO actionv2.case_to_process (batch_id, action_rule_id,");
+    expectedSql.append(" caze_case_ref) SELECT ?, ?, case_ref");
+    expectedSql.append(" FROM actionv2.cases WHERE action_plan_id = ?");
     expectedSql.append(" AND receipt_received='f'");
     expectedSql.append(" AND address_invalid='f'");
     expectedSql.append(" AND skeleton='f'");
     expectedSql.append(" AND refusal_received IS DISTINCT FROM 'EXTRAORDINARY_REFUSAL'");
-    expectedSql.append(" AND treatment_code IN ('abc','xyz')");
+    expectedSql.append(" AND (treatment_code IN ('abc','xyz'))");
     verify(jdbcTemplate)
-        .update(eq(expectedSql.toString()), any(UUID.class), eq(actionRule.getId()));
+        .update(
+            eq(expectedSql.toString()),
+            any(UUID.class),
+            eq(actionRule.getId()),
+            eq(actionPlan.getId()));
   }
 
   @Test
@@ -87,7 +139,15 @@ public class CaseClassifierTest {
     // Given
     JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
 
-    CaseClassifier underTest = new CaseClassifier(jdbcTemplate);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
     String classifiersClause = "treatment_code IN ('abc','xyz')";
     ActionPlan actionPlan = new ActionPlan();
     actionPlan.setId(UUID.randomUUID());
@@ -96,24 +156,449 @@ public class CaseClassifierTest {
     actionRule.setActionPlan(actionPlan);
     actionRule.setClassifiersClause(classifiersClause);
     actionRule.setActionType(ActionType.CE_IC03);
+    when(jdbcTemplate.update(
+            startsWith("INSERT INTO actionv2.case_to_process"),
+            any(UUID.class),
+            eq(actionRule.getId()),
+            eq(actionPlan.getId())))
+        .thenReturn(3);
 
     // When
     underTest.enqueueCasesForActionRule(actionRule);
 
     // Then
     StringBuilder expectedSql = new StringBuilder();
-    expectedSql.append("INSERT INTO actionv2.case_to_process (batch_id, batch_quantity,");
-    expectedSql.append(" action_rule_id, caze_case_ref, ce_expected_capacity) SELECT ?,");
-    expectedSql.append(" SUM(ce_expected_capacity) OVER(), ?, case_ref, ce_expected_capacity");
-    expectedSql.append(" FROM actionv2.cases WHERE action_plan_id=");
-    expectedSql.append("'" + actionPlan.getId().toString() + "'");
+    expectedSql.append("INSERT INTO actionv2.case_to_process (batch_id, action_rule_id,");
+    expectedSql.append(" caze_case_ref, ce_expected_capacity) SELECT ?, ?, case_ref,");
+    expectedSql.append(" ce_expected_capacity");
+    expectedSql.append(" FROM actionv2.cases WHERE action_plan_id = ?");
     expectedSql.append(" AND receipt_received='f'");
     expectedSql.append(" AND address_invalid='f'");
     expectedSql.append(" AND skeleton='f'");
     expectedSql.append(" AND refusal_received IS DISTINCT FROM 'EXTRAORDINARY_REFUSAL'");
-    expectedSql.append(" AND treatment_code IN ('abc','xyz')");
-    expectedSql.append(" GROUP BY case_ref");
+    expectedSql.append(" AND (treatment_code IN ('abc','xyz'))");
     verify(jdbcTemplate)
-        .update(eq(expectedSql.toString()), any(UUID.class), eq(actionRule.getId()));
+        .update(
+            eq(expectedSql.toString()),
+            any(UUID.class),
+            eq(actionRule.getId()),
+            eq(actionPlan.getId()));
+
+    StringBuilder expectedBatchSql = new StringBuilder();
+    expectedBatchSql.append("INSERT INTO actionv2.action_batch (batch_id, action_rule_id,");
+    expectedBatchSql.append(" quantity, created_date_time) SELECT ?, ?,");
+    expectedBatchSql.append(" COALESCE(SUM(ce_expected_capacity), 0), now()");
+    expectedBatchSql.append(" FROM actionv2.case_to_process WHERE action_rule_id = ?");
+    expectedBatchSql.append(" AND batch_id = ?");
+    verify(jdbcTemplate)
+        .update(
+            eq(expectedBatchSql.toString()),
+            any(UUID.class),
+            eq(actionRule.getId()),
+            eq(actionRule.getId()),
+            any(UUID.class));
+  }
+
+  @Test
+  public void testEnqueueCasesForActionRuleWithStructuredClassifiers() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+
+    Classifier classifiers = new Classifier();
+    classifiers.setOperator(ClassifierOperator.IN);
+    classifiers.setField(ClassifierField.TREATMENT_CODE);
+    classifiers.setValues(List.of("abc", "xyz"));
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionPlan(actionPlan);
+    actionRule.setClassifiers(classifiers);
+    actionRule.setActionType(ActionType.FIELD);
+
+    // When
+    underTest.enqueueCasesForActionRule(actionRule);
+
+    // Then
+    StringBuilder expectedSql = new StringBuilder();
+    expectedSql.append("INSERT INTO actionv2.case_to_process (batch_id, action_rule_id,");
+    expectedSql.append(" caze_case_ref) SELECT ?, ?, case_ref");
+    expectedSql.append(" FROM actionv2.cases WHERE action_plan_id = ?");
+    expectedSql.append(" AND receipt_received='f'");
+    expectedSql.append(" AND address_invalid='f'");
+    expectedSql.append(" AND skeleton='f'");
+    expectedSql.append(" AND refusal_received IS NULL");
+    expectedSql.append(" AND (treatment_code = ANY(CAST(? AS text[])))");
+    verify(jdbcTemplate)
+        .update(
+            eq(expectedSql.toString()),
+            any(UUID.class),
+            eq(actionRule.getId()),
+            eq(actionPlan.getId()),
+            eq(new String[] {"abc", "xyz"}));
+  }
+
+  @Test
+  public void testStructuredClassifiersScanProjection() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+    ReflectionTestUtils.setField(underTest, "projection", true);
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule structuredActionRule = setUpTreatmentCodeActionRule(actionPlan, "ICL1E");
+    ActionRule rawActionRule = new ActionRule();
+    rawActionRule.setClassifiersClause("address_line1 IS NOT NULL");
+
+    // When
+    String structuredTable = underTest.casesTable(structuredActionRule);
+    String rawTable = underTest.casesTable(rawActionRule);
+
+    // Then
+    assertThat(structuredTable).isEqualTo("actionv2.case_classification");
+    assertThat(rawTable).isEqualTo("actionv2.cases");
+  }
+
+  @Test
+  public void testEnqueueCasesForActionRulesInOnePass() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule englandActionRule = setUpTreatmentCodeActionRule(actionPlan, "ICL1E");
+    ActionRule walesActionRule = setUpTreatmentCodeActionRule(actionPlan, "ICL2W");
+
+    // When
+    underTest.enqueueCasesForActionRules(List.of(englandActionRule, walesActionRule));
+
+    // Then
+    StringBuilder expectedSql = new StringBuilder();
+    expectedSql.append("WITH rules AS (SELECT * FROM unnest(CAST(? AS uuid[]), CAST(? AS uuid[]))");
+    expectedSql.append(" WITH ORDINALITY AS r(action_rule_id, batch_id, rule_index)),");
+    expectedSql.append(" matched AS (SELECT case_ref, unnest(ARRAY[");
+    expectedSql.append("CASE WHEN (treatment_code = ANY(CAST(? AS text[]))) THEN 1 END, ");
+    expectedSql.append("CASE WHEN (treatment_code = ANY(CAST(? AS text[]))) THEN 2 END])");
+    expectedSql.append(" AS rule_index FROM actionv2.cases WHERE action_plan_id = ?");
+    expectedSql.append(" AND receipt_received='f'");
+    expectedSql.append(" AND address_invalid='f'");
+    expectedSql.append(" AND skeleton='f'");
+    expectedSql.append(" AND refusal_received IS NULL)");
+    expectedSql.append(", inserted AS (INSERT INTO actionv2.case_to_process (batch_id,");
+    expectedSql.append(" action_rule_id, caze_case_ref) SELECT r.batch_id, r.action_rule_id,");
+    expectedSql.append(" m.case_ref FROM matched m JOIN rules r ON r.rule_index = m.rule_index");
+    expectedSql.append(" RETURNING batch_id, action_rule_id, ce_expected_capacity),");
+    expectedSql.append(" batches AS (INSERT INTO actionv2.action_batch (batch_id, action_rule_id,");
+    expectedSql.append(" quantity, created_date_time) SELECT batch_id, action_rule_id, COUNT(*),");
+    expectedSql.append(" now() FROM inserted GROUP BY batch_id, action_rule_id)");
+    expectedSql.append(" SELECT action_rule_id, COUNT(*) FROM inserted GROUP BY action_rule_id");
+    verify(jdbcTemplate)
+        .query(
+            eq(expectedSql.toString()),
+            any(RowCallbackHandler.class),
+            eq(
+                new String[] {
+                  englandActionRule.getId().toString(), walesActionRule.getId().toString()
+                }),
+            any(String[].class),
+            eq(new String[] {"ICL1E"}),
+            eq(new String[] {"ICL2W"}),
+            eq(actionPlan.getId()));
+  }
+
+  @Test
+  public void testCasesEnqueuedRecordedForActionRule() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule actionRule = setUpTreatmentCodeActionRule(actionPlan, "ICL1E");
+    when(jdbcTemplate.update(
+            startsWith("INSERT INTO actionv2.case_to_process"),
+            any(UUID.class),
+            eq(actionRule.getId()),
+            eq(actionPlan.getId()),
+            eq(new String[] {"ICL1E"})))
+        .thenReturn(42);
+
+    // When
+    underTest.enqueueCasesForActionRule(actionRule);
+
+    // Then
+    DistributionSummary casesEnqueued =
+        meterRegistry
+            .get("action.rule.cases.enqueued")
+            .tags("actionType", "FIELD", "handler", "FIELD")
+            .summary();
+    assertThat(casesEnqueued.count()).isEqualTo(1);
+    assertThat(casesEnqueued.totalAmount()).isEqualTo(42);
+    verify(jdbcTemplate)
+        .update(
+            eq(CaseClassifier.INSERT_ACTION_BATCH_SQL),
+            any(UUID.class),
+            eq(actionRule.getId()),
+            eq(42));
+  }
+
+  @Test
+  public void testNoActionBatchWhenNoCasesEnqueued() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule actionRule = setUpTreatmentCodeActionRule(actionPlan, "ICL1E");
+
+    // When
+    underTest.enqueueCasesForActionRule(actionRule);
+
+    // Then
+    verify(jdbcTemplate, never())
+        .update(eq(CaseClassifier.INSERT_ACTION_BATCH_SQL), any(Object[].class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEnqueueCasesForActionRulesOnDifferentPlansRejected() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionPlan otherActionPlan = new ActionPlan();
+    otherActionPlan.setId(UUID.randomUUID());
+
+    // When
+    underTest.enqueueCasesForActionRules(
+        List.of(
+            setUpTreatmentCodeActionRule(actionPlan, "ICL1E"),
+            setUpTreatmentCodeActionRule(otherActionPlan, "ICL2W")));
+  }
+
+  @Test
+  public void testSplitCaseRefRangeCoversWholeRange() {
+    // When
+    List<CaseClassifier.CaseRefRange> ranges = CaseClassifier.splitCaseRefRange(1, 10, 3);
+
+    // Then
+    assertThat(ranges).hasSize(3);
+    assertThat(ranges.get(0).getFrom()).isEqualTo(1);
+    assertThat(ranges.get(0).getTo()).isEqualTo(4);
+    assertThat(ranges.get(1).getFrom()).isEqualTo(5);
+    assertThat(ranges.get(1).getTo()).isEqualTo(8);
+    assertThat(ranges.get(2).getFrom()).isEqualTo(9);
+    assertThat(ranges.get(2).getTo()).isEqualTo(10);
+  }
+
+  @Test
+  public void testPartitionedRuleWithBatchNotEnqueuedAgain() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+    ReflectionTestUtils.setField(underTest, "partitions", 4);
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule actionRule = setUpTreatmentCodeActionRule(actionPlan, "ICL1E");
+    when(caseChunkEnqueuer.findCheckpoint(actionRule.getId())).thenReturn(Optional.empty());
+    when(jdbcTemplate.queryForObject(
+            CaseClassifier.ACTION_BATCH_EXISTS_SQL, Boolean.class, actionRule.getId()))
+        .thenReturn(true);
+
+    // When
+    underTest.enqueueCasesForActionRule(actionRule);
+
+    // Then
+    verify(jdbcTemplate, never())
+        .update(CaseClassifier.DELETE_UNBATCHED_CASES_SQL, actionRule.getId());
+    verify(jdbcTemplate, never()).getDataSource();
+  }
+
+  @Test
+  public void testSplitCaseRefRangeWithFewerCasesThanPartitions() {
+    // When
+    List<CaseClassifier.CaseRefRange> ranges = CaseClassifier.splitCaseRefRange(7, 8, 4);
+
+    // Then
+    assertThat(ranges).hasSize(2);
+    assertThat(ranges.get(0).getFrom()).isEqualTo(7);
+    assertThat(ranges.get(0).getTo()).isEqualTo(7);
+    assertThat(ranges.get(1).getFrom()).isEqualTo(8);
+    assertThat(ranges.get(1).getTo()).isEqualTo(8);
+  }
+
+  @Test
+  public void testEnqueueCasesForActionRuleInChunks() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+    ReflectionTestUtils.setField(underTest, "chunkSize", 10);
+    ReflectionTestUtils.setField(underTest, "maxChunkSize", 10);
+    ReflectionTestUtils.setField(underTest, "chunkTargetMillis", 1000L);
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionPlan(actionPlan);
+    actionRule.setClassifiersClause("treatment_code IN ('abc','xyz')");
+    actionRule.setActionType(ActionType.ICL1E);
+
+    ActionRuleCheckpoint checkpoint = new ActionRuleCheckpoint();
+    checkpoint.setActionRuleId(actionRule.getId());
+    when(caseChunkEnqueuer.findCheckpoint(actionRule.getId())).thenReturn(Optional.empty());
+    when(caseChunkEnqueuer.createCheckpoint(actionRule.getId())).thenReturn(checkpoint);
+    when(caseChunkEnqueuer.enqueueChunk(
+            eq(checkpoint), anyString(), eq(List.of(actionPlan.getId())), eq(10), eq(false), any()))
+        .thenReturn(10, 10, 3);
+
+    // When
+    underTest.enqueueCasesForActionRule(actionRule);
+
+    // Then
+    verify(caseChunkEnqueuer, times(3))
+        .enqueueChunk(
+            eq(checkpoint), anyString(), eq(List.of(actionPlan.getId())), eq(10), eq(false), any());
+    verify(schedulerWatchdog, times(3)).progress("actionRule " + actionRule.getId());
+    verify(caseChunkEnqueuer).deleteCheckpoint(actionRule.getId());
+    verifyNoMoreInteractions(jdbcTemplate);
+  }
+
+  @Test
+  public void testEnqueueCasesResumesFromExistingCheckpoint() {
+    // Given
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    CaseClassifier underTest =
+        new CaseClassifier(
+            jdbcTemplate,
+            caseChunkEnqueuer,
+            classifierCompiler,
+            meterRegistry,
+            actionRuleGovernor,
+            schedulerWatchdog,
+            partitionExecutor);
+
+    ActionPlan actionPlan = new ActionPlan();
+    actionPlan.setId(UUID.randomUUID());
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionPlan(actionPlan);
+    actionRule.setClassifiersClause("treatment_code IN ('abc','xyz')");
+    actionRule.setActionType(ActionType.ICL1E);
+
+    ActionRuleCheckpoint checkpoint = new ActionRuleCheckpoint();
+    checkpoint.setActionRuleId(actionRule.getId());
+    checkpoint.setLastCaseRef(12345L);
+    when(caseChunkEnqueuer.findCheckpoint(actionRule.getId())).thenReturn(Optional.of(checkpoint));
+
+    // When
+    underTest.enqueueCasesForActionRule(actionRule);
+
+    // Then
+    verify(caseChunkEnqueuer, never()).createCheckpoint(any());
+    verify(caseChunkEnqueuer)
+        .enqueueChunk(eq(checkpoint), anyString(), anyList(), anyInt(), anyBoolean(), any());
+    verify(caseChunkEnqueuer).deleteCheckpoint(actionRule.getId());
+  }
+
+  @Test
+  public void testNextChunkSizeGrowsWhenCommitsAreFast() {
+    assertThat(CaseClassifier.nextChunkSize(1000, 100, 1000, 100000)).isEqualTo(2000);
+  }
+
+  @Test
+  public void testNextChunkSizeShrinksWhenCommitsAreSlow() {
+    assertThat(CaseClassifier.nextChunkSize(1000, 10000, 1000, 100000)).isEqualTo(500);
+    assertThat(CaseClassifier.nextChunkSize(1000, 1250, 1000, 100000)).isEqualTo(800);
+  }
+
+  @Test
+  public void testNextChunkSizeIsCappedAtMaximum() {
+    assertThat(CaseClassifier.nextChunkSize(1000, 1, 1000, 1500)).isEqualTo(1500);
+  }
+
+  private ActionRule setUpTreatmentCodeActionRule(ActionPlan actionPlan, String treatmentCode) {
+    Classifier classifiers = new Classifier();
+    classifiers.setOperator(ClassifierOperator.IN);
+    classifiers.setField(ClassifierField.TREATMENT_CODE);
+    classifiers.setValues(List.of(treatmentCode));
+
+    ActionRule actionRule = new ActionRule();
+    actionRule.setId(UUID.randomUUID());
+    actionRule.setActionPlan(actionPlan);
+    actionRule.setClassifiers(classifiers);
+    actionRule.setActionType(ActionType.FIELD);
+    return actionRule;
   }
 }
@@ -0,0 +1,84 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.UUID;
+import org.junit.Test;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class CaseToProcessPartitionerTest {
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+  @Test
+  public void testPartitionName() {
+    UUID actionRuleId = UUID.fromString("6d5ad9a4-8d0b-4b8a-bd54-7c0fb4e3c2a1");
+
+    assertThat(CaseToProcessPartitioner.partitionName(actionRuleId))
+        .isEqualTo("case_to_process_6d5ad9a48d0b4b8abd547c0fb4e3c2a1");
+  }
+
+  @Test
+  public void testCreatePartition() {
+    // Given
+    UUID actionRuleId = UUID.fromString("6d5ad9a4-8d0b-4b8a-bd54-7c0fb4e3c2a1");
+
+    // When
+    CaseToProcessPartitioner underTest = new CaseToProcessPartitioner(jdbcTemplate);
+    underTest.createPartition(actionRuleId);
+
+    // Then
+    verify(jdbcTemplate)
+        .execute(
+            "CREATE TABLE IF NOT EXISTS actionv2.case_to_process_6d5ad9a48d0b4b8abd547c0fb4e3c2a1 "
+                + "PARTITION OF actionv2.case_to_process "
+                + "FOR VALUES IN ('6d5ad9a4-8d0b-4b8a-bd54-7c0fb4e3c2a1')");
+  }
+
+  @Test
+  public void testTruncatePartition() {
+    // Given
+    UUID actionRuleId = UUID.fromString("6d5ad9a4-8d0b-4b8a-bd54-7c0fb4e3c2a1");
+    when(jdbcTemplate.queryForObject(
+            "SELECT to_regclass(?) IS NOT NULL",
+            Boolean.class,
+            "actionv2.case_to_process_6d5ad9a48d0b4b8abd547c0fb4e3c2a1"))
+        .thenReturn(true);
+
+    // When
+    CaseToProcessPartitioner underTest = new CaseToProcessPartitioner(jdbcTemplate);
+    underTest.truncatePartition(actionRuleId);
+
+    // Then
+    verify(jdbcTemplate)
+        .execute("TRUNCATE actionv2.case_to_process_6d5ad9a48d0b4b8abd547c0fb4e3c2a1");
+  }
+
+  @Test
+  public void testDropContinuesPastLockedPartition() {
+    // Given
+    when(jdbcTemplate.queryForList(anyString(), eq(String.class)))
+        .thenReturn(Arrays.asList("case_to_process_a", "case_to_process_b"));
+    when(jdbcTemplate.queryForObject(anyString(), eq(Boolean.class), eq("case_to_process_a")))
+        .thenThrow(new CannotAcquireLockException("lock timeout"));
+    when(jdbcTemplate.queryForObject(anyString(), eq(Boolean.class), eq("case_to_process_b")))
+        .thenReturn(true);
+
+    // When
+    CaseToProcessPartitioner underTest = new CaseToProcessPartitioner(jdbcTemplate);
+    underTest.dropConsumedPartitions();
+
+    // Then
+    verify(jdbcTemplate)
+        .queryForObject(
+            "SELECT actionv2.drop_case_to_process_partition_if_empty(?)",
+            Boolean.class,
+            "case_to_process_b");
+  }
+}
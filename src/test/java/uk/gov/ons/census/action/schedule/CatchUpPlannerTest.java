@@ -0,0 +1,201 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import uk.gov.ons.census.action.model.dto.ActionRuleEstimate;
+import uk.gov.ons.census.action.model.dto.EstimateMethod;
+import uk.gov.ons.census.action.model.entity.ActionRule;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.model.repository.ActionRuleRepository;
+import uk.gov.ons.census.action.schedule.CatchUpPlanner.BacklogRule;
+
+public class CatchUpPlannerTest {
+  private static final OffsetDateTime NOW = OffsetDateTime.now();
+
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+  private final ActionRuleRepository actionRuleRepo = mock(ActionRuleRepository.class);
+  private final ActionRuleEstimator actionRuleEstimator = mock(ActionRuleEstimator.class);
+
+  @Test
+  public void testNoPriorityOrderWithoutBacklog() {
+    // Given
+    givenBacklog(setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(1), null, 10));
+    CatchUpPlanner underTest = setUpCatchUpPlanner(1, "HANDLER,TRIGGER_TIME", 1000, 1);
+
+    // When
+    List<UUID> prioritised = underTest.prioritise(10, NOW);
+
+    // Then
+    assertThat(prioritised).isNull();
+  }
+
+  @Test
+  public void testFieldRulesAheadOfPrintRules() {
+    // Given
+    BacklogRule printRule = setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(3), null, 10);
+    BacklogRule fieldRule = setUpBacklogRule(ActionType.FIELD, NOW.minusHours(1), null, 10);
+    BacklogRule olderFieldRule = setUpBacklogRule(ActionType.FIELD, NOW.minusHours(2), null, 10);
+    givenBacklog(printRule, fieldRule, olderFieldRule);
+    CatchUpPlanner underTest = setUpCatchUpPlanner(0, "HANDLER,TRIGGER_TIME", 1000, 1);
+
+    // When
+    List<UUID> prioritised = underTest.prioritise(10, NOW);
+
+    // Then
+    assertThat(prioritised)
+        .containsExactly(olderFieldRule.getId(), fieldRule.getId(), printRule.getId());
+  }
+
+  @Test
+  public void testSlaDeadlineFirst() {
+    // Given
+    BacklogRule noDeadline = setUpBacklogRule(ActionType.FIELD, NOW.minusHours(3), null, 10);
+    BacklogRule lateDeadline =
+        setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(2), NOW.plusHours(2), 10);
+    BacklogRule earlyDeadline =
+        setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(1), NOW.plusHours(1), 10);
+    givenBacklog(noDeadline, lateDeadline, earlyDeadline);
+    CatchUpPlanner underTest = setUpCatchUpPlanner(0, "SLA_DEADLINE,HANDLER,TRIGGER_TIME", 1000, 1);
+
+    // When
+    List<UUID> prioritised = underTest.prioritise(10, NOW);
+
+    // Then
+    assertThat(prioritised)
+        .containsExactly(earlyDeadline.getId(), lateDeadline.getId(), noDeadline.getId());
+  }
+
+  @Test
+  public void testHeavyRulesLimited() {
+    // Given
+    BacklogRule firstHeavyRule = setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(3), null, 5000);
+    BacklogRule secondHeavyRule = setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(2), null, 5000);
+    BacklogRule lightRule = setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(1), null, 10);
+    givenBacklog(firstHeavyRule, secondHeavyRule, lightRule);
+    CatchUpPlanner underTest = setUpCatchUpPlanner(0, "TRIGGER_TIME", 1000, 1);
+
+    // When
+    List<UUID> prioritised = underTest.prioritise(10, NOW);
+    underTest.claimed(prioritised, prioritised);
+    givenBacklog(secondHeavyRule, lightRule);
+    List<UUID> prioritisedWhileHeavyRuleRuns = underTest.prioritise(10, NOW);
+
+    // Then
+    assertThat(prioritised).containsExactly(firstHeavyRule.getId(), lightRule.getId());
+    assertThat(prioritisedWhileHeavyRuleRuns).containsExactly(lightRule.getId());
+  }
+
+  @Test
+  public void testHeavySlotReservedUntilClaimed() {
+    // Given
+    BacklogRule firstHeavyRule = setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(2), null, 5000);
+    BacklogRule secondHeavyRule = setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(1), null, 5000);
+    givenBacklog(firstHeavyRule, secondHeavyRule);
+    CatchUpPlanner underTest = setUpCatchUpPlanner(0, "TRIGGER_TIME", 1000, 1);
+
+    // When
+    List<UUID> prioritised = underTest.prioritise(10, NOW);
+    List<UUID> prioritisedBeforeClaimed = underTest.prioritise(10, NOW);
+    underTest.claimed(prioritised, List.of());
+    List<UUID> prioritisedAfterClaimLost = underTest.prioritise(10, NOW);
+
+    // Then
+    assertThat(prioritised).containsExactly(firstHeavyRule.getId());
+    assertThat(prioritisedBeforeClaimed).isEmpty();
+    assertThat(prioritisedAfterClaimLost).containsExactly(firstHeavyRule.getId());
+  }
+
+  @Test
+  public void testSmallestRulesFirstWhenSizeOnlyPriority() {
+    // Given
+    BacklogRule largeRule = setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(3), null, 500);
+    BacklogRule smallRule = setUpBacklogRule(ActionType.ICL1E, NOW.minusHours(2), null, 5);
+    givenBacklog(largeRule, smallRule);
+    CatchUpPlanner underTest = setUpCatchUpPlanner(0, "ESTIMATED_SIZE", 1000, 1);
+
+    // When
+    List<UUID> prioritised = underTest.prioritise(1, NOW);
+
+    // Then
+    assertThat(prioritised).containsExactly(smallRule.getId());
+  }
+
+  /*
+   The estimated cases of each rule is what the estimator will say for it, the planner only
+   learns it by asking.
+  */
+  @SuppressWarnings("unchecked")
+  private void givenBacklog(BacklogRule... backlogRules) {
+    List<BacklogRule> backlog = new ArrayList<>();
+    List<ActionRule> actionRules = new ArrayList<>();
+    for (BacklogRule backlogRule : backlogRules) {
+      backlog.add(
+          new BacklogRule(
+              backlogRule.getId(),
+              backlogRule.getActionType(),
+              backlogRule.getTriggerDateTime(),
+              backlogRule.getSlaDeadline()));
+
+      ActionRule actionRule = new ActionRule();
+      actionRule.setId(backlogRule.getId());
+      actionRules.add(actionRule);
+      ActionRuleEstimate estimate = new ActionRuleEstimate();
+      estimate.setCases(backlogRule.getEstimatedCases());
+      doReturn(estimate).when(actionRuleEstimator).estimate(actionRule, EstimateMethod.PLANNER);
+    }
+
+    // Stubbed with doReturn and doAnswer, so a second backlog doesn't call the first's stubs
+    doReturn(backlog)
+        .when(jdbcTemplate)
+        .query(anyString(), any(RowMapper.class), eq(NOW), eq(NOW), eq(NOW));
+    doAnswer(
+            invocation -> {
+              List<UUID> ids = invocation.getArgument(0);
+              return actionRules.stream()
+                  .filter(actionRule -> ids.contains(actionRule.getId()))
+                  .collect(Collectors.toList());
+            })
+        .when(actionRuleRepo)
+        .findAllById(any());
+  }
+
+  private BacklogRule setUpBacklogRule(
+      ActionType actionType,
+      OffsetDateTime triggerDateTime,
+      OffsetDateTime slaDeadline,
+      long estimatedCases) {
+    BacklogRule backlogRule =
+        new BacklogRule(UUID.randomUUID(), actionType, triggerDateTime, slaDeadline);
+    backlogRule.setEstimatedCases(estimatedCases);
+    return backlogRule;
+  }
+
+  private CatchUpPlanner setUpCatchUpPlanner(
+      int threshold, String priorities, long heavyCases, int heavyConcurrency) {
+    return new CatchUpPlanner(
+        jdbcTemplate,
+        actionRuleRepo,
+        actionRuleEstimator,
+        new SimpleMeterRegistry(),
+        threshold,
+        priorities,
+        "FIELD,PRINTER",
+        heavyCases,
+        heavyConcurrency);
+  }
+}
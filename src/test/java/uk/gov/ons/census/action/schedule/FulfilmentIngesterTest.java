@@ -0,0 +1,71 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import uk.gov.ons.census.action.model.dto.FulfilmentRecord;
+import uk.gov.ons.census.action.model.entity.FulfilmentType;
+
+public class FulfilmentIngesterTest {
+
+  @Test
+  public void testHeaderReadWithoutTheRows() throws Exception {
+    // Given
+    InputStream input =
+        new ByteArrayInputStream(
+            "case_id,\"fulfilment_code\",quantity\r\nabc,P_OR_H1,1\n"
+                .getBytes(StandardCharsets.UTF_8));
+
+    // When
+    List<String> columns = FulfilmentIngester.readHeader(input);
+
+    // Then
+    assertThat(columns).containsExactly("case_id", "fulfilment_code", "quantity");
+    assertThat(new String(input.readAllBytes(), StandardCharsets.UTF_8))
+        .isEqualTo("abc,P_OR_H1,1\n");
+    assertThat(FulfilmentIngester.copySql(columns))
+        .isEqualTo(
+            "COPY fulfilment_staging (case_id, fulfilment_code, quantity) "
+                + "FROM STDIN WITH (FORMAT csv)");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownColumnRejected() throws Exception {
+    FulfilmentIngester.readHeader(
+        new ByteArrayInputStream(
+            "case_id, quantity); DROP TABLE cases; --\n".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testHeaderWithoutCaseIdRejected() throws Exception {
+    FulfilmentIngester.readHeader(
+        new ByteArrayInputStream("fulfilment_code\n".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testRecordWrittenAsCsvInStagingColumnOrder() throws Exception {
+    // Given
+    FulfilmentRecord record = new FulfilmentRecord();
+    record.setCaseId(UUID.fromString("8e6a3c2f-0d44-4b59-9e8e-0d3e4c2b1a7f"));
+    record.setFulfilmentCode("P_OR_H1");
+    record.setFulfilmentType(FulfilmentType.P_OR_HX);
+    record.setAddressLine1("1 \"The\" Street");
+    record.setQuantity(2);
+    StringWriter writer = new StringWriter();
+
+    // When
+    FulfilmentIngester.writeRow(writer, record);
+
+    // Then
+    assertThat(writer.toString())
+        .isEqualTo(
+            "8e6a3c2f-0d44-4b59-9e8e-0d3e4c2b1a7f,\"P_OR_H1\",\"P_OR_HX\","
+                + "\"1 \"\"The\"\" Street\",,,,,,,,,,,2\n");
+  }
+}
@@ -0,0 +1,58 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class FulfilmentMicroBatchSchedulerTest {
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+  private final FulfilmentProcessor fulfilmentProcessor = mock(FulfilmentProcessor.class);
+
+  @Test
+  public void testDueFulfilmentCodesAreBatched() {
+    // Given
+    when(jdbcTemplate.queryForList(
+            anyString(), eq(String.class), eq(1000L), any(OffsetDateTime.class)))
+        .thenReturn(Arrays.asList("P_OR_H1", "P_OR_H2"));
+
+    // When
+    FulfilmentMicroBatchScheduler underTest = createScheduler();
+    underTest.triggerDueFulfilments();
+
+    // Then
+    verify(fulfilmentProcessor).addFulfilmentBatchIdAndQuantity("P_OR_H1");
+    verify(fulfilmentProcessor).addFulfilmentBatchIdAndQuantity("P_OR_H2");
+    verifyNoMoreInteractions(fulfilmentProcessor);
+  }
+
+  @Test
+  public void testNothingBatchedWhenNoFulfilmentCodesAreDue() {
+    // Given
+    when(jdbcTemplate.queryForList(
+            anyString(), eq(String.class), eq(1000L), any(OffsetDateTime.class)))
+        .thenReturn(Collections.emptyList());
+
+    // When
+    FulfilmentMicroBatchScheduler underTest = createScheduler();
+    underTest.triggerDueFulfilments();
+
+    // Then
+    verifyNoMoreInteractions(fulfilmentProcessor);
+  }
+
+  private FulfilmentMicroBatchScheduler createScheduler() {
+    FulfilmentMicroBatchScheduler underTest =
+        new FulfilmentMicroBatchScheduler(jdbcTemplate, fulfilmentProcessor);
+    ReflectionTestUtils.setField(underTest, "maxSize", 1000L);
+    ReflectionTestUtils.setField(underTest, "maxAgeMillis", 3600000L);
+    return underTest;
+  }
+}
@@ -14,9 +14,13 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.transaction.annotation.Transactional;
 import uk.gov.ons.census.action.model.entity.Case;
+import uk.gov.ons.census.action.model.entity.FulfilmentBatch;
+import uk.gov.ons.census.action.model.entity.FulfilmentPending;
 import uk.gov.ons.census.action.model.entity.FulfilmentToProcess;
 import uk.gov.ons.census.action.model.repository.CaseRepository;
 import uk.gov.ons.census.action.model.repository.CaseToProcessRepository;
+import uk.gov.ons.census.action.model.repository.FulfilmentBatchRepository;
+import uk.gov.ons.census.action.model.repository.FulfilmentPendingRepository;
 import uk.gov.ons.census.action.model.repository.FulfilmentToSendRepository;
 
 @ContextConfiguration
@@ -29,6 +33,8 @@ public class FulfilmentProcessorIT {
   @Autowired private CaseToProcessRepository caseToProcessRepository;
   @Autowired private FulfilmentProcessor fulfilmentProcessor;
   @Autowired private CaseRepository caseRepository;
+  @Autowired private FulfilmentBatchRepository fulfilmentBatchRepository;
+  @Autowired private FulfilmentPendingRepository fulfilmentPendingRepository;
 
   private static final Map<String, Integer> fulfilmentQuantity =
       new HashMap<>() {
@@ -44,6 +50,8 @@ public class FulfilmentProcessorIT {
   @Transactional
   public void setUp() {
     fulfilmentToSendRepository.deleteAll();
+    fulfilmentBatchRepository.deleteAllInBatch();
+    fulfilmentPendingRepository.deleteAllInBatch();
     caseToProcessRepository.deleteAllInBatch();
   }
 
@@ -60,6 +68,56 @@ public class FulfilmentProcessorIT {
 
     List<FulfilmentToProcess> fulfilmentsToSend = fulfilmentToSendRepository.findAll();
     fulfilmentsToSend.forEach((this::AssertQuantityandBatchIdAreCorrect));
+    assertThat(fulfilmentBatchRepository.count()).isEqualTo(fulfilmentQuantity.size());
+  }
+
+  @Test
+  public void TestFulfilmentsAreOnlyBatchedOnce() {
+    // Given
+    fulfilmentQuantity.forEach(this::createMultipleFulfilments);
+    fulfilmentProcessor.addFulfilmentBatchIdAndQuantity();
+
+    // When
+    List<FulfilmentBatch> secondRunBatches = fulfilmentProcessor.addFulfilmentBatchIdAndQuantity();
+
+    // Then
+    assertThat(secondRunBatches).isEmpty();
+    assertThat(fulfilmentBatchRepository.count()).isEqualTo(fulfilmentQuantity.size());
+  }
+
+  @Test
+  public void TestPendingFulfilmentsAreCounted() {
+    // When
+    fulfilmentQuantity.forEach(this::createMultipleFulfilments);
+
+    // Then
+    fulfilmentQuantity.forEach(
+        (fulfilment, quantity) -> {
+          FulfilmentPending fulfilmentPending =
+              fulfilmentPendingRepository.findById(fulfilment).get();
+          assertThat(fulfilmentPending.getPendingCount()).isEqualTo(quantity);
+          assertThat(fulfilmentPending.getOldestPending()).isNotNull();
+        });
+  }
+
+  @Test
+  public void TestAddingBatchIdAndQuantityForOneFulfilmentCode() {
+    // Given
+    fulfilmentQuantity.forEach(this::createMultipleFulfilments);
+
+    // When
+    List<FulfilmentBatch> batches = fulfilmentProcessor.addFulfilmentBatchIdAndQuantity("P_OR_H4");
+
+    // Then
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0).getFulfilmentCode()).isEqualTo("P_OR_H4");
+    assertThat(batches.get(0).getQuantity()).isEqualTo(4);
+
+    FulfilmentPending batchedCode = fulfilmentPendingRepository.findById("P_OR_H4").get();
+    assertThat(batchedCode.getPendingCount()).isZero();
+    assertThat(batchedCode.getOldestPending()).isNull();
+    assertThat(fulfilmentPendingRepository.findById("P_OR_H2W").get().getPendingCount())
+        .isEqualTo(3);
   }
 
   private void AssertQuantityandBatchIdAreCorrect(FulfilmentToProcess fulfilmentToProcess) {
@@ -68,6 +126,10 @@ public class FulfilmentProcessorIT {
           if (fulfilment.equals(fulfilmentToProcess.getFulfilmentCode())) {
             assertThat(fulfilmentToProcess.getQuantity()).isEqualTo(quantity);
             assertThat(fulfilmentToProcess.getBatchId()).isNotNull();
+            FulfilmentBatch fulfilmentBatch =
+                fulfilmentBatchRepository.findById(fulfilmentToProcess.getBatchId()).get();
+            assertThat(fulfilmentBatch.getFulfilmentCode()).isEqualTo(fulfilment);
+            assertThat(fulfilmentBatch.getQuantity()).isEqualTo(quantity);
           }
         });
   }
@@ -1,60 +1,142 @@
 package uk.gov.ons.census.action.schedule;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.OffsetDateTime;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import org.junit.Test;
 import org.springframework.jdbc.core.JdbcTemplate;
-import uk.gov.ons.census.action.model.repository.FulfilmentToSendRepository;
+import org.springframework.jdbc.core.RowMapper;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.entity.FulfilmentBatch;
 
 public class FulfilmentsProcessorTest {
   private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
-  private final FulfilmentToSendRepository fulfilmentToSendRepository =
-      mock(FulfilmentToSendRepository.class);
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final SchedulerWatchdog schedulerWatchdog = mock(SchedulerWatchdog.class);
 
-  private final String EXPECTED_UPDATE_QUERY =
-      "UPDATE actionv2.fulfilment_to_process SET quantity = (SELECT COUNT(*) "
-          + "FROM actionv2.fulfilment_to_process WHERE fulfilment_code = ?), batch_id = ? "
-          + "WHERE fulfilment_code = ?";
+  private final String EXPECTED_BATCH_QUERY = expectedBatchQuery("");
+  private final String EXPECTED_CODE_BATCH_QUERY = expectedBatchQuery(" AND fulfilment_code = ?");
 
   @Test
   public void TestAddBatchIdAndQuantity() {
     // Given
-    List<String> fulfilmentCodes = Collections.singletonList("P_OR_H1");
-    when(fulfilmentToSendRepository.findDistinctFulfilmentCode()).thenReturn(fulfilmentCodes);
+    FulfilmentBatch fulfilmentBatch = new FulfilmentBatch();
+    fulfilmentBatch.setBatchId(UUID.randomUUID());
+    fulfilmentBatch.setFulfilmentCode("P_OR_H1");
+    fulfilmentBatch.setQuantity(5);
+    when(jdbcTemplate.query(
+            eq(EXPECTED_BATCH_QUERY),
+            any(RowMapper.class),
+            any(String.class),
+            any(OffsetDateTime.class)))
+        .thenReturn(Collections.singletonList(fulfilmentBatch));
 
     // When
     FulfilmentProcessor fulfilmentProcessor =
-        new FulfilmentProcessor(jdbcTemplate, fulfilmentToSendRepository);
-    fulfilmentProcessor.addFulfilmentBatchIdAndQuantity();
+        new FulfilmentProcessor(jdbcTemplate, meterRegistry, schedulerWatchdog);
+    List<FulfilmentBatch> actualBatches = fulfilmentProcessor.addFulfilmentBatchIdAndQuantity();
 
     // Then
-    fulfilmentCodes.forEach(
-        fulfilmentCode -> {
-          verify(jdbcTemplate)
-              .update(
-                  eq(EXPECTED_UPDATE_QUERY),
-                  eq(fulfilmentCode),
-                  any(UUID.class),
-                  eq(fulfilmentCode));
-        });
+    verify(jdbcTemplate, times(1))
+        .query(
+            eq(EXPECTED_BATCH_QUERY),
+            any(RowMapper.class),
+            any(String.class),
+            any(OffsetDateTime.class));
+    assertThat(actualBatches).containsExactly(fulfilmentBatch);
+    assertThat(
+            meterRegistry
+                .get("fulfilment.batch.size")
+                .tag("fulfilmentCode", "P_OR_H1")
+                .summary()
+                .totalAmount())
+        .isEqualTo(5);
   }
 
   @Test
   public void TestwhenNoFulfilmentsAreInDatabase() {
     // Given
-    when(fulfilmentToSendRepository.findDistinctFulfilmentCode())
+    when(jdbcTemplate.query(
+            eq(EXPECTED_BATCH_QUERY),
+            any(RowMapper.class),
+            any(String.class),
+            any(OffsetDateTime.class)))
         .thenReturn(Collections.emptyList());
 
     // When
     FulfilmentProcessor fulfilmentProcessor =
-        new FulfilmentProcessor(jdbcTemplate, fulfilmentToSendRepository);
-    fulfilmentProcessor.addFulfilmentBatchIdAndQuantity();
+        new FulfilmentProcessor(jdbcTemplate, meterRegistry, schedulerWatchdog);
+    List<FulfilmentBatch> actualBatches = fulfilmentProcessor.addFulfilmentBatchIdAndQuantity();
 
     // Then
-    verify(fulfilmentToSendRepository, times(1)).findDistinctFulfilmentCode();
-    verifyNoMoreInteractions(fulfilmentToSendRepository);
+    assertThat(actualBatches).isEmpty();
+    verify(jdbcTemplate, times(1))
+        .query(
+            eq(EXPECTED_BATCH_QUERY),
+            any(RowMapper.class),
+            any(String.class),
+            any(OffsetDateTime.class));
+    verifyNoMoreInteractions(jdbcTemplate);
+  }
+
+  @Test
+  public void TestAddBatchIdAndQuantityForOneFulfilmentCode() {
+    // Given
+    FulfilmentBatch fulfilmentBatch = new FulfilmentBatch();
+    fulfilmentBatch.setBatchId(UUID.randomUUID());
+    fulfilmentBatch.setFulfilmentCode("P_OR_H1");
+    fulfilmentBatch.setQuantity(1000);
+    when(jdbcTemplate.query(
+            eq(EXPECTED_CODE_BATCH_QUERY),
+            any(RowMapper.class),
+            any(String.class),
+            eq("P_OR_H1"),
+            any(OffsetDateTime.class)))
+        .thenReturn(Collections.singletonList(fulfilmentBatch));
+
+    // When
+    FulfilmentProcessor fulfilmentProcessor =
+        new FulfilmentProcessor(jdbcTemplate, meterRegistry, schedulerWatchdog);
+    List<FulfilmentBatch> actualBatches =
+        fulfilmentProcessor.addFulfilmentBatchIdAndQuantity("P_OR_H1");
+
+    // Then
+    verify(jdbcTemplate, times(1))
+        .query(
+            eq(EXPECTED_CODE_BATCH_QUERY),
+            any(RowMapper.class),
+            any(String.class),
+            eq("P_OR_H1"),
+            any(OffsetDateTime.class));
+    assertThat(actualBatches).containsExactly(fulfilmentBatch);
+  }
+
+  private String expectedBatchQuery(String additionalPredicate) {
+    return "WITH claimed AS (SELECT id, md5(? || fulfilment_code)::uuid AS batch_id, "
+        + "fulfilment_code FROM actionv2.fulfilment_to_process "
+        + "WHERE batch_id IS NULL AND fulfilment_code IS NOT NULL"
+        + additionalPredicate
+        + " FOR UPDATE), "
+        + "counted AS (SELECT batch_id, fulfilment_code, COUNT(*) AS quantity FROM claimed "
+        + "GROUP BY batch_id, fulfilment_code), "
+        + "batched AS (UPDATE actionv2.fulfilment_to_process f "
+        + "SET batch_id = c.batch_id, quantity = c.quantity "
+        + "FROM claimed cl JOIN counted c ON c.batch_id = cl.batch_id WHERE f.id = cl.id), "
+        + "batches AS (INSERT INTO actionv2.fulfilment_batch "
+        + "(batch_id, fulfilment_code, quantity, created_date_time) "
+        + "SELECT batch_id, fulfilment_code, quantity, ? FROM counted "
+        + "RETURNING batch_id, fulfilment_code, quantity, created_date_time), "
+        + "pending AS (UPDATE actionv2.fulfilment_pending p "
+        + "SET pending_count = GREATEST(p.pending_count - b.quantity, 0), "
+        + "oldest_pending = CASE WHEN p.pending_count > b.quantity "
+        + "THEN b.created_date_time END "
+        + "FROM batches b WHERE p.fulfilment_code = b.fulfilment_code) "
+        + "SELECT batch_id, fulfilment_code, quantity, created_date_time FROM batches";
   }
 }
@@ -0,0 +1,147 @@
+package uk.gov.ons.census.action.schedule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import javax.sql.DataSource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentMatchers;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.schedule.PrintFileExporter.PrintBatch;
+
+public class PrintFileExporterTest {
+  private static final String PRINT_FILE_CONTENT = "case_ref,case_id\n1,abc\n";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+  private final CopyManager copyManager = mock(CopyManager.class);
+  private final SchedulerWatchdog schedulerWatchdog = mock(SchedulerWatchdog.class);
+
+  @Before
+  public void setUp() throws Exception {
+    DataSource dataSource = mock(DataSource.class);
+    Connection connection = mock(Connection.class);
+    PGConnection pgConnection = mock(PGConnection.class);
+    when(jdbcTemplate.getDataSource()).thenReturn(dataSource);
+    when(dataSource.getConnection()).thenReturn(connection);
+    when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+    when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+    when(copyManager.copyOut(anyString(), any(OutputStream.class)))
+        .thenAnswer(
+            invocation -> {
+              invocation
+                  .<OutputStream>getArgument(1)
+                  .write(PRINT_FILE_CONTENT.getBytes(StandardCharsets.UTF_8));
+              return 1L;
+            });
+  }
+
+  @Test
+  public void testPrintFileExportedPerBatch() throws Exception {
+    // Given
+    PrintBatch printBatch = new PrintBatch(UUID.randomUUID(), UUID.randomUUID(), ActionType.ICL1E);
+    givenTriggeredBatches(printBatch);
+    PrintFileExporter underTest = setUpPrintFileExporter();
+
+    // When
+    underTest.exportPrintFiles();
+
+    // Then
+    Path printFile =
+        temporaryFolder
+            .getRoot()
+            .toPath()
+            .resolve("P_IC_ICL1_" + printBatch.getBatchId() + ".csv.gz");
+    try (InputStream input = new GZIPInputStream(Files.newInputStream(printFile))) {
+      assertThat(new String(input.readAllBytes(), StandardCharsets.UTF_8))
+          .isEqualTo(PRINT_FILE_CONTENT);
+    }
+    assertThat(temporaryFolder.getRoot().list()).hasSize(1);
+    verify(copyManager)
+        .copyOut(eq(PrintFileExporter.printFileSql(printBatch)), any(OutputStream.class));
+    verify(jdbcTemplate).update(PrintFileExporter.MARK_EXPORTED_SQL, printBatch.getBatchId());
+  }
+
+  @Test
+  public void testBatchWithPrintFileOnlyMarkedExported() throws Exception {
+    // Given
+    PrintBatch printBatch = new PrintBatch(UUID.randomUUID(), UUID.randomUUID(), ActionType.ICL1E);
+    givenTriggeredBatches(printBatch);
+    temporaryFolder.newFile(printBatch.getFileName());
+    PrintFileExporter underTest = setUpPrintFileExporter();
+
+    // When
+    underTest.exportPrintFiles();
+
+    // Then
+    verify(copyManager, never()).copyOut(anyString(), any(OutputStream.class));
+    verify(jdbcTemplate).update(PrintFileExporter.MARK_EXPORTED_SQL, printBatch.getBatchId());
+  }
+
+  @Test
+  public void testPartFileRemovedWhenExportFails() throws Exception {
+    // Given
+    PrintBatch printBatch = new PrintBatch(UUID.randomUUID(), UUID.randomUUID(), ActionType.ICL1E);
+    givenTriggeredBatches(printBatch);
+    doThrow(new SQLException("connection lost"))
+        .when(copyManager)
+        .copyOut(anyString(), any(OutputStream.class));
+    PrintFileExporter underTest = setUpPrintFileExporter();
+
+    // When
+    underTest.exportPrintFiles();
+
+    // Then
+    assertThat(temporaryFolder.getRoot().list()).isEmpty();
+    verify(schedulerWatchdog).finishRun("printFile " + printBatch.getBatchId());
+    verify(jdbcTemplate, never())
+        .update(eq(PrintFileExporter.MARK_EXPORTED_SQL), ArgumentMatchers.<Object>any());
+  }
+
+  @Test
+  public void testOnlyPrinterActionTypesQueried() {
+    assertThat(PrintFileExporter.PRINTER_ACTION_TYPES)
+        .contains(ActionType.ICL1E.name(), ActionType.CE_IC03.name())
+        .doesNotContain(ActionType.FIELD.name());
+  }
+
+  @SuppressWarnings("unchecked")
+  private void givenTriggeredBatches(PrintBatch... printBatches) {
+    when(jdbcTemplate.query(
+            eq(PrintFileExporter.FIND_UNEXPORTED_PRINT_BATCHES_SQL),
+            any(RowMapper.class),
+            (Object) eq(PrintFileExporter.PRINTER_ACTION_TYPES)))
+        .thenReturn(List.of(printBatches));
+  }
+
+  private PrintFileExporter setUpPrintFileExporter() {
+    return new PrintFileExporter(
+        jdbcTemplate, schedulerWatchdog, temporaryFolder.getRoot().getPath(), 1);
+  }
+}
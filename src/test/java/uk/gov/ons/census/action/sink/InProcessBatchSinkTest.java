@@ -0,0 +1,39 @@
+package uk.gov.ons.census.action.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+import uk.gov.ons.census.action.model.dto.CaseBatchMessage;
+
+public class InProcessBatchSinkTest {
+
+  @Test
+  public void testMessageTakenFromItsRoutingKey() throws Exception {
+    // Given
+    InProcessBatchSink underTest = new InProcessBatchSink(1, 10);
+    CaseBatchMessage message = new CaseBatchMessage();
+
+    // When
+    CompletableFuture<Void> accepted = underTest.send("Action.Field.binding", message);
+
+    // Then
+    assertThat(accepted).isCompleted();
+    assertThat(underTest.poll("Action.Printer.binding")).isNull();
+    assertThat(underTest.take("Action.Field.binding")).isSameAs(message);
+  }
+
+  @Test
+  public void testSendFailsWhenQueueStaysFull() {
+    // Given
+    InProcessBatchSink underTest = new InProcessBatchSink(1, 10);
+    underTest.send("Action.Field.binding", new CaseBatchMessage());
+
+    // When
+    CompletableFuture<Void> accepted =
+        underTest.send("Action.Field.binding", new CaseBatchMessage());
+
+    // Then
+    assertThat(accepted).isCompletedExceptionally();
+  }
+}
@@ -0,0 +1,248 @@
+package uk.gov.ons.census.action.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import uk.gov.ons.census.action.healthcheck.SchedulerWatchdog;
+import uk.gov.ons.census.action.model.dto.CaseBatchMessage;
+import uk.gov.ons.census.action.model.dto.EnqueuedCase;
+import uk.gov.ons.census.action.model.entity.ActionType;
+import uk.gov.ons.census.action.schedule.CaseToProcessPartitioner;
+import uk.gov.ons.census.action.schedule.PrintFileExporter;
+import uk.gov.ons.census.action.sink.OutboxRelay.OutboxRow;
+import uk.gov.ons.census.action.sink.OutboxRelay.UnpublishedBatch;
+
+public class OutboxRelayTest {
+  private static final int PAGE_SIZE = 2;
+
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+  private final CaseToProcessPartitioner caseToProcessPartitioner =
+      mock(CaseToProcessPartitioner.class);
+  private final SchedulerWatchdog schedulerWatchdog = mock(SchedulerWatchdog.class);
+  private final UnpublishedBatch batch =
+      new UnpublishedBatch(UUID.randomUUID(), UUID.randomUUID(), 5, 0, ActionType.ICL1E);
+
+  @Test
+  public void testBatchPublishedAPageAtATime() {
+    // Given
+    givenEnqueuedCases(5);
+    InProcessBatchSink batchSink = new InProcessBatchSink(10, 1000);
+    OutboxRelay underTest = setUpOutboxRelay(batchSink, 16);
+
+    // When
+    underTest.publishTriggeredBatches();
+
+    // Then
+    List<CaseBatchMessage> messages = new ArrayList<>();
+    CaseBatchMessage message;
+    while ((message = batchSink.poll("Action.Printer.binding")) != null) {
+      messages.add(message);
+    }
+    assertThat(messages).extracting(sent -> sent.getCases().size()).containsExactly(2, 2, 1);
+    assertThat(messages.get(0).getBatchQuantity()).isEqualTo(5);
+    assertThat(messages.get(0).getPackCode()).isEqualTo("P_IC_ICL1");
+    verifyCursorAdvanced(2L);
+    verifyCursorAdvanced(4L);
+    verifyCursorAdvanced(5L);
+    verify(caseToProcessPartitioner).truncatePartition(batch.getActionRuleId());
+    verify(jdbcTemplate).update(OutboxRelay.MARK_PUBLISHED_SQL, batch.getBatchId());
+    verify(schedulerWatchdog).finishRun("publish " + batch.getBatchId());
+    verify(jdbcTemplate)
+        .update(eq(OutboxRelay.RELEASE_LEASE_SQL), eq(batch.getBatchId()), anyString());
+  }
+
+  @Test
+  public void testNoMoreThanWindowInFlight() {
+    // Given
+    givenEnqueuedCases(6);
+    List<CaseBatchMessage> sent = new ArrayList<>();
+    BatchSink neverConfirms =
+        (routingKey, message) -> {
+          sent.add(message);
+          return new CompletableFuture<>();
+        };
+    OutboxRelay underTest = setUpOutboxRelay(neverConfirms, 2);
+
+    // When
+    underTest.publishTriggeredBatches();
+
+    // Then
+    assertThat(sent).hasSize(2);
+    verify(jdbcTemplate, never())
+        .update(
+            eq(OutboxRelay.ADVANCE_CURSOR_SQL), anyLong(), any(), any(), anyString(), anyLong());
+    verify(jdbcTemplate, never()).update(OutboxRelay.MARK_PUBLISHED_SQL, batch.getBatchId());
+    verify(schedulerWatchdog).finishRun("publish " + batch.getBatchId());
+  }
+
+  @Test
+  public void testCursorStopsAtFailedPage() {
+    // Given
+    givenEnqueuedCases(6);
+    List<CompletableFuture<Void>> confirmations =
+        List.of(
+            CompletableFuture.completedFuture(null),
+            CompletableFuture.failedFuture(new IllegalStateException("nacked")),
+            CompletableFuture.completedFuture(null));
+    List<CaseBatchMessage> sent = new ArrayList<>();
+    BatchSink failsSecondPage =
+        (routingKey, message) -> {
+          sent.add(message);
+          return confirmations.get(sent.size() - 1);
+        };
+    OutboxRelay underTest = setUpOutboxRelay(failsSecondPage, 16);
+
+    // When
+    underTest.publishTriggeredBatches();
+
+    // Then
+    verifyCursorAdvanced(2L);
+    verify(jdbcTemplate, never())
+        .update(
+            eq(OutboxRelay.ADVANCE_CURSOR_SQL),
+            eq(4L),
+            any(),
+            eq(batch.getBatchId()),
+            anyString(),
+            eq(4L));
+    verify(jdbcTemplate, never())
+        .update(
+            eq(OutboxRelay.ADVANCE_CURSOR_SQL),
+            eq(6L),
+            any(),
+            eq(batch.getBatchId()),
+            anyString(),
+            eq(6L));
+    verify(caseToProcessPartitioner, never()).truncatePartition(any());
+    verify(jdbcTemplate, never()).update(OutboxRelay.MARK_PUBLISHED_SQL, batch.getBatchId());
+  }
+
+  @Test
+  public void testPublishingStopsWhenLeaseLost() {
+    // Given
+    givenEnqueuedCases(6);
+    when(jdbcTemplate.update(
+            eq(OutboxRelay.ADVANCE_CURSOR_SQL), anyLong(), any(), any(), anyString(), anyLong()))
+        .thenReturn(0);
+    List<CaseBatchMessage> sent = new ArrayList<>();
+    BatchSink confirms =
+        (routingKey, message) -> {
+          sent.add(message);
+          return CompletableFuture.completedFuture(null);
+        };
+    OutboxRelay underTest = setUpOutboxRelay(confirms, 1);
+
+    // When
+    underTest.publishTriggeredBatches();
+
+    // Then
+    assertThat(sent).hasSize(1);
+    verify(caseToProcessPartitioner, never()).truncatePartition(any());
+    verify(jdbcTemplate, never()).update(OutboxRelay.MARK_PUBLISHED_SQL, batch.getBatchId());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testPrinterBatchesClaimedOnceExportedWhenPrintFilesEnabled() {
+    // Given
+    givenEnqueuedCases(0);
+    OutboxRelay underTest =
+        new OutboxRelay(
+            jdbcTemplate,
+            new InProcessBatchSink(10, 1000),
+            caseToProcessPartitioner,
+            schedulerWatchdog,
+            PAGE_SIZE,
+            16,
+            10,
+            1000,
+            true);
+
+    // When
+    underTest.publishTriggeredBatches();
+
+    // Then
+    verify(jdbcTemplate, times(2))
+        .query(
+            eq(OutboxRelay.CLAIM_BATCH_SQL),
+            any(RowMapper.class),
+            anyString(),
+            any(),
+            any(),
+            (Object) eq(PrintFileExporter.PRINTER_ACTION_TYPES));
+  }
+
+  private void verifyCursorAdvanced(long lastId) {
+    verify(jdbcTemplate)
+        .update(
+            eq(OutboxRelay.ADVANCE_CURSOR_SQL),
+            eq(lastId),
+            any(OffsetDateTime.class),
+            eq(batch.getBatchId()),
+            anyString(),
+            eq(lastId));
+  }
+
+  /*
+   Cases with ids 1 to count, served a page at a time after the cursor the relay asks with, as the
+   READ_PAGE_SQL query would.
+  */
+  @SuppressWarnings("unchecked")
+  private void givenEnqueuedCases(int count) {
+    List<OutboxRow> rows = new ArrayList<>();
+    for (long id = 1; id <= count; id++) {
+      EnqueuedCase enqueuedCase = new EnqueuedCase();
+      enqueuedCase.setCaseId(UUID.randomUUID());
+      enqueuedCase.setCaseRef(id);
+      rows.add(new OutboxRow(id, enqueuedCase));
+    }
+
+    when(jdbcTemplate.query(
+            eq(OutboxRelay.CLAIM_BATCH_SQL), any(RowMapper.class), any(), any(), any(), any()))
+        .thenReturn(List.of(batch), List.of());
+    when(jdbcTemplate.update(
+            eq(OutboxRelay.ADVANCE_CURSOR_SQL), anyLong(), any(), any(), anyString(), anyLong()))
+        .thenReturn(1);
+    when(jdbcTemplate.query(
+            eq(OutboxRelay.READ_PAGE_SQL), any(RowMapper.class), any(), any(), any(), any()))
+        .thenAnswer(
+            invocation -> {
+              long afterId = invocation.getArgument(4);
+              int limit = invocation.getArgument(5);
+              return rows.stream()
+                  .filter(row -> row.getId() > afterId)
+                  .limit(limit)
+                  .collect(Collectors.toList());
+            });
+  }
+
+  private OutboxRelay setUpOutboxRelay(BatchSink batchSink, int window) {
+    return new OutboxRelay(
+        jdbcTemplate,
+        batchSink,
+        caseToProcessPartitioner,
+        schedulerWatchdog,
+        PAGE_SIZE,
+        window,
+        10,
+        1000,
+        false);
+  }
+}